@@ -0,0 +1,593 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Computes in one go the amounts of the AEAT 347 report that are otherwise returned by
+ * {@link AEAT347ReportAPRDao#getAmounts}, {@link AEAT347ReportAPRDao#getAmounts} with lease
+ * product filtering, {@link AEAT347ReportAPRDao#getInvoiceAmounts} and
+ * {@link AEAT347ReportAPRDao#cashAmounts}, with the same rows.
+ *
+ * The accounting fact lines of the period are read only once, with a forward only scroll, and
+ * both the general and the lease amounts are accumulated from them. The invoice taxes and the cash
+ * payments are scrolled the same way. Rows are never kept: they are added to accumulators with the
+ * grouping of the corresponding query, so the memory used depends on the number of rows of the
+ * report (business partners, and invoices for the invoice amounts) and not on the number of lines
+ * of the period.
+ *
+ * The invoice and cash amounts are converted to euros in Java with an
+ * {@link AEAT347CurrencyConverter}, so the database conversion function is only
+ * called once for each distinct amount that is not already in euros.
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347AmountsAggregator {
+
+	static Logger log4j = Logger.getLogger(AEAT347AmountsAggregator.class);
+
+	private static final String CASH_AMOUNTS_FROM = " from FinancialMgmtDebtPayment dp, FinancialMgmtAccountingFact fa"
+			+ " where dp.client.id in (:clients)"
+			+ " and fa.recordID2 = dp.id "
+			+ " and dp.organization.id in (:orgs) "
+			+ " and dp.active='Y'"
+			+ " and dp.receipt = 'Y'"
+			+ " and exists (select 1 from FinancialMgmtAccountingFact fap"
+			+ "   where fap.recordID2 = dp.id"
+			+ "   and fap.accountingDate >= :startingDate"
+			+ "   and fap.accountingDate < :endingDate"
+			+ "   and fap.client.id in (:clients)"
+			+ "   and fap.organization.id in (:orgs) "
+			+ "   and fap.active='Y'"
+			+ "   and fap.table='407'"
+			+ "   and fap.accountingSchema.id = :acctSchemaId) "
+			+ " and fa.table='407'"
+			+ " and fa.active='Y' "
+			+ " and fa.accountingSchema.id = :acctSchemaId ";
+
+	private static final String CASH_AMOUNTS_HQL = "select dp.businessPartner.id, dp.amount, dp.currency.id,"
+			+ " fa.accountingDate" + CASH_AMOUNTS_FROM;
+
+	/**
+	 * Number of rows kept while the conversions of their amounts are preloaded.
+	 * Once reached, the conversions are resolved at once and the rows are added,
+	 * so that the rows of the period are never all kept in memory
+	 */
+	private static final int ROWS_PER_RESOLVE = 1000;
+
+	private final OBDal dal;
+
+	public AEAT347AmountsAggregator() {
+		this(OBDal.getInstance());
+	}
+
+	/**
+	 * @param dal DAL whose session and connection are used to read the amounts
+	 */
+	AEAT347AmountsAggregator(OBDal dal) {
+		this.dal = dal;
+	}
+
+	/**
+	 *
+	 * @param context         information of the report execution: organizations,
+	 *                        clients, document types and lease products
+	 * @param taxes           ids of the taxes to report
+	 * @param strCashAmtLimit String with the cash amount limit multiplied by 100
+	 * @param mapDateRange    map with initial date and end date (+1 day) of the
+	 *                        year
+	 * @param strAcctSchemaId accounting schema id
+	 * @return the four sets of amounts of the report
+	 */
+	public AggregatedAmounts aggregate(AEAT347ReportRunContext context, Set<String> taxes, String strCashAmtLimit,
+			Map<String, Date> mapDateRange, String strAcctSchemaId) {
+		final AggregatedAmounts amounts = aggregateTaxAmounts(context, taxes, mapDateRange, strAcctSchemaId);
+		addCashAmounts(amounts, context, mapDateRange, strAcctSchemaId);
+		amounts.applyCashLimit(getCashLimit(strCashAmtLimit));
+		return amounts;
+	}
+
+	/**
+	 * Accumulates the amounts of the fact lines and the invoice taxes of the period,
+	 * that is, all the amounts but the cash ones
+	 */
+	AggregatedAmounts aggregateTaxAmounts(AEAT347ReportRunContext context, Set<String> taxes,
+			Map<String, Date> mapDateRange, String strAcctSchemaId) {
+		try {
+			OBContext.setAdminMode(true);
+
+			final Set<String> docTypes = context.getDocTypeIds();
+			final Set<String> orgs = context.getOrganizations();
+			final List<String> clients = context.getReadableClients();
+
+			final AggregatedAmounts amounts = new AggregatedAmounts();
+			if (taxes.isEmpty()) {
+				return amounts;
+			}
+			long start = System.currentTimeMillis();
+			long factLines = aggregateFactAmounts(amounts, taxes, docTypes, context.getLeaseProductIds(),
+					mapDateRange, orgs, clients, strAcctSchemaId);
+			long invoiceTaxes = aggregateInvoiceAmounts(amounts, taxes, docTypes, mapDateRange, orgs, clients,
+					context.getClientId(), strAcctSchemaId);
+			log4j.debug("AEAT 347 tax amounts aggregated in " + (System.currentTimeMillis() - start) + " ms: "
+					+ factLines + " fact lines, " + invoiceTaxes + " invoice taxes, " + amounts.getAccumulatorCount()
+					+ " accumulators");
+			return amounts;
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
+	/**
+	 * Adds to the given amounts the cash collected in the period. The cash limit is
+	 * not applied, see {@link AggregatedAmounts#applyCashLimit(BigDecimal)}
+	 */
+	void addCashAmounts(AggregatedAmounts amounts, AEAT347ReportRunContext context, Map<String, Date> mapDateRange,
+			String strAcctSchemaId) {
+		try {
+			OBContext.setAdminMode(true);
+			long start = System.currentTimeMillis();
+			long cashLines = aggregateCashAmounts(amounts, mapDateRange, context.getOrganizations(),
+					context.getReadableClients(), context.getClientId(), strAcctSchemaId);
+			log4j.debug("AEAT 347 cash amounts aggregated in " + (System.currentTimeMillis() - start) + " ms: "
+					+ cashLines + " cash lines");
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
+	/**
+	 * @param strCashAmtLimit String with the cash amount limit multiplied by 100
+	 */
+	static BigDecimal getCashLimit(String strCashAmtLimit) {
+		return new BigDecimal(strCashAmtLimit).divide(new BigDecimal(100), 12, BigDecimal.ROUND_HALF_EVEN);
+	}
+
+	/**
+	 * Scrolls the fact lines of the period, feeding both the general amounts (grouped
+	 * by business partner and tax rate) and the lease amounts (grouped by business
+	 * partner, product and tax rate)
+	 */
+	private long aggregateFactAmounts(AggregatedAmounts amounts, Set<String> taxes, Set<String> docTypes,
+			Set<String> leaseProducts, Map<String, Date> mapDateRange, Set<String> orgs, List<String> clients,
+			String strAcctSchemaId) {
+		final Session session = dal.getSession();
+		final Query query = session.createQuery(getFactAmountsHql(!docTypes.isEmpty()));
+		query.setParameterList("clients", clients);
+		query.setParameterList("orgs", orgs);
+		query.setParameter("startingDate", mapDateRange.get("startingDate"));
+		query.setParameter("endingDate", mapDateRange.get("endingDate"));
+		query.setParameter("acctSchemaId", strAcctSchemaId);
+		if (!docTypes.isEmpty())
+			query.setParameterList("docTypes", docTypes);
+		query.setParameterList("taxes", taxes);
+
+		long lines = 0;
+		final ScrollableResults scroll = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (scroll.next()) {
+				final Object[] row = scroll.get();
+				final String bpId = (String) row[0];
+				final String productId = (String) row[1];
+				final BigDecimal rate = (BigDecimal) row[2];
+				final BigDecimal debit = (BigDecimal) row[3];
+				final BigDecimal credit = (BigDecimal) row[4];
+				final String factAcctId = (String) row[5];
+				amounts.addAmount(bpId, "", rate, debit, credit, factAcctId);
+				if (productId != null && leaseProducts.contains(productId)) {
+					amounts.addLeaseAmount(bpId, productId, rate, debit, credit, factAcctId);
+				}
+				lines++;
+			}
+		} finally {
+			scroll.close();
+		}
+		return lines;
+	}
+
+	private static String getFactAmountsHql(boolean filterDocTypes) {
+		final StringBuffer sql = new StringBuffer();
+		sql.append(" select fa.businessPartner.id, fa.product.id, fa.tax.rate, fa.debit, fa.credit, fa.id");
+		sql.append(" from FinancialMgmtAccountingFact as fa ");
+		sql.append(" where fa.client.id in (:clients)");
+		sql.append(" and fa.organization.id in (:orgs) ");
+		sql.append(" and fa.active='Y'");
+		sql.append(" and fa.accountingDate >= :startingDate");
+		sql.append(" and fa.accountingDate < :endingDate");
+		sql.append(" and fa.accountingSchema.id = :acctSchemaId ");
+		if (filterDocTypes)
+			sql.append(" and fa.documentType.id in (:docTypes)");
+		sql.append(" and fa.table not in ('318', '145')");
+		sql.append(" and fa.type not in ('O', 'C','R')");
+		sql.append(" and fa.businessPartner.id is not null ");
+		sql.append(" and fa.tax.id in (:taxes)");
+		return sql.toString();
+	}
+
+	/**
+	 * Scrolls the taxes of the posted invoices of the period, sorted by invoice and
+	 * tax, and accumulates them by invoice, parent tax and recalculate flag. The
+	 * amounts of each group are combined as the database would group them: the tax
+	 * amounts are added and the lowest taxable amount is taken when the tax is
+	 * recalculated.
+	 *
+	 * The rows are read once. They are kept until {@value #ROWS_PER_RESOLVE} rows
+	 * forming whole groups are read, then the conversions of their amounts are
+	 * resolved in batch and the groups are added
+	 */
+	private long aggregateInvoiceAmounts(AggregatedAmounts amounts, Set<String> taxes, Set<String> docTypes,
+			Map<String, Date> mapDateRange, Set<String> orgs, List<String> clients, String strClientId,
+			String strAcctSchemaId) {
+		final Session session = dal.getSession();
+		final AEAT347CurrencyConverter converter = new AEAT347CurrencyConverter(AEAT347ReportAPR.CURRENCY_EURO_ID,
+				strClientId, dal);
+		final Query query = session.createQuery(getInvoiceAmountsHql(!docTypes.isEmpty()));
+		setInvoiceParameters(query, taxes, docTypes, mapDateRange, orgs, clients, strAcctSchemaId);
+
+		long lines = 0;
+		int conversions = 0;
+		final List<Object[]> pendingRows = new ArrayList<Object[]>();
+		final ScrollableResults scroll = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (scroll.next()) {
+				final Object[] row = scroll.get();
+				if (pendingRows.size() >= ROWS_PER_RESOLVE
+						&& !isSameInvoiceGroup(pendingRows.get(pendingRows.size() - 1), row)) {
+					// the kept rows form whole groups
+					conversions += converter.resolve();
+					addInvoiceRows(amounts, pendingRows, converter);
+					pendingRows.clear();
+				}
+				converter.preload((BigDecimal) row[0], (String) row[2], (Date) row[3], (String) row[8]);
+				if (Boolean.TRUE.equals(row[9])) {
+					converter.preload((BigDecimal) row[1], (String) row[2], (Date) row[3], (String) row[8]);
+				}
+				pendingRows.add(row);
+				lines++;
+			}
+		} finally {
+			scroll.close();
+		}
+		conversions += converter.resolve();
+		addInvoiceRows(amounts, pendingRows, converter);
+		log4j.debug(conversions + " AEAT 347 invoice amounts converted to euros");
+		return lines;
+	}
+
+	/**
+	 * Accumulates the given rows, sorted by invoice, parent tax and recalculate
+	 * flag, by group. The conversions of their amounts must be already resolved
+	 */
+	private static void addInvoiceRows(AggregatedAmounts amounts, List<Object[]> rows,
+			AEAT347CurrencyConverter converter) {
+		Object[] group = null;
+		Object[] previousRow = null;
+		for (Object[] row : rows) {
+			final String currencyId = (String) row[2];
+			final Date accountingDate = (Date) row[3];
+			final String invoiceId = (String) row[8];
+			final Boolean recalculate = (Boolean) row[9];
+			if (group != null && !isSameInvoiceGroup(previousRow, row)) {
+				addInvoiceGroup(amounts, group);
+				group = null;
+			}
+			if (group == null) {
+				group = new Object[] { null, null, row[4], row[5], row[6], null, row[7], invoiceId, recalculate };
+			}
+			final BigDecimal taxAmount = converter.convert((BigDecimal) row[0], currencyId, accountingDate,
+					invoiceId);
+			if (taxAmount != null) {
+				group[0] = group[0] == null ? taxAmount : ((BigDecimal) group[0]).add(taxAmount);
+			}
+			if (Boolean.TRUE.equals(recalculate)) {
+				final BigDecimal taxableAmount = converter.convert((BigDecimal) row[1], currencyId, accountingDate,
+						invoiceId);
+				if (taxableAmount != null
+						&& (group[1] == null || taxableAmount.compareTo((BigDecimal) group[1]) < 0)) {
+					group[1] = taxableAmount;
+				}
+			}
+			previousRow = row;
+		}
+		if (group != null) {
+			addInvoiceGroup(amounts, group);
+		}
+	}
+
+	/**
+	 * @return true if both invoice tax rows have the same invoice, parent tax and
+	 *         recalculate flag
+	 */
+	private static boolean isSameInvoiceGroup(Object[] row, Object[] nextRow) {
+		return row[8].equals(nextRow[8]) && row[7].equals(nextRow[7]) && row[9].equals(nextRow[9]);
+	}
+
+	/**
+	 * @param group [tax, taxable, bp, docCategory, reversal, unused, taxId,
+	 *              invoiceId, recalculate]
+	 */
+	private static void addInvoiceGroup(AggregatedAmounts amounts, Object[] group) {
+		final BigDecimal taxableAmount = Boolean.TRUE.equals(group[8]) ? toBigDecimal(group[1]) : BigDecimal.ZERO;
+		amounts.addInvoiceAmount((String) group[2], (String) group[3], (Boolean) group[4], (String) group[6],
+				toBigDecimal(group[0]), taxableAmount, (String) group[7], (Boolean) group[8]);
+	}
+
+	private static void setInvoiceParameters(Query query, Set<String> taxes, Set<String> docTypes,
+			Map<String, Date> mapDateRange, Set<String> orgs, List<String> clients, String strAcctSchemaId) {
+		query.setParameter("acctSchemaId", strAcctSchemaId);
+		if (!docTypes.isEmpty())
+			query.setParameterList("docTypes", docTypes);
+		query.setParameterList("taxes", taxes);
+		query.setParameterList("clients", clients);
+		query.setParameterList("orgs", orgs);
+		query.setParameter("startingDate", mapDateRange.get("startingDate"));
+		query.setParameter("endingDate", mapDateRange.get("endingDate"));
+	}
+
+	private static String getInvoiceAmountsHql(boolean filterDocTypes) {
+		final StringBuffer sql = new StringBuffer();
+		sql.append(" select it.taxAmount, it.taxableAmount, i.currency.id, i.accountingDate");
+		sql.append(", i.businessPartner.id as businessPartner");
+		sql.append(", dt.documentCategory as document, dt.reversal as reversal ");
+		sql.append(", coalesce(pt.id, t.id) as taxId,  i.id as invoiceId, it.recalculate ");
+		appendInvoiceTaxes(sql, filterDocTypes);
+		sql.append(" order by i.id, coalesce(pt.id, t.id), it.recalculate");
+		return sql.toString();
+	}
+
+	private static void appendInvoiceTaxes(StringBuffer sql, boolean filterDocTypes) {
+		sql.append(" from InvoiceTax as it inner join it.tax as t");
+		sql.append(" inner join it.invoice as i ");
+		sql.append(" inner join i.documentType as dt ");
+		sql.append(" left join t.parentTaxRate as pt ");
+		sql.append(" where exists (select 1 ");
+		sql.append("               from FinancialMgmtAccountingFact as fa ");
+		sql.append("               where i.id = fa.recordID ");
+		sql.append("               and fa.accountingSchema.id = :acctSchemaId ");
+		sql.append("               and fa.active='Y'");
+		sql.append("               and fa.table = '318'");
+		if (filterDocTypes) {
+			sql.append("             and fa.documentType.id in (:docTypes)");
+		}
+		sql.append("              ) ");
+		sql.append(" and t.id in (:taxes)");
+		sql.append(" and i.client.id in (:clients)");
+		sql.append(" and i.organization.id in (:orgs) ");
+		sql.append(" and i.accountingDate >= :startingDate");
+		sql.append(" and i.accountingDate < :endingDate");
+	}
+
+	/**
+	 * Scrolls the cash debt payments posted in the period and accumulates their
+	 * amount, converted to euros, by business partner. The conversions are resolved
+	 * in batch every {@value #ROWS_PER_RESOLVE} rows
+	 */
+	private long aggregateCashAmounts(AggregatedAmounts amounts, Map<String, Date> mapDateRange, Set<String> orgs,
+			List<String> clients, String strClientId, String strAcctSchemaId) {
+		final Session session = dal.getSession();
+		final AEAT347CurrencyConverter converter = new AEAT347CurrencyConverter(AEAT347ReportAPR.CURRENCY_EURO_ID,
+				strClientId, dal);
+		final Query query = session.createQuery(CASH_AMOUNTS_HQL);
+		setCashParameters(query, mapDateRange, orgs, clients, strAcctSchemaId);
+
+		long lines = 0;
+		int conversions = 0;
+		final List<Object[]> pendingRows = new ArrayList<Object[]>();
+		final ScrollableResults scroll = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (scroll.next()) {
+				final Object[] row = scroll.get();
+				converter.preload((BigDecimal) row[1], (String) row[2], (Date) row[3], null);
+				pendingRows.add(row);
+				lines++;
+				if (pendingRows.size() >= ROWS_PER_RESOLVE) {
+					conversions += converter.resolve();
+					addCashRows(amounts, pendingRows, converter);
+					pendingRows.clear();
+				}
+			}
+		} finally {
+			scroll.close();
+		}
+		conversions += converter.resolve();
+		addCashRows(amounts, pendingRows, converter);
+		log4j.debug(conversions + " AEAT 347 cash amounts converted to euros");
+		return lines;
+	}
+
+	/**
+	 * Accumulates the given cash rows. The conversions of their amounts must be
+	 * already resolved
+	 */
+	private static void addCashRows(AggregatedAmounts amounts, List<Object[]> rows,
+			AEAT347CurrencyConverter converter) {
+		for (Object[] row : rows) {
+			amounts.addCashAmount((String) row[0],
+					toBigDecimal(converter.convert((BigDecimal) row[1], (String) row[2], (Date) row[3], null)));
+		}
+	}
+
+	private static void setCashParameters(Query query, Map<String, Date> mapDateRange, Set<String> orgs,
+			List<String> clients, String strAcctSchemaId) {
+		query.setParameterList("clients", clients);
+		query.setParameterList("orgs", orgs);
+		query.setParameter("startingDate", mapDateRange.get("startingDate"));
+		query.setParameter("endingDate", mapDateRange.get("endingDate"));
+		query.setParameter("acctSchemaId", strAcctSchemaId);
+	}
+
+	private static BigDecimal toBigDecimal(Object value) {
+		if (value == null) {
+			return BigDecimal.ZERO;
+		}
+		if (value instanceof BigDecimal) {
+			return (BigDecimal) value;
+		}
+		return new BigDecimal(value.toString());
+	}
+
+	/**
+	 * Amounts of the report accumulated by business partner. Each list is sorted by
+	 * business partner id and returned with the same row layout as the
+	 * corresponding method of {@link AEAT347ReportAPRDao}
+	 */
+	public static class AggregatedAmounts {
+
+		private final Map<String, Object[]> amounts = new TreeMap<String, Object[]>();
+		private final Map<String, Object[]> leaseAmounts = new TreeMap<String, Object[]>();
+		private final Map<String, Object[]> invoiceAmounts = new TreeMap<String, Object[]>();
+		private final Map<String, Object[]> cashAmounts = new TreeMap<String, Object[]>();
+
+		void addAmount(String bpId, String productId, BigDecimal rate, BigDecimal debit, BigDecimal credit,
+				String factAcctId) {
+			addFactAmount(amounts, bpId, productId, rate, debit, credit, factAcctId);
+		}
+
+		void addLeaseAmount(String bpId, String productId, BigDecimal rate, BigDecimal debit,
+				BigDecimal credit, String factAcctId) {
+			addFactAmount(leaseAmounts, bpId, productId, rate, debit, credit, factAcctId);
+		}
+
+		private static void addFactAmount(Map<String, Object[]> accumulators, String bpId, String productId,
+				BigDecimal rate, BigDecimal debit, BigDecimal credit, String factAcctId) {
+			final String key = bpId + "|" + productId + "|"
+					+ (rate == null ? "" : rate.stripTrailingZeros().toPlainString());
+			Object[] accumulator = accumulators.get(key);
+			if (accumulator == null) {
+				accumulator = new Object[] { BigDecimal.ZERO, BigDecimal.ZERO, bpId, productId, rate, factAcctId };
+				accumulators.put(key, accumulator);
+			}
+			accumulator[0] = ((BigDecimal) accumulator[0]).add(debit == null ? BigDecimal.ZERO : debit);
+			accumulator[1] = ((BigDecimal) accumulator[1]).add(credit == null ? BigDecimal.ZERO : credit);
+			if (factAcctId.compareTo((String) accumulator[5]) < 0) {
+				accumulator[5] = factAcctId;
+			}
+		}
+
+		/**
+		 * Adds the amounts of the taxes of an invoice with the same parent tax and
+		 * recalculate flag, the same group as {@link AEAT347ReportAPRDao#getInvoiceAmounts}
+		 */
+		void addInvoiceAmount(String bpId, String documentCategory, Boolean reversal, String taxId,
+				BigDecimal taxAmount, BigDecimal taxableAmount, String invoiceId, Boolean recalculate) {
+			final String key = bpId + "|" + invoiceId + "|" + taxId + "|" + documentCategory + "|" + reversal + "|"
+					+ recalculate;
+			Object[] accumulator = invoiceAmounts.get(key);
+			if (accumulator == null) {
+				accumulator = new Object[] { BigDecimal.ZERO, BigDecimal.ZERO, bpId, "", documentCategory, reversal,
+						taxId, invoiceId, recalculate };
+				invoiceAmounts.put(key, accumulator);
+			}
+			accumulator[0] = ((BigDecimal) accumulator[0]).add(taxAmount);
+			accumulator[1] = ((BigDecimal) accumulator[1]).add(taxableAmount);
+		}
+
+		void addCashAmount(String bpId, BigDecimal amount) {
+			Object[] accumulator = cashAmounts.get(bpId);
+			if (accumulator == null) {
+				accumulator = new Object[] { bpId, BigDecimal.ZERO };
+				cashAmounts.put(bpId, accumulator);
+			}
+			accumulator[1] = ((BigDecimal) accumulator[1]).add(amount);
+		}
+
+		/**
+		 * Adds the amounts accumulated in other to these ones. The result does not
+		 * depend on the order in which amounts are added
+		 */
+		void addAll(AggregatedAmounts other) {
+			for (Object[] accumulator : other.amounts.values()) {
+				addAmount((String) accumulator[2], (String) accumulator[3], (BigDecimal) accumulator[4],
+						(BigDecimal) accumulator[0], (BigDecimal) accumulator[1], (String) accumulator[5]);
+			}
+			for (Object[] accumulator : other.leaseAmounts.values()) {
+				addLeaseAmount((String) accumulator[2], (String) accumulator[3], (BigDecimal) accumulator[4],
+						(BigDecimal) accumulator[0], (BigDecimal) accumulator[1], (String) accumulator[5]);
+			}
+			for (Object[] accumulator : other.invoiceAmounts.values()) {
+				addInvoiceAmount((String) accumulator[2], (String) accumulator[4], (Boolean) accumulator[5],
+						(String) accumulator[6], (BigDecimal) accumulator[0], (BigDecimal) accumulator[1],
+						(String) accumulator[7], (Boolean) accumulator[8]);
+			}
+			for (Object[] accumulator : other.cashAmounts.values()) {
+				addCashAmount((String) accumulator[0], (BigDecimal) accumulator[1]);
+			}
+		}
+
+		/**
+		 * Removes the business partners whose cash amount does not exceed the limit
+		 */
+		void applyCashLimit(BigDecimal limit) {
+			cashAmounts.values().removeIf(accumulator -> ((BigDecimal) accumulator[1]).compareTo(limit) <= 0);
+		}
+
+		private int getAccumulatorCount() {
+			return amounts.size() + invoiceAmounts.size() + cashAmounts.size();
+		}
+
+		/**
+		 * @return same rows as {@link AEAT347ReportAPRDao#getAmounts} without product
+		 *         filtering
+		 */
+		public List<Object[]> getAmounts() {
+			return Collections.unmodifiableList(new ArrayList<Object[]>(amounts.values()));
+		}
+
+		/**
+		 * @return same rows as {@link AEAT347ReportAPRDao#getAmounts} with the "Lease"
+		 *         product filtering
+		 */
+		public List<Object[]> getLeaseAmounts() {
+			return Collections.unmodifiableList(new ArrayList<Object[]>(leaseAmounts.values()));
+		}
+
+		/**
+		 * @return same rows as {@link AEAT347ReportAPRDao#getInvoiceAmounts}: one for
+		 *         each invoice, parent tax and recalculate flag
+		 */
+		public List<Object[]> getInvoiceAmounts() {
+			final List<Object[]> rows = new ArrayList<Object[]>(invoiceAmounts.size());
+			for (Object[] accumulator : invoiceAmounts.values()) {
+				rows.add(Arrays.copyOf(accumulator, 8));
+			}
+			return Collections.unmodifiableList(rows);
+		}
+
+		/**
+		 * @return the rows of {@link #getInvoiceAmounts()} followed by the recalculate
+		 *         flag of their invoice taxes
+		 */
+		List<Object[]> getInvoiceAmountsWithRecalculate() {
+			return Collections.unmodifiableList(new ArrayList<Object[]>(invoiceAmounts.values()));
+		}
+
+		/**
+		 * @return same rows as {@link AEAT347ReportAPRDao#cashAmounts}
+		 */
+		public List<Object[]> getCashAmounts() {
+			return Collections.unmodifiableList(new ArrayList<Object[]>(cashAmounts.values()));
+		}
+	}
+}
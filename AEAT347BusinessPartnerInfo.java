@@ -0,0 +1,85 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+/**
+ * Information of a business partner needed to write its record in the AEAT 347
+ * file. The address is the one of the tax location of the business partner or, if
+ * it has none, the one of its first location. The address fields are null when
+ * the business partner has no location.
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347BusinessPartnerInfo {
+
+	private final String id;
+	private final String taxId;
+	private final String name;
+	private final String addressLine1;
+	private final String addressLine2;
+	private final String postalCode;
+	private final String cityName;
+	private final String regionName;
+	private final String countryCode;
+
+	AEAT347BusinessPartnerInfo(String id, String taxId, String name, String addressLine1, String addressLine2,
+			String postalCode, String cityName, String regionName, String countryCode) {
+		this.id = id;
+		this.taxId = taxId;
+		this.name = name;
+		this.addressLine1 = addressLine1;
+		this.addressLine2 = addressLine2;
+		this.postalCode = postalCode;
+		this.cityName = cityName;
+		this.regionName = regionName;
+		this.countryCode = countryCode;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTaxId() {
+		return taxId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getAddressLine1() {
+		return addressLine1;
+	}
+
+	public String getAddressLine2() {
+		return addressLine2;
+	}
+
+	public String getPostalCode() {
+		return postalCode;
+	}
+
+	public String getCityName() {
+		return cityName;
+	}
+
+	public String getRegionName() {
+		return regionName;
+	}
+
+	/**
+	 * @return ISO code of the country of the address
+	 */
+	public String getCountryCode() {
+		return countryCode;
+	}
+
+	public boolean hasAddress() {
+		return countryCode != null || postalCode != null || addressLine1 != null;
+	}
+}
@@ -0,0 +1,152 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Converts to euros the amounts of the AEAT 347 report with the same results as
+ * the AEAT347_currency_convert database function, calling it once per distinct
+ * amount, currency, accounting date and invoice instead of once per row.
+ *
+ * The amounts already in euros are returned as they are, without calling the
+ * function. The conversions of the other amounts of a period are resolved in
+ * batch with {@link #preload(BigDecimal, String, Date, String)} and
+ * {@link #resolve()}, and are kept in memory for the rest of the aggregation. An
+ * amount that was not preloaded is converted with a query of its own.
+ *
+ * @author openbravo
+ *
+ */
+class AEAT347CurrencyConverter {
+
+	private static final int MAX_CONVERSIONS_PER_QUERY = 100;
+
+	private final String strCurrencyToId;
+	private final String strClientId;
+	private final OBDal dal;
+	private final Map<String, BigDecimal> conversions = new HashMap<String, BigDecimal>();
+	private final Map<String, Object[]> pending = new LinkedHashMap<String, Object[]>();
+
+	/**
+	 * @param strCurrencyToId currency to convert to
+	 * @param strClientId     client whose conversion rates are used
+	 * @param dal             DAL whose connection runs the conversions
+	 */
+	AEAT347CurrencyConverter(String strCurrencyToId, String strClientId, OBDal dal) {
+		this.strCurrencyToId = strCurrencyToId;
+		this.strClientId = strClientId;
+		this.dal = dal;
+	}
+
+	/**
+	 * Registers an amount to be converted by the next call to {@link #resolve()}
+	 *
+	 * @param invoiceId invoice whose amount is converted, null for other documents
+	 */
+	void preload(BigDecimal amount, String strCurrencyId, Date accountingDate, String invoiceId) {
+		if (amount == null || strCurrencyToId.equals(strCurrencyId)) {
+			return;
+		}
+		final String key = getKey(amount, strCurrencyId, accountingDate, invoiceId);
+		if (!conversions.containsKey(key) && !pending.containsKey(key)) {
+			pending.put(key, new Object[] { amount, strCurrencyId, accountingDate, invoiceId });
+		}
+	}
+
+	/**
+	 * @return the number of amounts registered and not converted yet
+	 */
+	int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Converts all the registered amounts with one query per
+	 * {@value #MAX_CONVERSIONS_PER_QUERY} amounts
+	 *
+	 * @return the number of amounts converted
+	 */
+	int resolve() {
+		final List<String> keys = new ArrayList<String>(pending.keySet());
+		for (int i = 0; i < keys.size(); i += MAX_CONVERSIONS_PER_QUERY) {
+			resolve(keys.subList(i, Math.min(i + MAX_CONVERSIONS_PER_QUERY, keys.size())));
+		}
+		pending.clear();
+		return keys.size();
+	}
+
+	/**
+	 * @param invoiceId invoice whose amount is converted, null for other documents
+	 * @return the amount converted, null if the amount is null
+	 */
+	BigDecimal convert(BigDecimal amount, String strCurrencyId, Date accountingDate, String invoiceId) {
+		if (amount == null || strCurrencyToId.equals(strCurrencyId)) {
+			return amount;
+		}
+		final String key = getKey(amount, strCurrencyId, accountingDate, invoiceId);
+		if (!conversions.containsKey(key)) {
+			pending.put(key, new Object[] { amount, strCurrencyId, accountingDate, invoiceId });
+			resolve();
+		}
+		return conversions.get(key);
+	}
+
+	private void resolve(List<String> keys) {
+		final StringBuffer sql = new StringBuffer();
+		for (int i = 0; i < keys.size(); i++) {
+			if (i > 0) {
+				sql.append(" UNION ALL ");
+			}
+			final boolean invoice = pending.get(keys.get(i))[3] != null;
+			sql.append("SELECT ").append(i).append(" AS IDX, ");
+			sql.append(invoice ? "AEAT347_currency_convert(?, ?, ?, ?, NULL, ?, NULL, ?)"
+					: "AEAT347_currency_convert(?, ?, ?, ?, NULL, ?, NULL)");
+			sql.append(" AS AMOUNT FROM DUAL");
+		}
+		try (PreparedStatement ps = dal.getConnection(false).prepareStatement(sql.toString())) {
+			int index = 1;
+			for (String key : keys) {
+				final Object[] conversion = pending.get(key);
+				ps.setBigDecimal(index++, (BigDecimal) conversion[0]);
+				ps.setString(index++, (String) conversion[1]);
+				ps.setString(index++, strCurrencyToId);
+				ps.setTimestamp(index++,
+						conversion[2] == null ? null : new Timestamp(((Date) conversion[2]).getTime()));
+				ps.setString(index++, strClientId);
+				if (conversion[3] != null) {
+					ps.setString(index++, (String) conversion[3]);
+				}
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					conversions.put(keys.get(rs.getInt(1)), rs.getBigDecimal(2));
+				}
+			}
+		} catch (SQLException e) {
+			throw new OBException("Error converting the AEAT 347 amounts to euros", e);
+		}
+	}
+
+	private static String getKey(BigDecimal amount, String strCurrencyId, Date accountingDate, String invoiceId) {
+		return amount.toPlainString() + "|" + strCurrencyId + "|"
+				+ (accountingDate == null ? "" : accountingDate.getTime()) + "|" + (invoiceId == null ? "" : invoiceId);
+	}
+}
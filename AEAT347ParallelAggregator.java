@@ -0,0 +1,318 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.module.aeat347apr.es.AEAT347AmountsAggregator.AggregatedAmounts;
+
+/**
+ * Computes the amounts of the AEAT 347 report splitting the work in partitions
+ * that are run at the same time.
+ *
+ * The fact lines and invoice taxes are split by calendar quarter of the period and
+ * by groups of organizations of the tree. Each of those lines belongs to a single
+ * organization and date, so each one is read by exactly one partition. The cash
+ * amounts are computed by a partition of their own for the whole period and tree,
+ * because a debt payment is reported when any of its fact lines is in the period
+ * and in the tree.
+ *
+ * The partitions are merged in a fixed order and the accumulators do not depend on
+ * the order in which the lines are added, so the result is the same as the one of
+ * {@link AEAT347AmountsAggregator#aggregate}. The cash limit is applied once all
+ * the partitions are merged.
+ *
+ * The partitions read the amounts with the read-only DAL. Each partition run by
+ * the pool gets a security context of its own, created for the user, role,
+ * client and organization of the caller, and its sessions are closed once it
+ * finishes. A partition run in the caller thread because the pool is full uses
+ * the read-only session of the caller, which is released with the rest of its
+ * sessions. It is configured with these Openbravo.properties:
+ * <ul>
+ * <li>aeat347.parallel: set to true to compute the report in parallel. False by
+ * default.</li>
+ * <li>aeat347.parallel.threads: number of threads shared by all the executions, 4
+ * by default. It is also the number of groups of organizations.</li>
+ * <li>aeat347.parallel.queueSize: number of partitions waiting for a thread, 50 by
+ * default. When it is full, the partitions are run in the caller thread.</li>
+ * </ul>
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347ParallelAggregator {
+
+	private static final String ENABLED_PROPERTY = "aeat347.parallel";
+	private static final String THREADS_PROPERTY = "aeat347.parallel.threads";
+	private static final String QUEUE_SIZE_PROPERTY = "aeat347.parallel.queueSize";
+	private static final int DEFAULT_THREADS = 4;
+	private static final int DEFAULT_QUEUE_SIZE = 50;
+
+	static Logger log4j = Logger.getLogger(AEAT347ParallelAggregator.class);
+
+	private static volatile ThreadPoolExecutor executor;
+	private static volatile Boolean enabled;
+	private static int threads;
+
+	private final AEAT347AmountsAggregator aggregator = new AEAT347AmountsAggregator(OBDal.getReadOnlyInstance());
+
+	public AEAT347ParallelAggregator() {
+	}
+
+	/**
+	 * @return true if the report should be computed in parallel
+	 */
+	public static boolean isEnabled() {
+		if (enabled == null) {
+			final Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+			enabled = "true".equals(properties.getProperty(ENABLED_PROPERTY, "false").trim());
+		}
+		return enabled;
+	}
+
+	/**
+	 * Same as {@link AEAT347AmountsAggregator#aggregate}, computing the partitions
+	 * at the same time
+	 */
+	public AggregatedAmounts aggregate(final AEAT347ReportRunContext context, final Set<String> taxes,
+			String strCashAmtLimit, Map<String, Date> mapDateRange, final String strAcctSchemaId) {
+		final long start = System.currentTimeMillis();
+		final AggregatedAmounts amounts = new AggregatedAmounts();
+		for (AggregatedAmounts partition : aggregatePartitions(context, taxes, splitByQuarter(mapDateRange),
+				mapDateRange, strAcctSchemaId)) {
+			amounts.addAll(partition);
+		}
+		amounts.applyCashLimit(AEAT347AmountsAggregator.getCashLimit(strCashAmtLimit));
+		log4j.debug("AEAT 347 amounts aggregated in " + (System.currentTimeMillis() - start) + " ms");
+		return amounts;
+	}
+
+	/**
+	 * Computes at the same time the tax amounts of each of the given ranges, split
+	 * by groups of organizations, and the cash amounts of the cash range. The cash
+	 * limit is not applied
+	 *
+	 * @param ranges    ranges of dates included in a single calendar quarter
+	 * @param cashRange range of the cash amounts, null to not compute them
+	 * @return the tax amounts of each range, in the same order, followed by the cash
+	 *         amounts if they are computed
+	 */
+	List<AggregatedAmounts> aggregatePartitions(final AEAT347ReportRunContext context, final Set<String> taxes,
+			List<Map<String, Date>> ranges, final Map<String, Date> cashRange, final String strAcctSchemaId) {
+		final List<Set<String>> orgGroups = splitOrganizations(context.getOrganizations(), getThreads());
+
+		final List<Callable<AggregatedAmounts>> partitions = new ArrayList<Callable<AggregatedAmounts>>();
+		for (final Map<String, Date> range : ranges) {
+			for (Set<String> orgGroup : orgGroups) {
+				final AEAT347ReportRunContext partitionContext = context.forOrganizations(orgGroup);
+				partitions.add(new Callable<AggregatedAmounts>() {
+					@Override
+					public AggregatedAmounts call() {
+						return aggregator.aggregateTaxAmounts(partitionContext, taxes, range, strAcctSchemaId);
+					}
+				});
+			}
+		}
+		if (cashRange != null) {
+			partitions.add(new Callable<AggregatedAmounts>() {
+				@Override
+				public AggregatedAmounts call() {
+					final AggregatedAmounts cash = new AggregatedAmounts();
+					aggregator.addCashAmounts(cash, context, cashRange, strAcctSchemaId);
+					return cash;
+				}
+			});
+		}
+
+		final OBContext obContext = OBContext.getOBContext();
+		final String[] contextIds = { obContext.getUser().getId(), obContext.getRole().getId(),
+				obContext.getCurrentClient().getId(), obContext.getCurrentOrganization().getId() };
+		final List<Future<AggregatedAmounts>> results = new ArrayList<Future<AggregatedAmounts>>();
+		for (Callable<AggregatedAmounts> partition : partitions) {
+			results.add(submit(partition, contextIds));
+		}
+
+		// the partitions of each range are merged in a fixed order
+		final List<AggregatedAmounts> amounts = new ArrayList<AggregatedAmounts>();
+		try {
+			int result = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				final AggregatedAmounts rangeAmounts = new AggregatedAmounts();
+				for (int j = 0; j < orgGroups.size(); j++) {
+					rangeAmounts.addAll(results.get(result++).get());
+				}
+				amounts.add(rangeAmounts);
+			}
+			if (cashRange != null) {
+				amounts.add(results.get(result).get());
+			}
+		} catch (InterruptedException e) {
+			cancel(results);
+			Thread.currentThread().interrupt();
+			throw new OBException("AEAT 347 report computation interrupted", e);
+		} catch (ExecutionException e) {
+			cancel(results);
+			throw new OBException("Error computing the AEAT 347 report", e.getCause());
+		}
+		log4j.debug("AEAT 347 amounts of " + ranges.size() + " ranges computed with " + partitions.size()
+				+ " partitions");
+		return amounts;
+	}
+
+	/**
+	 * Runs the partition in the pool with a security context of its own, or in the
+	 * caller thread if the pool is full
+	 *
+	 * @param contextIds user, role, client and organization of the caller
+	 */
+	private Future<AggregatedAmounts> submit(final Callable<AggregatedAmounts> partition,
+			final String[] contextIds) {
+		try {
+			return getExecutor().submit(new Callable<AggregatedAmounts>() {
+				@Override
+				public AggregatedAmounts call() throws Exception {
+					// the context of the caller can change while the partition runs, it is
+					// not shared
+					OBContext.setOBContext(contextIds[0], contextIds[1], contextIds[2], contextIds[3]);
+					try {
+						return partition.call();
+					} finally {
+						// nothing has been modified, just release the connections. The
+						// default session is used to create the context
+						OBDal.getReadOnlyInstance().rollbackAndClose();
+						OBDal.getInstance().rollbackAndClose();
+						OBContext.setOBContext((OBContext) null);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log4j.debug("AEAT 347 executor is full, the partition will be run in the caller thread");
+			// the partition reads with the read-only session of the caller, which is not
+			// closed here
+			final FutureTask<AggregatedAmounts> task = new FutureTask<AggregatedAmounts>(partition);
+			task.run();
+			return task;
+		}
+	}
+
+	private static void cancel(List<Future<AggregatedAmounts>> results) {
+		for (Future<AggregatedAmounts> result : results) {
+			result.cancel(true);
+		}
+	}
+
+	/**
+	 * Splits the period in the calendar quarters it includes. The first and last
+	 * ranges are cut to the period
+	 */
+	static List<Map<String, Date>> splitByQuarter(Map<String, Date> mapDateRange) {
+		final List<Map<String, Date>> ranges = new ArrayList<Map<String, Date>>();
+		final Date endingDate = mapDateRange.get("endingDate");
+		Date startingDate = mapDateRange.get("startingDate");
+		while (startingDate.before(endingDate)) {
+			final Calendar cal = Calendar.getInstance();
+			cal.setTime(startingDate);
+			cal.set(cal.get(Calendar.YEAR), (cal.get(Calendar.MONTH) / 3) * 3, 1, 0, 0, 0);
+			cal.set(Calendar.MILLISECOND, 0);
+			cal.add(Calendar.MONTH, 3);
+			final Date quarterEnd = cal.getTime().before(endingDate) ? cal.getTime() : endingDate;
+			final Map<String, Date> range = new HashMap<String, Date>(2);
+			range.put("startingDate", startingDate);
+			range.put("endingDate", quarterEnd);
+			ranges.add(range);
+			startingDate = quarterEnd;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Splits the organizations in at most the given number of groups, always in the
+	 * same way for the same organizations
+	 */
+	static List<Set<String>> splitOrganizations(Set<String> organizations, int groups) {
+		final List<Set<String>> orgGroups = new ArrayList<Set<String>>();
+		int i = 0;
+		for (String orgId : new TreeSet<String>(organizations)) {
+			if (orgGroups.size() < groups) {
+				orgGroups.add(new LinkedHashSet<String>());
+			}
+			orgGroups.get(i++ % groups).add(orgId);
+		}
+		return orgGroups;
+	}
+
+	private static int getThreads() {
+		getExecutor();
+		return threads;
+	}
+
+	private static ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			synchronized (AEAT347ParallelAggregator.class) {
+				if (executor == null) {
+					final Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+					threads = getIntProperty(properties, THREADS_PROPERTY, DEFAULT_THREADS);
+					final int queueSize = getIntProperty(properties, QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+					final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+							new ArrayBlockingQueue<Runnable>(queueSize), new PartitionThreadFactory());
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private static int getIntProperty(Properties properties, String name, int defaultValue) {
+		final String value = properties.getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			final int intValue = Integer.parseInt(value.trim());
+			return intValue > 0 ? intValue : defaultValue;
+		} catch (NumberFormatException e) {
+			log4j.warn("Invalid value " + value + " for property " + name + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private static class PartitionThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "aeat347-partition-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
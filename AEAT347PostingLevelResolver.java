@@ -0,0 +1,266 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.financialmgmt.accounting.FIN_FinancialAccountAccounting;
+import org.openbravo.model.financialmgmt.payment.FIN_FinaccTransaction;
+import org.openbravo.model.financialmgmt.payment.FIN_Payment;
+import org.openbravo.model.financialmgmt.payment.FIN_Reconciliation;
+import org.openbravo.model.financialmgmt.payment.FinAccPaymentMethod;
+
+/**
+ * Determines, given the APR configuration, at which level the posting of a set of
+ * transactions takes place.
+ *
+ * The accounting configuration of the financial accounts, the payment method
+ * configuration of each account, the payments and the reconciliations of all the
+ * transactions are loaded with a few queries when the resolver is created. The
+ * level only depends on some attributes of the transaction, so it is computed once
+ * for each combination of them.
+ *
+ * @author openbravo
+ *
+ */
+class AEAT347PostingLevelResolver {
+
+	static final int PAYMENT = 1;
+	static final int TRANSACTION = 2;
+	static final int RECONCILIATION = 3;
+	static final int UNKNOWN = -1;
+
+	private static final List<String> PAYMENT_LEVEL_STATUSES = Arrays.asList("RPR", "PPM", "RDNC", "PWNC", "RPPC");
+	static Logger log4j = Logger.getLogger(AEAT347PostingLevelResolver.class);
+
+	private final Map<String, List<FIN_FinancialAccountAccounting>> accountingConfigurations = new HashMap<String, List<FIN_FinancialAccountAccounting>>();
+	private final Map<String, FinAccPaymentMethod> paymentMethods = new HashMap<String, FinAccPaymentMethod>();
+	private final Map<String, Integer> levels = new HashMap<String, Integer>();
+
+	AEAT347PostingLevelResolver(Collection<FIN_FinaccTransaction> transactions) {
+		OBContext.setAdminMode();
+		try {
+			final Set<String> accountIds = new LinkedHashSet<String>();
+			final Set<String> paymentIds = new LinkedHashSet<String>();
+			final Set<String> reconciliationIds = new LinkedHashSet<String>();
+			for (FIN_FinaccTransaction transaction : transactions) {
+				accountIds.add(transaction.getAccount().getId());
+				if (transaction.getFinPayment() != null) {
+					paymentIds.add(transaction.getFinPayment().getId());
+				}
+				if (transaction.getReconciliation() != null) {
+					reconciliationIds.add(transaction.getReconciliation().getId());
+				}
+			}
+
+			// the payments and reconciliations are loaded in the session, so that the lazy
+			// references of the transactions are resolved without further queries
+			final Set<String> paymentAccountIds = new LinkedHashSet<String>();
+			final Set<String> paymentMethodIds = new LinkedHashSet<String>();
+			for (FIN_Payment payment : loadByIds(FIN_Payment.class, "id", paymentIds)) {
+				paymentAccountIds.add(payment.getAccount().getId());
+				paymentMethodIds.add(payment.getPaymentMethod().getId());
+			}
+			loadByIds(FIN_Reconciliation.class, "id", reconciliationIds);
+
+			for (FIN_FinancialAccountAccounting accounting : loadByIds(FIN_FinancialAccountAccounting.class,
+					FIN_FinancialAccountAccounting.PROPERTY_ACCOUNT + ".id", accountIds)) {
+				final String accountId = accounting.getAccount().getId();
+				List<FIN_FinancialAccountAccounting> configurations = accountingConfigurations.get(accountId);
+				if (configurations == null) {
+					configurations = new ArrayList<FIN_FinancialAccountAccounting>();
+					accountingConfigurations.put(accountId, configurations);
+				}
+				configurations.add(accounting);
+			}
+
+			for (List<String> accountChunk : AEAT347ReportAPRDao.splitIds(paymentAccountIds)) {
+				final OBCriteria<FinAccPaymentMethod> obCriteria = OBDal.getInstance()
+						.createCriteria(FinAccPaymentMethod.class);
+				obCriteria.add(Restrictions.in(FinAccPaymentMethod.PROPERTY_ACCOUNT + ".id", accountChunk));
+				obCriteria.setFilterOnReadableClients(false);
+				obCriteria.setFilterOnReadableOrganization(false);
+				for (FinAccPaymentMethod paymentMethod : obCriteria.list()) {
+					// an account has few payment methods, the ones not used by the payments are
+					// discarded here instead of adding an unbounded in clause to the query
+					if (!paymentMethodIds.contains(paymentMethod.getPaymentMethod().getId())) {
+						continue;
+					}
+					final String key = paymentMethod.getAccount().getId() + "|"
+							+ paymentMethod.getPaymentMethod().getId();
+					if (!paymentMethods.containsKey(key)) {
+						paymentMethods.put(key, paymentMethod);
+					}
+				}
+			}
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
+	/**
+	 * Returns the level at which the given transaction is posted: {@link #PAYMENT},
+	 * {@link #TRANSACTION}, {@link #RECONCILIATION} or {@link #UNKNOWN}
+	 */
+	int getLevel(FIN_FinaccTransaction transaction) {
+		OBContext.setAdminMode();
+		try {
+			final FIN_Payment payment = transaction.getFinPayment();
+			FinAccPaymentMethod paymentMethod = null;
+			final StringBuffer key = new StringBuffer(transaction.getAccount().getId());
+			key.append("|").append(transaction.getTransactionType());
+			key.append("|").append(transaction.getGLItem() != null);
+			if (payment != null) {
+				paymentMethod = paymentMethods
+						.get(payment.getAccount().getId() + "|" + payment.getPaymentMethod().getId());
+				key.append("|").append(paymentMethod == null ? "" : paymentMethod.getId());
+				key.append("|").append(payment.isReceipt());
+				key.append("|").append(PAYMENT_LEVEL_STATUSES.contains(payment.getStatus()));
+				key.append("|").append(payment.getAmount().compareTo(BigDecimal.ZERO) == 0);
+			}
+			Integer level = levels.get(key.toString());
+			if (level == null) {
+				List<FIN_FinancialAccountAccounting> accounts = accountingConfigurations
+						.get(transaction.getAccount().getId());
+				if (accounts == null) {
+					accounts = new ArrayList<FIN_FinancialAccountAccounting>();
+				}
+				level = getLevel(accounts, paymentMethod, transaction.getTransactionType(),
+						transaction.getGLItem() != null, payment != null, payment != null && payment.isReceipt(),
+						payment != null && PAYMENT_LEVEL_STATUSES.contains(payment.getStatus()),
+						payment != null && payment.getAmount().compareTo(BigDecimal.ZERO) == 0);
+				levels.put(key.toString(), level);
+			}
+			return level;
+		} catch (Exception e) {
+			log4j.error("ERROR: " + e);
+			return UNKNOWN;
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
+	/**
+	 * Determines the posting level from the accounting configuration of the
+	 * financial account and, if the transaction has a payment, the configuration of
+	 * its payment method in the account of the payment
+	 */
+	static int getLevel(List<FIN_FinancialAccountAccounting> accounts, FinAccPaymentMethod paymentMethod,
+			String transactionType, boolean hasGLItem, boolean hasPayment, boolean receipt,
+			boolean paymentLevelStatus, boolean zeroAmount) {
+		if (paymentMethod != null) {
+			for (FIN_FinancialAccountAccounting account : accounts) {
+				if (receipt) {
+					if (("INT").equals(paymentMethod.getUponDepositUse()) && account.getInTransitPaymentAccountIN() != null)
+						return TRANSACTION;
+					else if (("DEP").equals(paymentMethod.getUponDepositUse()) && account.getDepositAccount() != null)
+						return TRANSACTION;
+					else if (("CLE").equals(paymentMethod.getUponDepositUse())
+							&& account.getClearedPaymentAccount() != null)
+						return TRANSACTION;
+					if (("INT").equals(paymentMethod.getINUponClearingUse())
+							&& account.getInTransitPaymentAccountIN() != null)
+						return RECONCILIATION;
+					else if (("DEP").equals(paymentMethod.getINUponClearingUse()) && account.getDepositAccount() != null)
+						return RECONCILIATION;
+					else if (("CLE").equals(paymentMethod.getINUponClearingUse())
+							&& account.getClearedPaymentAccount() != null)
+						return RECONCILIATION;
+				} else {
+					if (("INT").equals(paymentMethod.getUponWithdrawalUse()) && account.getFINOutIntransitAcct() != null)
+						return TRANSACTION;
+					else if (("WIT").equals(paymentMethod.getUponWithdrawalUse())
+							&& account.getWithdrawalAccount() != null)
+						return TRANSACTION;
+					else if (("CLE").equals(paymentMethod.getUponWithdrawalUse())
+							&& account.getClearedPaymentAccountOUT() != null)
+						return TRANSACTION;
+					if (("INT").equals(paymentMethod.getOUTUponClearingUse()) && account.getFINOutIntransitAcct() != null)
+						return RECONCILIATION;
+					else if (("WIT").equals(paymentMethod.getOUTUponClearingUse())
+							&& account.getWithdrawalAccount() != null)
+						return RECONCILIATION;
+					else if (("CLE").equals(paymentMethod.getOUTUponClearingUse())
+							&& account.getClearedPaymentAccountOUT() != null)
+						return RECONCILIATION;
+				}
+			}
+		}
+		for (FIN_FinancialAccountAccounting account : accounts) {
+			if (("BPD".equals(transactionType) && account.getDepositAccount() != null)
+					|| ("BPW".equals(transactionType) && account.getWithdrawalAccount() != null)
+					|| ("BF".equals(transactionType) && account.getWithdrawalAccount() != null))
+				return TRANSACTION;
+		}
+		if (hasGLItem) {
+			for (FIN_FinancialAccountAccounting account : accounts) {
+				if ("BPD".equals(transactionType) && account.getClearedPaymentAccount() != null) {
+					return RECONCILIATION;
+				} else if ("BPW".equals(transactionType) && account.getClearedPaymentAccountOUT() != null) {
+					return RECONCILIATION;
+				}
+			}
+		}
+		for (FIN_FinancialAccountAccounting account : accounts) {
+			if ("BF".equals(transactionType) && account.getClearedPaymentAccountOUT() != null) {
+				return RECONCILIATION;
+			}
+		}
+		if (hasPayment && paymentMethod != null && paymentLevelStatus) {
+			for (FIN_FinancialAccountAccounting account : accounts) {
+				if (receipt) {
+					if (("INT").equals(paymentMethod.getUponReceiptUse()) && account.getInTransitPaymentAccountIN() != null)
+						return PAYMENT;
+					else if (("DEP").equals(paymentMethod.getUponReceiptUse()) && account.getDepositAccount() != null)
+						return PAYMENT;
+					else if (("CLE").equals(paymentMethod.getUponReceiptUse())
+							&& account.getClearedPaymentAccount() != null)
+						return PAYMENT;
+				} else {
+					if (("INT").equals(paymentMethod.getUponPaymentUse()) && account.getFINOutIntransitAcct() != null)
+						return PAYMENT;
+					else if (("WIT").equals(paymentMethod.getUponPaymentUse()) && account.getWithdrawalAccount() != null)
+						return PAYMENT;
+					else if (("CLE").equals(paymentMethod.getUponPaymentUse())
+							&& account.getClearedPaymentAccountOUT() != null)
+						return PAYMENT;
+				}
+				if (zeroAmount) {
+					return PAYMENT;
+				}
+			}
+		}
+		return UNKNOWN;
+	}
+
+	private static <T> List<T> loadByIds(Class<T> clz, String property, Set<String> ids) {
+		final List<T> result = new ArrayList<T>();
+		for (List<String> chunk : AEAT347ReportAPRDao.splitIds(ids)) {
+			final OBCriteria<T> obCriteria = OBDal.getInstance().createCriteria(clz);
+			obCriteria.add(Restrictions.in(property, chunk));
+			obCriteria.setFilterOnActive(false);
+			obCriteria.setFilterOnReadableClients(false);
+			obCriteria.setFilterOnReadableOrganization(false);
+			obCriteria.addOrderBy("id", true);
+			result.addAll(obCriteria.list());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,44 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+/**
+ * Information of a product needed to write the lease records of the AEAT 347 file
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347ProductInfo {
+
+	private final String id;
+	private final String searchKey;
+	private final String name;
+	private final boolean leaseBusiness;
+
+	AEAT347ProductInfo(String id, String searchKey, String name, boolean leaseBusiness) {
+		this.id = id;
+		this.searchKey = searchKey;
+		this.name = name;
+		this.leaseBusiness = leaseBusiness;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getSearchKey() {
+		return searchKey;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isLeaseBusiness() {
+		return leaseBusiness;
+	}
+}
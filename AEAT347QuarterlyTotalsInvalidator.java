@@ -0,0 +1,79 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.util.Date;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.base.model.Property;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.model.financialmgmt.accounting.AccountingFact;
+import org.openbravo.model.financialmgmt.accounting.coa.AcctSchema;
+
+/**
+ * Discards the quarters stored by {@link AEAT347QuarterlyTotalsStore} whenever a
+ * fact line dated in them is created, modified or deleted through the DAL. When
+ * the accounting date or the accounting schema of a fact line is modified, both
+ * the previous and the new quarter are discarded.
+ *
+ * The posting process writes the fact lines with SQL and does not raise these
+ * events. Those changes, and the ones to the invoice taxes and conversion rates
+ * the amounts are computed from, are detected by the store with the fingerprint
+ * of each quarter.
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347QuarterlyTotalsInvalidator extends EntityPersistenceEventObserver {
+
+	private static Entity[] entities = { ModelProvider.getInstance().getEntity(AccountingFact.ENTITY_NAME) };
+
+	@Override
+	protected Entity[] getObservedEntities() {
+		return entities;
+	}
+
+	public void onSave(@Observes EntityNewEvent event) {
+		if (!isValidEvent(event) || !AEAT347QuarterlyTotalsStore.isAvailable()) {
+			return;
+		}
+		final AccountingFact fact = (AccountingFact) event.getTargetInstance();
+		invalidate(fact.getAccountingSchema(), fact.getAccountingDate());
+	}
+
+	public void onUpdate(@Observes EntityUpdateEvent event) {
+		if (!isValidEvent(event) || !AEAT347QuarterlyTotalsStore.isAvailable()) {
+			return;
+		}
+		final AccountingFact fact = (AccountingFact) event.getTargetInstance();
+		final Property schemaProperty = entities[0].getProperty(AccountingFact.PROPERTY_ACCOUNTINGSCHEMA);
+		final Property dateProperty = entities[0].getProperty(AccountingFact.PROPERTY_ACCOUNTINGDATE);
+		invalidate((AcctSchema) event.getPreviousState(schemaProperty), (Date) event.getPreviousState(dateProperty));
+		invalidate(fact.getAccountingSchema(), fact.getAccountingDate());
+	}
+
+	public void onDelete(@Observes EntityDeleteEvent event) {
+		if (!isValidEvent(event) || !AEAT347QuarterlyTotalsStore.isAvailable()) {
+			return;
+		}
+		final AccountingFact fact = (AccountingFact) event.getTargetInstance();
+		invalidate(fact.getAccountingSchema(), fact.getAccountingDate());
+	}
+
+	private void invalidate(AcctSchema acctSchema, Date accountingDate) {
+		if (acctSchema == null || accountingDate == null) {
+			return;
+		}
+		new AEAT347QuarterlyTotalsStore(new AEAT347ReportAPRDao()).invalidate(acctSchema.getId(), accountingDate);
+	}
+}
@@ -0,0 +1,473 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Keeps the amounts of the AEAT 347 report of the quarters that have already
+ * ended, so that a yearly execution only needs to read the fact lines and invoice
+ * taxes of the quarters that are still open.
+ *
+ * The totals are stored in the AEAT347_QUARTER_TOTAL table by organization,
+ * accounting schema, quarter and filter (the taxes, document types, lease
+ * products, organizations and clients the report was launched with). A quarter
+ * is stored the first time it is computed after it ends, together with a
+ * fingerprint of the data its amounts are computed from: the number and the
+ * last update of the fact lines of the accounting schema, of the invoice taxes
+ * and of the conversion rates used to convert them to euros. That data is
+ * mostly written with SQL, by the posting process among others, so the stored
+ * amounts are only used while the fingerprint is the same. The quarters are
+ * also discarded at once when a fact line is modified through the DAL, see
+ * {@link AEAT347QuarterlyTotalsInvalidator}.
+ *
+ * Each stored quarter has a single mark row. If two executions store the same
+ * quarter at the same time, both sets of rows are kept and the quarter is not
+ * used until it is stored again.
+ *
+ * The cash amounts are not stored. The cash limit applies to the whole year and a
+ * debt payment can be posted in more than one quarter, so they are always computed
+ * for the whole year.
+ *
+ * If the table is not available in the database, nothing is stored and every
+ * execution computes all the quarters. Its availability is checked again every
+ * {@value #AVAILABILITY_CHECK_MINUTES} minutes until the table is found.
+ *
+ * The quarters that are not stored and the cash amounts are computed with the
+ * {@link AEAT347ParallelAggregator} when it is enabled.
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347QuarterlyTotalsStore {
+
+	private static final String TABLE_NAME = "AEAT347_QUARTER_TOTAL";
+	private static final String QUARTER_MARK = "Q";
+	private static final String AMOUNT = "A";
+	private static final String LEASE_AMOUNT = "L";
+	private static final String INVOICE_AMOUNT = "I";
+	private static final int AVAILABILITY_CHECK_MINUTES = 10;
+
+	static Logger log4j = Logger.getLogger(AEAT347QuarterlyTotalsStore.class);
+
+	private static volatile boolean available;
+	private static volatile long availabilityChecked;
+
+	private final AEAT347ReportAPRDao reportDao;
+	private final AEAT347AmountsAggregator aggregator = new AEAT347AmountsAggregator();
+
+	public AEAT347QuarterlyTotalsStore(AEAT347ReportAPRDao reportDao) {
+		this.reportDao = reportDao;
+	}
+
+	/**
+	 * Returns the amounts of the whole year, reading the ended quarters from the
+	 * store and computing the rest
+	 *
+	 * @param context         information of the report execution
+	 * @param taxes           ids of the taxes to report
+	 * @param strCashAmtLimit String with the cash amount limit multiplied by 100
+	 * @param strYearId       c_year_id of the year reported
+	 * @param strAcctSchemaId accounting schema id
+	 * @return the amounts accumulated by business partner
+	 */
+	public AEAT347AmountsAggregator.AggregatedAmounts getYearAmounts(AEAT347ReportRunContext context,
+			Set<String> taxes, String strCashAmtLimit, String strYearId, String strAcctSchemaId) {
+		final AEAT347AmountsAggregator.AggregatedAmounts amounts = new AEAT347AmountsAggregator.AggregatedAmounts();
+		final String filterKey = getFilterKey(context, taxes);
+		final Date today = new Date();
+		final List<Map<String, Date>> pendingRanges = new ArrayList<Map<String, Date>>();
+		final List<String> pendingFingerprints = new ArrayList<String>();
+		for (int quarter = 1; quarter <= 4; quarter++) {
+			final Map<String, Date> quarterRange = getDateRange(strYearId, quarter);
+			final boolean ended = !quarterRange.get("endingDate").after(today);
+			AEAT347AmountsAggregator.AggregatedAmounts quarterAmounts = null;
+			String fingerprint = null;
+			if (ended && isAvailable()) {
+				// taken before computing the quarter, so a line posted meanwhile discards it
+				fingerprint = getFingerprint(strAcctSchemaId, quarterRange);
+				quarterAmounts = load(context.getOrgId(), strAcctSchemaId, filterKey, quarterRange.get("startingDate"),
+						fingerprint);
+			}
+			if (quarterAmounts == null) {
+				pendingRanges.add(quarterRange);
+				pendingFingerprints.add(fingerprint);
+			} else {
+				amounts.addAll(quarterAmounts);
+			}
+		}
+
+		final Map<String, Date> yearRange = getDateRange(strYearId, 0);
+		final List<AEAT347AmountsAggregator.AggregatedAmounts> computed;
+		if (AEAT347ParallelAggregator.isEnabled()) {
+			computed = new AEAT347ParallelAggregator().aggregatePartitions(context, taxes, pendingRanges, yearRange,
+					strAcctSchemaId);
+		} else {
+			computed = new ArrayList<AEAT347AmountsAggregator.AggregatedAmounts>();
+			for (Map<String, Date> quarterRange : pendingRanges) {
+				computed.add(aggregator.aggregateTaxAmounts(context, taxes, quarterRange, strAcctSchemaId));
+			}
+			final AEAT347AmountsAggregator.AggregatedAmounts cash = new AEAT347AmountsAggregator.AggregatedAmounts();
+			aggregator.addCashAmounts(cash, context, yearRange, strAcctSchemaId);
+			computed.add(cash);
+		}
+		for (int i = 0; i < pendingRanges.size(); i++) {
+			if (pendingFingerprints.get(i) != null) {
+				save(context, strAcctSchemaId, filterKey, pendingRanges.get(i).get("startingDate"),
+						pendingFingerprints.get(i), computed.get(i));
+			}
+			amounts.addAll(computed.get(i));
+		}
+		// the cash amounts are the last ones computed
+		amounts.addAll(computed.get(pendingRanges.size()));
+		amounts.applyCashLimit(AEAT347AmountsAggregator.getCashLimit(strCashAmtLimit));
+		return amounts;
+	}
+
+	/**
+	 * Compares the stored quarters of the year with a computation from the fact
+	 * lines. The quarters that do not match are discarded from the store
+	 *
+	 * @return a description of each difference found, empty if the store is
+	 *         consistent
+	 */
+	public List<String> checkConsistency(AEAT347ReportRunContext context, Set<String> taxes, String strYearId,
+			String strAcctSchemaId) {
+		final List<String> differences = new ArrayList<String>();
+		if (!isAvailable()) {
+			return differences;
+		}
+		final String filterKey = getFilterKey(context, taxes);
+		for (int quarter = 1; quarter <= 4; quarter++) {
+			final Map<String, Date> quarterRange = getDateRange(strYearId, quarter);
+			final Date quarterStart = quarterRange.get("startingDate");
+			final AEAT347AmountsAggregator.AggregatedAmounts stored = load(context.getOrgId(), strAcctSchemaId,
+					filterKey, quarterStart, getFingerprint(strAcctSchemaId, quarterRange));
+			if (stored == null) {
+				continue;
+			}
+			final AEAT347AmountsAggregator.AggregatedAmounts computed = aggregator.aggregateTaxAmounts(context, taxes,
+					quarterRange, strAcctSchemaId);
+			final int previousDifferences = differences.size();
+			compare("Quarter " + quarter + " amounts", stored.getAmounts(), computed.getAmounts(), differences);
+			compare("Quarter " + quarter + " lease amounts", stored.getLeaseAmounts(), computed.getLeaseAmounts(),
+					differences);
+			compare("Quarter " + quarter + " invoice amounts", stored.getInvoiceAmounts(),
+					computed.getInvoiceAmounts(), differences);
+			if (differences.size() > previousDifferences) {
+				log4j.warn("AEAT 347 stored totals of quarter " + quarter + " of organization " + context.getOrgId()
+						+ " do not match the fact lines, they are discarded");
+				delete(context.getOrgId(), strAcctSchemaId, filterKey, quarterStart);
+			}
+		}
+		return differences;
+	}
+
+	private static void compare(String description, List<Object[]> stored, List<Object[]> computed,
+			List<String> differences) {
+		if (stored.size() != computed.size()) {
+			differences.add(description + ": " + stored.size() + " stored rows, " + computed.size() + " computed rows");
+			return;
+		}
+		for (int i = 0; i < stored.size(); i++) {
+			final Object[] storedRow = stored.get(i);
+			final Object[] computedRow = computed.get(i);
+			for (int j = 0; j < storedRow.length; j++) {
+				if (!sameValue(storedRow[j], computedRow[j])) {
+					differences.add(description + ": row " + i + " column " + j + " stored " + storedRow[j]
+							+ ", computed " + computedRow[j]);
+					break;
+				}
+			}
+		}
+	}
+
+	private static boolean sameValue(Object stored, Object computed) {
+		if (stored instanceof BigDecimal && computed instanceof BigDecimal) {
+			return ((BigDecimal) stored).compareTo((BigDecimal) computed) == 0;
+		}
+		return stored == null ? computed == null : stored.equals(computed);
+	}
+
+	/**
+	 * Discards the stored quarter of the given accounting schema that includes the
+	 * given accounting date, for all the organizations and filters
+	 */
+	public void invalidate(String strAcctSchemaId, Date accountingDate) {
+		if (!isAvailable() || strAcctSchemaId == null || accountingDate == null) {
+			return;
+		}
+		final Calendar cal = Calendar.getInstance();
+		cal.setTime(accountingDate);
+		final int firstMonth = (cal.get(Calendar.MONTH) / 3) * 3;
+		cal.set(cal.get(Calendar.YEAR), firstMonth, 1, 0, 0, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		final String sql = "DELETE FROM " + TABLE_NAME + " WHERE C_ACCTSCHEMA_ID = ? AND QUARTER_START = ?";
+		try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+			ps.setString(1, strAcctSchemaId);
+			ps.setTimestamp(2, new Timestamp(cal.getTimeInMillis()));
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			throw new OBException("Error discarding AEAT 347 quarter totals", e);
+		}
+	}
+
+	/**
+	 * @return the number and the last update of the rows the amounts of the
+	 *         quarter are computed from: the fact lines of the accounting schema
+	 *         dated in the quarter, the taxes of the invoices of its client dated in
+	 *         the quarter, the conversion rates valid in the quarter and the
+	 *         conversion rates of those invoices
+	 */
+	private static String getFingerprint(String strAcctSchemaId, Map<String, Date> quarterRange) {
+		final String schemaClient = "(SELECT AD_CLIENT_ID FROM C_ACCTSCHEMA WHERE C_ACCTSCHEMA_ID = ?)";
+		final String[] queries = {
+				"SELECT COUNT(*), MAX(UPDATED) FROM FACT_ACCT"
+						+ " WHERE C_ACCTSCHEMA_ID = ? AND DATEACCT >= ? AND DATEACCT < ?",
+				"SELECT COUNT(*), MAX(IT.UPDATED) FROM C_INVOICETAX IT"
+						+ " JOIN C_INVOICE I ON I.C_INVOICE_ID = IT.C_INVOICE_ID"
+						+ " WHERE I.AD_CLIENT_ID = " + schemaClient + " AND I.DATEACCT >= ? AND I.DATEACCT < ?",
+				"SELECT COUNT(*), MAX(UPDATED) FROM C_CONVERSION_RATE"
+						+ " WHERE AD_CLIENT_ID IN ('0', " + schemaClient + ") AND VALIDTO >= ? AND VALIDFROM < ?",
+				"SELECT COUNT(*), MAX(R.UPDATED) FROM C_CONVERSION_RATE_DOCUMENT R"
+						+ " JOIN C_INVOICE I ON I.C_INVOICE_ID = R.C_INVOICE_ID"
+						+ " WHERE I.AD_CLIENT_ID = " + schemaClient + " AND I.DATEACCT >= ? AND I.DATEACCT < ?" };
+		final StringBuffer fingerprint = new StringBuffer();
+		for (String sql : queries) {
+			try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+				ps.setString(1, strAcctSchemaId);
+				ps.setTimestamp(2, new Timestamp(quarterRange.get("startingDate").getTime()));
+				ps.setTimestamp(3, new Timestamp(quarterRange.get("endingDate").getTime()));
+				try (ResultSet rs = ps.executeQuery()) {
+					rs.next();
+					final Timestamp lastUpdate = rs.getTimestamp(2);
+					if (fingerprint.length() > 0) {
+						fingerprint.append("|");
+					}
+					fingerprint.append(rs.getLong(1)).append(":").append(lastUpdate == null ? "" : lastUpdate.getTime());
+				}
+			} catch (SQLException e) {
+				throw new OBException("Error reading the fingerprint of the AEAT 347 quarter", e);
+			}
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * @return the stored amounts of the quarter, null if it is not stored, it has
+	 *         been stored more than once or the data it is computed from has
+	 *         changed since it was stored
+	 */
+	private AEAT347AmountsAggregator.AggregatedAmounts load(String strOrgId, String strAcctSchemaId,
+			String filterKey, Date quarterStart, String fingerprint) {
+		final String sql = "SELECT BUCKET, C_BPARTNER_ID, M_PRODUCT_ID, RATE, C_TAX_ID, DOCCATEGORY, ISREVERSAL,"
+				+ " AMOUNT1, AMOUNT2, REF_ID, ISRECALCULATE, FINGERPRINT FROM " + TABLE_NAME
+				+ " WHERE AD_ORG_ID = ? AND C_ACCTSCHEMA_ID = ? AND FILTER_KEY = ? AND QUARTER_START = ?";
+		try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+			ps.setString(1, strOrgId);
+			ps.setString(2, strAcctSchemaId);
+			ps.setString(3, filterKey);
+			ps.setTimestamp(4, new Timestamp(quarterStart.getTime()));
+			int marks = 0;
+			boolean current = false;
+			final AEAT347AmountsAggregator.AggregatedAmounts amounts = new AEAT347AmountsAggregator.AggregatedAmounts();
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					final String bucket = rs.getString(1);
+					if (QUARTER_MARK.equals(bucket)) {
+						marks++;
+						current = fingerprint.equals(rs.getString(12));
+					} else if (AMOUNT.equals(bucket)) {
+						amounts.addAmount(rs.getString(2), "", rs.getBigDecimal(4), rs.getBigDecimal(8),
+								rs.getBigDecimal(9), rs.getString(10));
+					} else if (LEASE_AMOUNT.equals(bucket)) {
+						amounts.addLeaseAmount(rs.getString(2), rs.getString(3), rs.getBigDecimal(4),
+								rs.getBigDecimal(8), rs.getBigDecimal(9), rs.getString(10));
+					} else if (INVOICE_AMOUNT.equals(bucket)) {
+						amounts.addInvoiceAmount(rs.getString(2), rs.getString(6), "Y".equals(rs.getString(7)),
+								rs.getString(5), rs.getBigDecimal(8), rs.getBigDecimal(9), rs.getString(10),
+								"Y".equals(rs.getString(11)));
+					}
+				}
+			}
+			if (marks > 1) {
+				// stored by two executions at the same time, its rows are duplicated
+				log4j.warn("AEAT 347 totals of the quarter starting " + quarterStart + " of organization " + strOrgId
+						+ " are stored " + marks + " times, they are computed again");
+				return null;
+			}
+			// the quarter mark distinguishes a quarter without amounts from one not stored
+			return marks == 1 && current ? amounts : null;
+		} catch (SQLException e) {
+			throw new OBException("Error reading AEAT 347 quarter totals", e);
+		}
+	}
+
+	private void save(AEAT347ReportRunContext context, String strAcctSchemaId, String filterKey, Date quarterStart,
+			String fingerprint, AEAT347AmountsAggregator.AggregatedAmounts amounts) {
+		delete(context.getOrgId(), strAcctSchemaId, filterKey, quarterStart);
+		final String sql = "INSERT INTO " + TABLE_NAME + " (AEAT347_QUARTER_TOTAL_ID, AD_CLIENT_ID, AD_ORG_ID,"
+				+ " ISACTIVE, CREATED, CREATEDBY, UPDATED, UPDATEDBY, C_ACCTSCHEMA_ID, FILTER_KEY, QUARTER_START,"
+				+ " BUCKET, C_BPARTNER_ID, M_PRODUCT_ID, RATE, C_TAX_ID, DOCCATEGORY, ISREVERSAL, AMOUNT1, AMOUNT2,"
+				+ " REF_ID, ISRECALCULATE, FINGERPRINT)"
+				+ " VALUES (get_uuid(), ?, ?, 'Y', ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+		try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+			// the values shared by all the rows are set once, they are kept for every
+			// batched row
+			final Timestamp now = new Timestamp(System.currentTimeMillis());
+			final String userId = OBContext.getOBContext().getUser().getId();
+			ps.setString(1, context.getClientId());
+			ps.setString(2, context.getOrgId());
+			ps.setTimestamp(3, now);
+			ps.setString(4, userId);
+			ps.setTimestamp(5, now);
+			ps.setString(6, userId);
+			ps.setString(7, strAcctSchemaId);
+			ps.setString(8, filterKey);
+			ps.setTimestamp(9, new Timestamp(quarterStart.getTime()));
+			addRow(ps, QUARTER_MARK, null, null, null, null, null, null, null, null, null, null, fingerprint);
+			for (Object[] row : amounts.getAmounts()) {
+				addRow(ps, AMOUNT, (String) row[2], null, (BigDecimal) row[4], null, null, null, (BigDecimal) row[0],
+						(BigDecimal) row[1], (String) row[5], null, null);
+			}
+			for (Object[] row : amounts.getLeaseAmounts()) {
+				addRow(ps, LEASE_AMOUNT, (String) row[2], (String) row[3], (BigDecimal) row[4], null, null, null,
+						(BigDecimal) row[0], (BigDecimal) row[1], (String) row[5], null, null);
+			}
+			for (Object[] row : amounts.getInvoiceAmountsWithRecalculate()) {
+				addRow(ps, INVOICE_AMOUNT, (String) row[2], null, null, (String) row[6], (String) row[4],
+						Boolean.TRUE.equals(row[5]) ? "Y" : "N", (BigDecimal) row[0], (BigDecimal) row[1],
+						(String) row[7], Boolean.TRUE.equals(row[8]) ? "Y" : "N", null);
+			}
+			ps.executeBatch();
+		} catch (SQLException e) {
+			throw new OBException("Error storing AEAT 347 quarter totals", e);
+		}
+	}
+
+	private static void addRow(PreparedStatement ps, String bucket, String bpId, String productId, BigDecimal rate,
+			String taxId, String docCategory, String reversal, BigDecimal amount1, BigDecimal amount2, String refId,
+			String recalculate, String fingerprint) throws SQLException {
+		ps.setString(10, bucket);
+		ps.setString(11, bpId);
+		ps.setString(12, productId);
+		ps.setBigDecimal(13, rate);
+		ps.setString(14, taxId);
+		ps.setString(15, docCategory);
+		ps.setString(16, reversal);
+		ps.setBigDecimal(17, amount1);
+		ps.setBigDecimal(18, amount2);
+		ps.setString(19, refId);
+		ps.setString(20, recalculate);
+		ps.setString(21, fingerprint);
+		ps.addBatch();
+	}
+
+	private void delete(String strOrgId, String strAcctSchemaId, String filterKey, Date quarterStart) {
+		final String sql = "DELETE FROM " + TABLE_NAME
+				+ " WHERE AD_ORG_ID = ? AND C_ACCTSCHEMA_ID = ? AND FILTER_KEY = ? AND QUARTER_START = ?";
+		try (PreparedStatement ps = getConnection().prepareStatement(sql)) {
+			ps.setString(1, strOrgId);
+			ps.setString(2, strAcctSchemaId);
+			ps.setString(3, filterKey);
+			ps.setTimestamp(4, new Timestamp(quarterStart.getTime()));
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			throw new OBException("Error discarding AEAT 347 quarter totals", e);
+		}
+	}
+
+	private Map<String, Date> getDateRange(String strYearId, int quarter) {
+		try {
+			return reportDao.getDateRange(strYearId, quarter);
+		} catch (ParseException e) {
+			throw new OBException("Error computing the dates of the year " + strYearId, e);
+		}
+	}
+
+	/**
+	 * Identifies the filter the report was launched with: the stored amounts of a
+	 * quarter are only valid for the same taxes, document types, lease products,
+	 * organizations and clients
+	 */
+	private static String getFilterKey(AEAT347ReportRunContext context, Set<String> taxes) {
+		final StringBuffer filter = new StringBuffer();
+		filter.append(new TreeSet<String>(taxes)).append("|");
+		filter.append(new TreeSet<String>(context.getDocTypeIds())).append("|");
+		filter.append(new TreeSet<String>(context.getLeaseProductIds())).append("|");
+		filter.append(new TreeSet<String>(context.getOrganizations())).append("|");
+		filter.append(new TreeSet<String>(context.getReadableClients()));
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1")
+					.digest(filter.toString().getBytes(StandardCharsets.UTF_8));
+			final StringBuffer key = new StringBuffer();
+			for (byte b : digest) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new OBException(e);
+		}
+	}
+
+	private static Connection getConnection() {
+		return OBDal.getInstance().getConnection(false);
+	}
+
+	/**
+	 * Returns true if the table of the store exists in the database. While it is not
+	 * found, it is checked again every {@value #AVAILABILITY_CHECK_MINUTES} minutes
+	 */
+	static boolean isAvailable() {
+		final long now = System.currentTimeMillis();
+		if (!available && now - availabilityChecked > TimeUnit.MINUTES.toMillis(AVAILABILITY_CHECK_MINUTES)) {
+			availabilityChecked = now;
+			boolean exists = false;
+			try {
+				final DatabaseMetaData metadata = getConnection().getMetaData();
+				for (String tableName : new String[] { TABLE_NAME, TABLE_NAME.toLowerCase() }) {
+					try (ResultSet rs = metadata.getTables(null, null, tableName, new String[] { "TABLE" })) {
+						if (rs.next()) {
+							exists = true;
+							break;
+						}
+					}
+				}
+			} catch (SQLException e) {
+				log4j.error("Error checking the AEAT 347 quarter totals table", e);
+			}
+			if (!exists) {
+				log4j.info("Table " + TABLE_NAME + " not found, AEAT 347 quarter totals will not be stored");
+			}
+			available = exists;
+		}
+		return available;
+	}
+}
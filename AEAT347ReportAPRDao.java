@@ -11,11 +11,15 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.hibernate.Query;
@@ -25,7 +29,6 @@ import org.hibernate.Session;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.Restrictions;
 import org.openbravo.dal.core.OBContext;
-import org.openbravo.dal.security.OrganizationStructureProvider;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.dal.service.OBQuery;
@@ -34,15 +37,12 @@ import org.openbravo.model.common.businesspartner.Location;
 import org.openbravo.model.common.enterprise.Organization;
 import org.openbravo.model.common.enterprise.OrganizationInformation;
 import org.openbravo.model.common.plm.Product;
-import org.openbravo.model.financialmgmt.accounting.FIN_FinancialAccountAccounting;
 import org.openbravo.model.financialmgmt.calendar.Year;
 import org.openbravo.model.financialmgmt.payment.DebtPayment;
 import org.openbravo.model.financialmgmt.payment.FIN_FinaccTransaction;
 import org.openbravo.model.financialmgmt.payment.FIN_FinancialAccount;
 import org.openbravo.model.financialmgmt.payment.FIN_Payment;
-import org.openbravo.model.financialmgmt.payment.FinAccPaymentMethod;
 import org.openbravo.module.aeat347apr.es.model.AEAT347_DocumentType;
-import org.openbravo.module.aeat347apr.es.utility.Utility347;
 import org.openbravo.module.taxreportlauncher.TaxParameter;
 import org.openbravo.module.taxreportlauncher.Dao.TaxReportLauncherDao;
 import org.openbravo.module.taxreportlauncher.Exception.OBTL_Exception;
@@ -57,147 +57,174 @@ import org.openbravo.module.taxreportlauncher.Exception.OBTL_Exception;
 public class AEAT347ReportAPRDao {
 
 	public TaxReportLauncherDao dao = new TaxReportLauncherDao();
-	private final int PAYMENT = 1;
-	private final int TRANSACTION = 2;
-	private final int RECONCILIATION = 3;
+	private final int PAYMENT = AEAT347PostingLevelResolver.PAYMENT;
+	private final int TRANSACTION = AEAT347PostingLevelResolver.TRANSACTION;
+	private final int RECONCILIATION = AEAT347PostingLevelResolver.RECONCILIATION;
+	static final int MAX_IDS_PER_QUERY = 1000;
 	static Logger log4j = Logger.getLogger(AEAT347ReportAPRDao.class);
 
 	public AEAT347ReportAPRDao() {
 	}
 
 	/**
-	 * 
+	 *
 	 * @param strReportId report id
 	 * @param value       , value2 (optional) name of the value/s (SearchKey) given
 	 *                    to the tax report parameter
-	 * @return String set of ids (in a where-in format)
+	 * @return ids of the taxes of the given tax report parameters
 	 */
-	public String getTaxes(String strReportId, String value1, String value2) {
+	public Set<String> getTaxIds(String strReportId, String value1, String value2) {
 		try {
 			OBContext.setAdminMode(true);
 
 			final StringBuffer where = new StringBuffer();
-			where.append(" as parameter where (parameter.taxReportParameter.searchKey like '" + value1 + "'");
+			where.append(" as parameter where (parameter.taxReportParameter.searchKey like :value1");
 			if (!value2.equals(""))
-				where.append(" or parameter.taxReportParameter.searchKey like '" + value2 + "' ");
+				where.append(" or parameter.taxReportParameter.searchKey like :value2 ");
 
-			where.append(" ) and parameter.taxReportParameter.taxReportGroup.taxReport.id ='" + strReportId + "' ");
+			where.append(" ) and parameter.taxReportParameter.taxReportGroup.taxReport.id = :reportId ");
 			final OBQuery<TaxParameter> query = OBDal.getInstance().createQuery(TaxParameter.class, where.toString());
+			query.setNamedParameter("value1", value1);
+			if (!value2.equals(""))
+				query.setNamedParameter("value2", value2);
+			query.setNamedParameter("reportId", strReportId);
 
-			String strOut = "in (";
+			final Set<String> taxes = new LinkedHashSet<String>();
 			for (TaxParameter tp : query.list()) {
-				strOut += "'" + tp.getTax().getId() + "', ";
+				taxes.add(tp.getTax().getId());
 			}
-			strOut = strOut.substring(0, strOut.length() - 2) + ")";
-			return (strOut.equals("in)")) ? "" : strOut;
+			return Collections.unmodifiableSet(taxes);
 		} finally {
 			OBContext.restorePreviousMode();
 		}
 	}
 
 	/**
-	 * 
+	 * @deprecated use {@link #getTaxIds(String, String, String)}
+	 * @return String set of ids (in a where-in format)
+	 */
+	@Deprecated
+	public String getTaxes(String strReportId, String value1, String value2) {
+		return createINClause(getTaxIds(strReportId, value1, value2));
+	}
+
+	/**
+	 *
 	 * @param strReport ID of the report for which document types will be retrieved
-	 * @return set of ids (in a where-in format)
+	 * @return ids of the document types that should be reported
 	 */
-	public String getDocTypes(String strReport) {
+	public Set<String> getDocTypeIds(String strReport) {
 		try {
 			OBContext.setAdminMode(true);
-			String strOut = "in (";
+			final Set<String> docTypes = new LinkedHashSet<String>();
 			final OBCriteria<AEAT347_DocumentType> criteria = OBDal.getInstance()
 					.createCriteria(AEAT347_DocumentType.class);
 			criteria.add(Expression.eq("obtlTaxReport.id", strReport));
 			for (AEAT347_DocumentType type : criteria.list()) {
-				strOut += "'" + type.getDocumentType().getId() + "', ";
+				docTypes.add(type.getDocumentType().getId());
 			}
-			strOut = strOut.substring(0, strOut.length() - 2) + ")";
-			return strOut;
+			return Collections.unmodifiableSet(docTypes);
 		} finally {
 			OBContext.restorePreviousMode();
 		}
 	}
 
 	/**
-	 * 
-	 * @param strTaxesInStatement1 main string for relation of taxes id
-	 * @param strTaxesInStatement2 optional string for relation of taxes id
-	 * @param strDocTypes          relation of doc type ids that should be reported
-	 * @param strProductFiltering  whether to filter products by those of lease type
-	 *                             or not
-	 * @param mapDateRange         map with initial date and end date (+1 day) of
-	 *                             the year
-	 * @param strAcctSchemaId      accounting schema id
-	 * @param strOrgId             organization id
+	 * @deprecated use {@link #getDocTypeIds(String)}
+	 * @return set of ids (in a where-in format)
+	 */
+	@Deprecated
+	public String getDocTypes(String strReport) {
+		return createINClause(getDocTypeIds(strReport));
+	}
+
+	/**
+	 * @param strProductFiltering "Lease" to filter products by those of lease type,
+	 *                            any other non empty value to group the amounts by
+	 *                            product without filtering them, empty to not group
+	 *                            them by product
+	 * @deprecated use
+	 *             {@link #getAmounts(Set, Set, boolean, Map, String, String)}
+	 */
+	@Deprecated
+	public List<Object[]> getAmounts(String strTaxesInStatement1, String strTaxesInStatement2, String strDocTypes,
+			String strProductFiltering, Map<String, Date> mapDateRange, String strOrgId, String strAcctSchemaId) {
+		return getAmounts(new AEAT347ReportRunContext(this, strOrgId, parseDocTypes(strDocTypes)),
+				parseINClauses(strTaxesInStatement1, strTaxesInStatement2), strProductFiltering.equals("Lease"),
+				!strProductFiltering.equals(""), mapDateRange, strAcctSchemaId);
+	}
+
+	/**
+	 *
+	 * @param taxes          ids of the taxes to report
+	 * @param docTypes       ids of the doc types that should be reported, all of
+	 *                       them if empty
+	 * @param leaseFiltering whether to filter products by those of lease type or
+	 *                       not
+	 * @param mapDateRange   map with initial date and end date (+1 day) of the year
+	 * @param strOrgId       organization id
+	 * @param strAcctSchemaId accounting schema id
 	 * @return List of objects array (BigDecimal, BigDecimal, Float, String) with
 	 *         all business partners and amounts information: [0]: debit taxable
 	 *         amount [1]: credit taxable amount [2]: business partner id [3]:
 	 *         product id or empty string [4]: rate of the tax applied [5]: one
 	 *         fact_acct_id of the lines involved in the entry
 	 */
+	public List<Object[]> getAmounts(Set<String> taxes, Set<String> docTypes, boolean leaseFiltering,
+			Map<String, Date> mapDateRange, String strOrgId, String strAcctSchemaId) {
+		return getAmounts(new AEAT347ReportRunContext(this, strOrgId, docTypes), taxes, leaseFiltering, mapDateRange,
+				strAcctSchemaId);
+	}
+
+	/**
+	 *
+	 * @param context        information of the report execution
+	 * @param taxes          ids of the taxes to report
+	 * @param leaseFiltering whether to filter products by those of lease type or
+	 *                       not
+	 * @param mapDateRange   map with initial date and end date (+1 day) of the year
+	 * @param strAcctSchemaId accounting schema id
+	 * @return same rows as
+	 *         {@link #getAmounts(Set, Set, boolean, Map, String, String)}
+	 */
+	public List<Object[]> getAmounts(AEAT347ReportRunContext context, Set<String> taxes, boolean leaseFiltering,
+			Map<String, Date> mapDateRange, String strAcctSchemaId) {
+		return getAmounts(context, taxes, leaseFiltering, leaseFiltering, mapDateRange, strAcctSchemaId);
+	}
+
+	/**
+	 * @param groupByProduct whether to group the amounts by product. The product
+	 *                       id is only returned when leaseFiltering is true
+	 */
 	@SuppressWarnings("unchecked")
-	public List<Object[]> getAmounts(String strTaxesInStatement1, String strTaxesInStatement2, String strDocTypes,
-			String strProductFiltering, Map<String, Date> mapDateRange, String strOrgId, String strAcctSchemaId) {
+	private List<Object[]> getAmounts(AEAT347ReportRunContext context, Set<String> taxes, boolean leaseFiltering,
+			boolean groupByProduct, Map<String, Date> mapDateRange, String strAcctSchemaId) {
 		try {
 			OBContext.setAdminMode(true);
 
-			final Organization org = dao.getOrg(strOrgId);
-			OrganizationStructureProvider osp = OBContext.getOBContext()
-					.getOrganizationStructureProvider(org.getClient().getId());
-			final String inClauseOrgs = Utility347.createINClauseForOrgs(osp.getChildTree(org.getId(), true));
-
-			// With this query, amounts for each entry are calculated. Using the filter of
-			// documentType
-			// and
-			// taxId, only those operations that must go into the file will be taken into
-			// account.
-			final StringBuffer sql = new StringBuffer();
-			String strWhereClause = "";
-			if (strProductFiltering.equals("Lease")) {
-				strWhereClause = getLeaseProducts(strOrgId);
-				if (strWhereClause.equals(""))
+			final Set<String> docTypes = context.getDocTypeIds();
+			Set<String> leaseProducts = Collections.emptySet();
+			if (leaseFiltering) {
+				leaseProducts = context.getLeaseProductIds();
+				if (leaseProducts.isEmpty())
 					return new ArrayList<Object[]>();
 			}
-
-			sql.append(" select sum(fa.debit) as debit, sum(fa.credit) as credit");
-			sql.append(", fa.businessPartner.id as businessPartner");
-			if (strWhereClause.equals(""))
-				sql.append(", '' as product");
-			else
-				sql.append(", fa.product.id as product");
-			sql.append(", fa.tax.rate as rate");
-			sql.append(", min(fa.id) as factAcctId");
-			sql.append(" from FinancialMgmtAccountingFact as fa ");
-			sql.append(" where fa.client " + OBDal.getInstance().getReadableClientsInClause());
-			sql.append(" and fa.organization in (" + inClauseOrgs + ") ");
-			sql.append(" and fa.active='Y'");
-			sql.append(" and fa.accountingDate >= :startingDate");
-			sql.append(" and fa.accountingDate < :endingDate");
-			sql.append(" and fa.accountingSchema.id = '" + strAcctSchemaId + "' ");
-			if (strDocTypes.length() > 3)
-				sql.append(" and fa.documentType " + strDocTypes);
-			sql.append(" and fa.table not in ('318', '145')");
-			sql.append(" and fa.type not in ('O', 'C','R')");
-			sql.append(" and fa.businessPartner.id is not null ");
-			sql.append(" and (fa.tax " + strTaxesInStatement1);
-			if (strTaxesInStatement2.equals(""))
-				sql.append(")");
-			else
-				sql.append("or fa.tax " + strTaxesInStatement2 + ")");
-			if (!strWhereClause.equals(""))
-				sql.append(" and fa.product " + getLeaseProducts(strOrgId));
-			if (strProductFiltering.equals("")) {
-				sql.append(" group by fa.businessPartner, fa.tax.rate");
-				sql.append(" order by fa.businessPartner");
-			} else {
-				sql.append(" group by fa.businessPartner, fa.product.id, fa.tax.rate");
-				sql.append(" order by fa.businessPartner, fa.product.id");
-			}
+			if (taxes.isEmpty())
+				return new ArrayList<Object[]>();
 
 			final Session session = OBDal.getInstance().getSession();
-			final Query query = session.createQuery(sql.toString());
+			final Query query = session.createQuery(getAmountsHql(!docTypes.isEmpty(), leaseFiltering, groupByProduct));
 
+			query.setParameterList("clients", context.getReadableClients());
+			query.setParameterList("orgs", context.getOrganizations());
 			query.setParameter("startingDate", mapDateRange.get("startingDate"));
 			query.setParameter("endingDate", mapDateRange.get("endingDate"));
+			query.setParameter("acctSchemaId", strAcctSchemaId);
+			if (!docTypes.isEmpty())
+				query.setParameterList("docTypes", docTypes);
+			query.setParameterList("taxes", taxes);
+			if (leaseFiltering)
+				query.setParameterList("leaseProducts", leaseProducts);
 			List lOut = query.list();
 
 			return lOut;
@@ -206,67 +233,88 @@ public class AEAT347ReportAPRDao {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * The text of the query only depends on the flags, so each of its variants is
+	 * parsed once by Hibernate and prepared once by the database
+	 */
+	private static String getAmountsHql(boolean filterDocTypes, boolean leaseFiltering, boolean groupByProduct) {
+		// With this query, amounts for each entry are calculated. Using the filter of
+		// documentType
+		// and
+		// taxId, only those operations that must go into the file will be taken into
+		// account.
+		final StringBuffer sql = new StringBuffer();
+		sql.append(" select sum(fa.debit) as debit, sum(fa.credit) as credit");
+		sql.append(", fa.businessPartner.id as businessPartner");
+		if (leaseFiltering)
+			sql.append(", fa.product.id as product");
+		else
+			sql.append(", '' as product");
+		sql.append(", fa.tax.rate as rate");
+		sql.append(", min(fa.id) as factAcctId");
+		sql.append(" from FinancialMgmtAccountingFact as fa ");
+		sql.append(" where fa.client.id in (:clients)");
+		sql.append(" and fa.organization.id in (:orgs) ");
+		sql.append(" and fa.active='Y'");
+		sql.append(" and fa.accountingDate >= :startingDate");
+		sql.append(" and fa.accountingDate < :endingDate");
+		sql.append(" and fa.accountingSchema.id = :acctSchemaId ");
+		if (filterDocTypes)
+			sql.append(" and fa.documentType.id in (:docTypes)");
+		sql.append(" and fa.table not in ('318', '145')");
+		sql.append(" and fa.type not in ('O', 'C','R')");
+		sql.append(" and fa.businessPartner.id is not null ");
+		sql.append(" and fa.tax.id in (:taxes)");
+		if (leaseFiltering)
+			sql.append(" and fa.product.id in (:leaseProducts)");
+		if (groupByProduct) {
+			sql.append(" group by fa.businessPartner, fa.product.id, fa.tax.rate");
+			sql.append(" order by fa.businessPartner, fa.product.id");
+		} else {
+			sql.append(" group by fa.businessPartner, fa.tax.rate");
+			sql.append(" order by fa.businessPartner");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * @deprecated use {@link #getInvoiceAmounts(Set, Set, Map, String, String)}
+	 */
+	@Deprecated
 	public List<Object[]> getInvoiceAmounts(String strTaxesInStatement1, String strTaxesInStatement2,
 			String strDocTypes, String strProductFiltering, Map<String, Date> mapDateRange, String strOrgId,
 			String strAcctSchemaId) {
-		try {
-			OBContext.setAdminMode(true);
-
-			final Organization org = dao.getOrg(strOrgId);
-			OrganizationStructureProvider osp = OBContext.getOBContext()
-					.getOrganizationStructureProvider(org.getClient().getId());
-			final String inClauseOrgs = Utility347.createINClauseForOrgs(osp.getChildTree(org.getId(), true));
-
-			// Amounts for each entry due to invoices are calculated. Using the filter of
-			// documentType and
-			// taxId, only those operations that must go into the file will be taken into
-			// account.
-			final StringBuffer sql = new StringBuffer();
-
-			sql.append(" select sum(to_number(AEAT347_currency_convert(it.taxAmount, it.invoice.currency.id, '"
-					+ AEAT347ReportAPR.CURRENCY_EURO_ID + "' , i.accountingDate, NULL, '" + org.getClient().getId()
-					+ "', NULL, it.invoice.id))),(CASE  WHEN it.recalculate='Y' THEN (min(to_number(AEAT347_currency_convert(it.taxableAmount, it.invoice.currency.id,'"
-					+ AEAT347ReportAPR.CURRENCY_EURO_ID + "' , i.accountingDate, NULL, '" + org.getClient().getId()
-					+ "', NULL, it.invoice.id)))) ELSE 0 END)");
-			sql.append(", i.businessPartner.id as businessPartner");
-			sql.append(", '' as product");
-			sql.append(", dt.documentCategory as document, dt.reversal as reversal ");
-			sql.append(", coalesce(pt.id, t.id) as taxId,  i.id as invoiceId ");
-			sql.append(" from InvoiceTax as it inner join it.tax as t");
-			sql.append(" inner join it.invoice as i ");
-			sql.append(" inner join i.documentType as dt ");
-			sql.append(" left join t.parentTaxRate as pt ");
-			sql.append(" where exists (select 1 ");
-			sql.append("               from FinancialMgmtAccountingFact as fa ");
-			sql.append("               where i.id = fa.recordID ");
-			sql.append("               and fa.accountingSchema.id = '" + strAcctSchemaId + "' ");
-			sql.append("               and fa.active='Y'");
-			sql.append("               and fa.table = '318'");
-			if (strDocTypes.length() > 3) {
-				sql.append("             and fa.documentType " + strDocTypes);
-			}
-			sql.append("              ) ");
+		return getInvoiceAmounts(parseINClauses(strTaxesInStatement1, strTaxesInStatement2),
+				parseDocTypes(strDocTypes), mapDateRange, strOrgId, strAcctSchemaId);
+	}
 
-			sql.append(" and (t.id " + strTaxesInStatement1);
-			if (strTaxesInStatement2.equals("")) {
-				sql.append("   )");
-			} else {
-				sql.append("or t.id " + strTaxesInStatement2 + ")");
-			}
+	public List<Object[]> getInvoiceAmounts(Set<String> taxes, Set<String> docTypes, Map<String, Date> mapDateRange,
+			String strOrgId, String strAcctSchemaId) {
+		return getInvoiceAmounts(new AEAT347ReportRunContext(this, strOrgId, docTypes), taxes, mapDateRange,
+				strAcctSchemaId);
+	}
 
-			sql.append(" and i.client.id " + OBDal.getInstance().getReadableClientsInClause());
-			sql.append(" and i.organization.id in (" + inClauseOrgs + ") ");
-			sql.append(" and i.accountingDate >= :startingDate");
-			sql.append(" and i.accountingDate < :endingDate");
+	@SuppressWarnings("unchecked")
+	public List<Object[]> getInvoiceAmounts(AEAT347ReportRunContext context, Set<String> taxes,
+			Map<String, Date> mapDateRange, String strAcctSchemaId) {
+		try {
+			OBContext.setAdminMode(true);
 
-			sql.append(
-					" group by i.businessPartner, i.id, coalesce(pt.id, t.id), dt.documentCategory, dt.reversal, it.recalculate");
-			sql.append(" order by i.businessPartner");
+			final Set<String> docTypes = context.getDocTypeIds();
+			if (taxes.isEmpty())
+				return new ArrayList<Object[]>();
 
 			final Session session = OBDal.getInstance().getSession();
-			Query query = session.createQuery(sql.toString());
-
+			Query query = session.createQuery(getInvoiceAmountsHql(!docTypes.isEmpty()));
+
+			query.setParameter("currencyEuroId", AEAT347ReportAPR.CURRENCY_EURO_ID);
+			query.setParameter("clientId", context.getClientId());
+			query.setParameter("acctSchemaId", strAcctSchemaId);
+			if (!docTypes.isEmpty())
+				query.setParameterList("docTypes", docTypes);
+			query.setParameterList("taxes", taxes);
+			query.setParameterList("clients", context.getReadableClients());
+			query.setParameterList("orgs", context.getOrganizations());
 			query.setParameter("startingDate", mapDateRange.get("startingDate"));
 			query.setParameter("endingDate", mapDateRange.get("endingDate"));
 
@@ -276,16 +324,73 @@ public class AEAT347ReportAPRDao {
 		}
 	}
 
+	private static String getInvoiceAmountsHql(boolean filterDocTypes) {
+		// Amounts for each entry due to invoices are calculated. Using the filter of
+		// documentType and
+		// taxId, only those operations that must go into the file will be taken into
+		// account.
+		final StringBuffer sql = new StringBuffer();
+
+		sql.append(" select sum(to_number(AEAT347_currency_convert(it.taxAmount, it.invoice.currency.id,"
+				+ " :currencyEuroId, i.accountingDate, NULL, :clientId, NULL, it.invoice.id))),"
+				+ "(CASE  WHEN it.recalculate='Y' THEN (min(to_number(AEAT347_currency_convert(it.taxableAmount, it.invoice.currency.id,"
+				+ " :currencyEuroId, i.accountingDate, NULL, :clientId, NULL, it.invoice.id)))) ELSE 0 END)");
+		sql.append(", i.businessPartner.id as businessPartner");
+		sql.append(", '' as product");
+		sql.append(", dt.documentCategory as document, dt.reversal as reversal ");
+		sql.append(", coalesce(pt.id, t.id) as taxId,  i.id as invoiceId ");
+		sql.append(" from InvoiceTax as it inner join it.tax as t");
+		sql.append(" inner join it.invoice as i ");
+		sql.append(" inner join i.documentType as dt ");
+		sql.append(" left join t.parentTaxRate as pt ");
+		sql.append(" where exists (select 1 ");
+		sql.append("               from FinancialMgmtAccountingFact as fa ");
+		sql.append("               where i.id = fa.recordID ");
+		sql.append("               and fa.accountingSchema.id = :acctSchemaId ");
+		sql.append("               and fa.active='Y'");
+		sql.append("               and fa.table = '318'");
+		if (filterDocTypes) {
+			sql.append("             and fa.documentType.id in (:docTypes)");
+		}
+		sql.append("              ) ");
+
+		sql.append(" and t.id in (:taxes)");
+
+		sql.append(" and i.client.id in (:clients)");
+		sql.append(" and i.organization.id in (:orgs) ");
+		sql.append(" and i.accountingDate >= :startingDate");
+		sql.append(" and i.accountingDate < :endingDate");
+
+		sql.append(
+				" group by i.businessPartner, i.id, coalesce(pt.id, t.id), dt.documentCategory, dt.reversal, it.recalculate");
+		sql.append(" order by i.businessPartner");
+		return sql.toString();
+	}
+
+	/**
+	 * @deprecated use {@link #getLeaseAmounts(Set, Map, String, String)}
+	 */
+	@Deprecated
 	public ScrollableResults getLeaseAmounts(String strTaxesInStatement1, String strTaxesInStatement2,
 			String strDocTypes, String strProductFiltering, Map<String, Date> mapDateRange, String strOrgId,
 			String strAcctSchemaId) {
+		return getLeaseAmounts(parseINClauses(strTaxesInStatement1, strTaxesInStatement2), mapDateRange, strOrgId,
+				strAcctSchemaId);
+	}
+
+	public ScrollableResults getLeaseAmounts(Set<String> taxes, Map<String, Date> mapDateRange, String strOrgId,
+			String strAcctSchemaId) {
+		return getLeaseAmounts(new AEAT347ReportRunContext(this, strOrgId, Collections.<String> emptySet()), taxes,
+				mapDateRange, strAcctSchemaId);
+	}
+
+	public ScrollableResults getLeaseAmounts(AEAT347ReportRunContext context, Set<String> taxes,
+			Map<String, Date> mapDateRange, String strAcctSchemaId) {
 		try {
 			OBContext.setAdminMode(true);
 
-			final Organization org = dao.getOrg(strOrgId);
-			OrganizationStructureProvider osp = OBContext.getOBContext()
-					.getOrganizationStructureProvider(org.getClient().getId());
-			final String inClauseOrgsChild = Utility347.createINClauseForOrgs(osp.getChildTree(org.getId(), true));
+			final Set<String> productOrgs = new HashSet<String>(context.getOrganizations());
+			productOrgs.addAll(context.getParentOrganizations());
 
 			// All invoice lines with product associated of type lease business, and that
 			// have been posted
@@ -304,29 +409,32 @@ public class AEAT347ReportAPRDao {
 			sqlInv.append(" and fa.accountingDate < :endingDate");
 			sqlInv.append(" and table='318'");
 			sqlInv.append(" and i.id = fa.recordID ");
-			sqlInv.append(" and fa.accountingSchema.id = '" + strAcctSchemaId + "' ");
-			sqlInv.append(" and fa.organization in (" + inClauseOrgsChild + ") ");
+			sqlInv.append(" and fa.accountingSchema.id = :acctSchemaId ");
+			sqlInv.append(" and fa.organization.id in (:orgs) ");
 			sqlInv.append(" ) ");
 
 			sqlInv.append(" and p.aeat347Isleasebusiness = 'Y'");
-			sqlInv.append(" and p.client.id = '" + org.getClient().getId() + "' ");
-			final String inClauseOrgsParents = Utility347.createINClauseForOrgs(osp.getParentTree(org.getId(), false));
-			sqlInv.append(" and p.organization.id in (" + inClauseOrgsChild + ", " + inClauseOrgsParents + ") ");
+			sqlInv.append(" and p.client.id = :clientId ");
+			sqlInv.append(" and p.organization.id in (:productOrgs) ");
 
-			sqlInv.append("and (t.id " + strTaxesInStatement1);
-			if (strTaxesInStatement2.equals("")) {
-				sqlInv.append(")");
-			} else {
-				sqlInv.append("or t.id " + strTaxesInStatement2 + ")");
-			}
+			// without taxes no line is reported, as in the other amounts
+			if (taxes.isEmpty())
+				sqlInv.append("and 1 = 0");
+			else
+				sqlInv.append("and t.id in (:taxes)");
 
 			final Session session = OBDal.getInstance().getSession();
 			final Query queryInv = session.createQuery(sqlInv.toString());
 			queryInv.setParameter("startingDate", mapDateRange.get("startingDate"));
 			queryInv.setParameter("endingDate", mapDateRange.get("endingDate"));
-
-			queryInv.scroll(ScrollMode.FORWARD_ONLY);
-			return queryInv.scroll();
+			queryInv.setParameter("acctSchemaId", strAcctSchemaId);
+			queryInv.setParameterList("orgs", context.getOrganizations());
+			queryInv.setParameter("clientId", context.getClientId());
+			queryInv.setParameterList("productOrgs", productOrgs);
+			if (!taxes.isEmpty())
+				queryInv.setParameterList("taxes", taxes);
+
+			return queryInv.scroll(ScrollMode.FORWARD_ONLY);
 		} finally {
 			OBContext.restorePreviousMode();
 		}
@@ -335,69 +443,65 @@ public class AEAT347ReportAPRDao {
 	/**
 	 * Functions that retrieves the relation of business partners and amount
 	 * collected by cash (if higher than a done limit)
-	 * 
+	 *
 	 * @param strCashAmtLimit String with the amount limit multiplied by 100
 	 * @param strAcctSchemaId accounting schema id
 	 * @param strOrgId        organization id
 	 * @return list with the mapping business partner id-amount collected in cash
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Object[]> cashAmounts(String strCashAmtLimit, Map<String, Date> mapDateRange, String strOrgId,
 			String strAcctSchemaId) {
+		return cashAmounts(new AEAT347ReportRunContext(this, strOrgId, Collections.<String> emptySet()),
+				strCashAmtLimit, mapDateRange, strAcctSchemaId);
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<Object[]> cashAmounts(AEAT347ReportRunContext context, String strCashAmtLimit,
+			Map<String, Date> mapDateRange, String strAcctSchemaId) {
 		try {
 			OBContext.setAdminMode(true);
 
-			final Organization org = dao.getOrg(strOrgId);
-			OrganizationStructureProvider osp = OBContext.getOBContext()
-					.getOrganizationStructureProvider(org.getClient().getId());
-			final String inClauseOrgs = Utility347.createINClauseForOrgs(osp.getChildTree(org.getId(), true));
-
 			BigDecimal bdLimit = new BigDecimal(strCashAmtLimit).divide(new BigDecimal(100), 12,
 					BigDecimal.ROUND_HALF_EVEN);
 
-			final StringBuffer sqlFA = new StringBuffer();
-			sqlFA.append("select distinct recordID2");
-			sqlFA.append(" from FinancialMgmtAccountingFact fa");
-			sqlFA.append(" where fa.accountingDate >= :startingDate");
-			sqlFA.append(" and fa.accountingDate < :endingDate");
-			sqlFA.append(" and fa.client " + OBDal.getInstance().getReadableClientsInClause());
-			sqlFA.append(" and fa.organization in (" + inClauseOrgs + ") ");
-			sqlFA.append(" and fa.active='Y'");
-			sqlFA.append(" and fa.table='407'");
-			sqlFA.append(" and fa.recordID2 is not null");
-			sqlFA.append(" and fa.accountingSchema.id = '" + strAcctSchemaId + "' ");
-
-			final Session session = OBDal.getInstance().getSession();
-			final Query queryFA = session.createQuery(sqlFA.toString());
-			queryFA.setParameter("startingDate", mapDateRange.get("startingDate"));
-			queryFA.setParameter("endingDate", mapDateRange.get("endingDate"));
-
+			// The debt payments are those with a cash fact line posted in the period, that
+			// condition is checked with a semi-join so that their ids are never retrieved
 			final StringBuffer sqlDP = new StringBuffer();
-			sqlDP.append(
-					"select dp.businessPartner.id, sum(to_number(AEAT347_currency_convert(dp.amount, dp.currency.id, '"
-							+ AEAT347ReportAPR.CURRENCY_EURO_ID + "' , fa.accountingDate, NULL, '"
-							+ org.getClient().getId() + "' , it.invoice)) as amount");
+			sqlDP.append("select dp.businessPartner.id, sum(to_number(AEAT347_currency_convert(dp.amount, dp.currency.id,"
+					+ " :currencyEuroId, fa.accountingDate, NULL, :clientId, NULL))) as amount");
 			sqlDP.append(" from FinancialMgmtDebtPayment dp, FinancialMgmtAccountingFact fa");
-			sqlDP.append(" where dp.client " + OBDal.getInstance().getReadableClientsInClause());
+			sqlDP.append(" where dp.client.id in (:clients)");
 			sqlDP.append(" and fa.recordID2 = dp.id ");
-			sqlDP.append(" and dp.organization in (" + inClauseOrgs + ") ");
+			sqlDP.append(" and dp.organization.id in (:orgs) ");
 			sqlDP.append(" and dp.active='Y'");
-			sqlDP.append(" and dp.id in (''");
-			for (Object o : queryFA.list()) {
-				sqlDP.append(", '" + (String) o + "'");
-			}
-			sqlDP.append(")");
+			sqlDP.append(" and exists (select 1 from FinancialMgmtAccountingFact fap");
+			sqlDP.append("   where fap.recordID2 = dp.id");
+			sqlDP.append("   and fap.accountingDate >= :startingDate");
+			sqlDP.append("   and fap.accountingDate < :endingDate");
+			sqlDP.append("   and fap.client.id in (:clients)");
+			sqlDP.append("   and fap.organization.id in (:orgs) ");
+			sqlDP.append("   and fap.active='Y'");
+			sqlDP.append("   and fap.table='407'");
+			sqlDP.append("   and fap.accountingSchema.id = :acctSchemaId) ");
 			sqlDP.append(" and dp.receipt = 'Y'");
 			sqlDP.append(" and fa.table='407'");
 			sqlDP.append(" and fa.active='Y' ");
 			sqlDP.append(" and dp.active='Y' ");
-			sqlDP.append(" and fa.accountingSchema.id = '" + strAcctSchemaId + "' ");
+			sqlDP.append(" and fa.accountingSchema.id = :acctSchemaId ");
 			sqlDP.append(" group by dp.businessPartner.id");
-			sqlDP.append(" having sum(to_number(AEAT347_currency_convert(dp.amount, dp.currency.id, '"
-					+ AEAT347ReportAPR.CURRENCY_EURO_ID + "' , fa.accountingDate, NULL, '" + org.getClient().getId()
-					+ "', it.invoice))) > " + bdLimit.toString());
+			sqlDP.append(" having sum(to_number(AEAT347_currency_convert(dp.amount, dp.currency.id,"
+					+ " :currencyEuroId, fa.accountingDate, NULL, :clientId, NULL))) > :cashLimit");
 
+			final Session session = OBDal.getInstance().getSession();
 			final Query queryDP = session.createQuery(sqlDP.toString());
+			queryDP.setParameter("currencyEuroId", AEAT347ReportAPR.CURRENCY_EURO_ID);
+			queryDP.setParameter("clientId", context.getClientId());
+			queryDP.setParameterList("clients", context.getReadableClients());
+			queryDP.setParameterList("orgs", context.getOrganizations());
+			queryDP.setParameter("startingDate", mapDateRange.get("startingDate"));
+			queryDP.setParameter("endingDate", mapDateRange.get("endingDate"));
+			queryDP.setParameter("acctSchemaId", strAcctSchemaId);
+			queryDP.setParameter("cashLimit", bdLimit);
 
 			return queryDP.list();
 		} finally {
@@ -406,35 +510,101 @@ public class AEAT347ReportAPRDao {
 	}
 
 	/**
-	 * 
-	 * @return String in a "in" format, to include in a where clause, with IDs of
-	 *         products with Lease Business characteristic
+	 * Returns together the amounts of {@link #getAmounts} (with and without lease
+	 * product filtering), {@link #getInvoiceAmounts} and {@link #cashAmounts},
+	 * reading the accounting fact lines of the period only once
+	 *
+	 * @param taxes           ids of the taxes to report
+	 * @param docTypes        ids of the doc types that should be reported, all of
+	 *                        them if empty
+	 * @param strCashAmtLimit String with the amount limit multiplied by 100
+	 * @param mapDateRange    map with initial date and end date (+1 day) of the
+	 *                        year
+	 * @param strOrgId        organization id
+	 * @param strAcctSchemaId accounting schema id
+	 * @return the amounts accumulated by business partner
 	 */
-	private String getLeaseProducts(final String strOrgId) {
-		try {
-			OBContext.setAdminMode(true);
-			final Organization org = dao.getOrg(strOrgId);
-			OrganizationStructureProvider osp = OBContext.getOBContext()
-					.getOrganizationStructureProvider(org.getClient().getId());
-			final String inClauseOrgsChild = Utility347.createINClauseForOrgs(osp.getChildTree(org.getId(), true));
+	public AEAT347AmountsAggregator.AggregatedAmounts getAggregatedAmounts(Set<String> taxes, Set<String> docTypes,
+			String strCashAmtLimit, Map<String, Date> mapDateRange, String strOrgId, String strAcctSchemaId) {
+		return getAggregatedAmounts(new AEAT347ReportRunContext(this, strOrgId, docTypes), taxes, strCashAmtLimit,
+				mapDateRange, strAcctSchemaId);
+	}
 
-			String strOut = "in (";
-			final StringBuffer where = new StringBuffer();
-			where.append(" as p ");
-			where.append(" where p.aeat347Isleasebusiness = 'Y' ");
+	public AEAT347AmountsAggregator.AggregatedAmounts getAggregatedAmounts(AEAT347ReportRunContext context,
+			Set<String> taxes, String strCashAmtLimit, Map<String, Date> mapDateRange, String strAcctSchemaId) {
+		if (AEAT347ParallelAggregator.isEnabled()) {
+			return new AEAT347ParallelAggregator().aggregate(context, taxes, strCashAmtLimit, mapDateRange,
+					strAcctSchemaId);
+		}
+		return new AEAT347AmountsAggregator().aggregate(context, taxes, strCashAmtLimit, mapDateRange,
+				strAcctSchemaId);
+	}
+
+	/**
+	 * Returns the amounts of a whole year. The quarters that have already ended are
+	 * read from the {@link AEAT347QuarterlyTotalsStore} when they were computed
+	 * before
+	 */
+	public AEAT347AmountsAggregator.AggregatedAmounts getAggregatedYearAmounts(AEAT347ReportRunContext context,
+			Set<String> taxes, String strCashAmtLimit, String strYearId, String strAcctSchemaId) {
+		return new AEAT347QuarterlyTotalsStore(this).getYearAmounts(context, taxes, strCashAmtLimit, strYearId,
+				strAcctSchemaId);
+	}
 
-			final String inClauseOrgsParents = Utility347.createINClauseForOrgs(osp.getParentTree(org.getId(), false));
-			where.append(" and p.organization.id in (" + inClauseOrgsChild + ", " + inClauseOrgsParents + ") ");
+	/**
+	 * @return the ids in a "in" format, to include in a where clause, or an empty
+	 *         string if there are no ids
+	 */
+	private static String createINClause(Set<String> ids) {
+		if (ids.isEmpty())
+			return "";
+		final StringBuffer strOut = new StringBuffer("in (");
+		for (String id : ids) {
+			strOut.append("'" + id + "', ");
+		}
+		return strOut.substring(0, strOut.length() - 2) + ")";
+	}
 
-			final OBQuery<Product> query = OBDal.getInstance().createQuery(Product.class, where.toString());
-			for (Product type : query.list()) {
-				strOut += "'" + type.getId() + "', ";
+	/**
+	 * Splits the ids in lists of at most {@value #MAX_IDS_PER_QUERY} elements, so
+	 * that each of them can be bound to an "in" clause of its own query
+	 */
+	static List<List<String>> splitIds(Collection<String> ids) {
+		final List<List<String>> chunks = new ArrayList<List<String>>();
+		List<String> chunk = null;
+		for (String id : ids) {
+			if (chunk == null || chunk.size() == MAX_IDS_PER_QUERY) {
+				chunk = new ArrayList<String>(MAX_IDS_PER_QUERY);
+				chunks.add(chunk);
 			}
-			strOut = strOut.substring(0, strOut.length() - 2) + ")";
-			return (strOut.equals("in)")) ? "" : strOut;
-		} finally {
-			OBContext.restorePreviousMode();
+			chunk.add(id);
 		}
+		return chunks;
+	}
+
+	/**
+	 * @return the ids of the given strings in a "in" format
+	 */
+	static Set<String> parseINClauses(String... strInClauses) {
+		final Set<String> ids = new LinkedHashSet<String>();
+		for (String strInClause : strInClauses) {
+			int start = strInClause.indexOf('\'');
+			while (start != -1) {
+				final int end = strInClause.indexOf('\'', start + 1);
+				if (end == -1) {
+					break;
+				}
+				ids.add(strInClause.substring(start + 1, end));
+				start = strInClause.indexOf('\'', end + 1);
+			}
+		}
+		return ids;
+	}
+
+	private static Set<String> parseDocTypes(String strDocTypes) {
+		if (strDocTypes.length() > 3)
+			return parseINClauses(strDocTypes);
+		return Collections.emptySet();
 	}
 
 	/**
@@ -550,6 +720,83 @@ public class AEAT347ReportAPRDao {
 		}
 	}
 
+	/**
+	 * Returns the information of the given business partners with one query per
+	 * {@value #MAX_IDS_PER_QUERY} ids. The address is chosen as in
+	 * {@link #getBPLocation(List)}
+	 * 
+	 * @param bpIds IDs of the BPs which information will be retrieved
+	 * @return the information of each BP found, by its id
+	 */
+	public Map<String, AEAT347BusinessPartnerInfo> getBPInfo(Collection<String> bpIds) {
+		final Map<String, AEAT347BusinessPartnerInfo> bpInfo = new HashMap<String, AEAT347BusinessPartnerInfo>();
+		if (bpIds.isEmpty())
+			return bpInfo;
+		final StringBuffer sql = new StringBuffer();
+		sql.append(" select bp.id, bp.taxID, bp.name, bpl.taxLocation, l.addressLine1, l.addressLine2,");
+		sql.append(" l.postalCode, l.cityName, r.name, c.iSOCountryCode");
+		sql.append(" from BusinessPartner as bp");
+		sql.append(" left join bp.businessPartnerLocationList as bpl");
+		sql.append(" left join bpl.locationAddress as l");
+		sql.append(" left join l.region as r");
+		sql.append(" left join l.country as c");
+		sql.append(" where bp.id in (:bpIds)");
+		sql.append(" order by bp.id, bpl.id");
+		try {
+			OBContext.setAdminMode(true);
+			final Session session = OBDal.getInstance().getSession();
+			for (List<String> chunk : splitIds(bpIds)) {
+				final Query query = session.createQuery(sql.toString());
+				query.setParameterList("bpIds", chunk);
+				for (Object o : query.list()) {
+					final Object[] row = (Object[]) o;
+					final String bpId = (String) row[0];
+					final AEAT347BusinessPartnerInfo current = bpInfo.get(bpId);
+					// the first location is kept unless a later one is the tax location
+					if (current == null || Boolean.TRUE.equals(row[3])) {
+						bpInfo.put(bpId, new AEAT347BusinessPartnerInfo(bpId, (String) row[1], (String) row[2],
+								(String) row[4], (String) row[5], (String) row[6], (String) row[7], (String) row[8],
+								(String) row[9]));
+					}
+				}
+			}
+			return bpInfo;
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
+	/**
+	 * Returns the information of the given products with one query per
+	 * {@value #MAX_IDS_PER_QUERY} ids
+	 * 
+	 * @param productIds IDs of the products which information will be retrieved
+	 * @return the information of each product found, by its id
+	 */
+	public Map<String, AEAT347ProductInfo> getProductInfo(Collection<String> productIds) {
+		final Map<String, AEAT347ProductInfo> productInfo = new HashMap<String, AEAT347ProductInfo>();
+		if (productIds.isEmpty())
+			return productInfo;
+		final String sql = " select p.id, p.searchKey, p.name, p.aeat347Isleasebusiness from Product as p"
+				+ " where p.id in (:productIds)";
+		try {
+			OBContext.setAdminMode(true);
+			final Session session = OBDal.getInstance().getSession();
+			for (List<String> chunk : splitIds(productIds)) {
+				final Query query = session.createQuery(sql);
+				query.setParameterList("productIds", chunk);
+				for (Object o : query.list()) {
+					final Object[] row = (Object[]) o;
+					productInfo.put((String) row[0], new AEAT347ProductInfo((String) row[0], (String) row[1],
+							(String) row[2], Boolean.TRUE.equals(row[3])));
+				}
+			}
+			return productInfo;
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
 	/*
 	 * Return a Map with the starting and ending date (+1) of the given year
 	 * 
@@ -632,14 +879,15 @@ public class AEAT347ReportAPRDao {
 	}
 
 	public List<DebtPayment> getCashPayments(Map<String, Date> mapDateRange, String strOrgId, String strAcctSchemaId) {
+		return getCashPayments(new AEAT347ReportRunContext(this, strOrgId, Collections.<String> emptySet()),
+				mapDateRange, strAcctSchemaId);
+	}
+
+	public List<DebtPayment> getCashPayments(AEAT347ReportRunContext context, Map<String, Date> mapDateRange,
+			String strAcctSchemaId) {
 		try {
 			OBContext.setAdminMode(true);
 
-			final Organization org = dao.getOrg(strOrgId);
-			OrganizationStructureProvider osp = OBContext.getOBContext()
-					.getOrganizationStructureProvider(org.getClient().getId());
-			final String inClauseOrgs = Utility347.createINClauseForOrgs(osp.getChildTree(org.getId(), true));
-
 			final StringBuffer sqlFA = new StringBuffer();
 			sqlFA.append(" as dp ");
 			sqlFA.append(" where dp.receipt = 'Y' ");
@@ -647,11 +895,11 @@ public class AEAT347ReportAPRDao {
 			sqlFA.append(" where fa.recordID2 = dp.id ");
 			sqlFA.append(" and fa.accountingDate >= :startingDate");
 			sqlFA.append(" and fa.accountingDate < :endingDate");
-			sqlFA.append(" and fa.client " + OBDal.getInstance().getReadableClientsInClause());
-			sqlFA.append(" and fa.organization in (" + inClauseOrgs + ") ");
+			sqlFA.append(" and fa.client.id in (:clients)");
+			sqlFA.append(" and fa.organization.id in (:orgs) ");
 			sqlFA.append(" and fa.active='Y'");
 			sqlFA.append(" and fa.table='407'");
-			sqlFA.append(" and fa.accountingSchema.id = '" + strAcctSchemaId + "') ");
+			sqlFA.append(" and fa.accountingSchema.id = :acctSchemaId) ");
 			sqlFA.append(" and exists ( select 1 from FinancialMgmtJournalLine cjl ");
 			sqlFA.append(" where dp.id = cjl.payment.id ");
 			sqlFA.append(" and cjl.cashJournal.posted = 'Y' ) ");
@@ -663,6 +911,9 @@ public class AEAT347ReportAPRDao {
 
 			queryFA.setNamedParameter("startingDate", mapDateRange.get("startingDate"));
 			queryFA.setNamedParameter("endingDate", mapDateRange.get("endingDate"));
+			queryFA.setNamedParameter("clients", context.getReadableClients());
+			queryFA.setNamedParameter("orgs", context.getOrganizations());
+			queryFA.setNamedParameter("acctSchemaId", strAcctSchemaId);
 
 //			queryFA.setParameters(params);
 
@@ -743,12 +994,20 @@ public class AEAT347ReportAPRDao {
 	 */
 	private List<FIN_FinaccTransaction> removeNonPostedTransactions(List<FIN_FinaccTransaction> list, String strOrgId) {
 		ArrayList<FIN_FinaccTransaction> lResult = new ArrayList<FIN_FinaccTransaction>();
+		ArrayList<FIN_FinaccTransaction> lNonPosted = new ArrayList<FIN_FinaccTransaction>();
+		for (FIN_FinaccTransaction trx : list) {
+			if (!"Y".equals(trx.getPosted())) {
+				lNonPosted.add(trx);
+			}
+		}
+		// the configuration needed to classify all the transactions is loaded at once
+		final AEAT347PostingLevelResolver resolver = new AEAT347PostingLevelResolver(lNonPosted);
 		for (FIN_FinaccTransaction trx : list) {
 			if ("Y".equals(trx.getPosted())) {
 				lResult.add(trx);
 				continue;
 			}
-			switch (levelWhereTrxArePosted(trx)) {
+			switch (resolver.getLevel(trx)) {
 			case TRANSACTION:
 				break;
 			case RECONCILIATION:
@@ -775,123 +1034,7 @@ public class AEAT347ReportAPRDao {
 	 * place for transactions.
 	 */
 	int levelWhereTrxArePosted(FIN_FinaccTransaction transaction) {
-		OBContext.setAdminMode();
-		try {
-			List<FIN_FinancialAccountAccounting> accounts = transaction.getAccount().getFINFinancialAccountAcctList();
-			FIN_Payment payment = transaction.getFinPayment();
-			FinAccPaymentMethod paymentMethod = null;
-			if (payment != null) {
-				OBCriteria<FinAccPaymentMethod> obCriteria = OBDal.getInstance()
-						.createCriteria(FinAccPaymentMethod.class);
-				obCriteria.add(Restrictions.eq(FinAccPaymentMethod.PROPERTY_ACCOUNT, payment.getAccount()));
-				obCriteria.add(Restrictions.eq(FinAccPaymentMethod.PROPERTY_PAYMENTMETHOD, payment.getPaymentMethod()));
-				obCriteria.setFilterOnReadableClients(false);
-				obCriteria.setFilterOnReadableOrganization(false);
-				List<FinAccPaymentMethod> paymentMethods = obCriteria.list();
-				if (paymentMethods.size() > 0) {
-					paymentMethod = paymentMethods.get(0);
-					for (FIN_FinancialAccountAccounting account : accounts) {
-						if (payment.isReceipt()) {
-							if (("INT").equals(paymentMethod.getUponDepositUse())
-									&& account.getInTransitPaymentAccountIN() != null)
-								return TRANSACTION;
-							else if (("DEP").equals(paymentMethod.getUponDepositUse())
-									&& account.getDepositAccount() != null)
-								return TRANSACTION;
-							else if (("CLE").equals(paymentMethod.getUponDepositUse())
-									&& account.getClearedPaymentAccount() != null)
-								return TRANSACTION;
-							if (("INT").equals(paymentMethod.getINUponClearingUse())
-									&& account.getInTransitPaymentAccountIN() != null)
-								return RECONCILIATION;
-							else if (("DEP").equals(paymentMethod.getINUponClearingUse())
-									&& account.getDepositAccount() != null)
-								return RECONCILIATION;
-							else if (("CLE").equals(paymentMethod.getINUponClearingUse())
-									&& account.getClearedPaymentAccount() != null)
-								return RECONCILIATION;
-						} else {
-							if (("INT").equals(paymentMethod.getUponWithdrawalUse())
-									&& account.getFINOutIntransitAcct() != null)
-								return TRANSACTION;
-							else if (("WIT").equals(paymentMethod.getUponWithdrawalUse())
-									&& account.getWithdrawalAccount() != null)
-								return TRANSACTION;
-							else if (("CLE").equals(paymentMethod.getUponWithdrawalUse())
-									&& account.getClearedPaymentAccountOUT() != null)
-								return TRANSACTION;
-							if (("INT").equals(paymentMethod.getOUTUponClearingUse())
-									&& account.getFINOutIntransitAcct() != null)
-								return RECONCILIATION;
-							else if (("WIT").equals(paymentMethod.getOUTUponClearingUse())
-									&& account.getWithdrawalAccount() != null)
-								return RECONCILIATION;
-							else if (("CLE").equals(paymentMethod.getOUTUponClearingUse())
-									&& account.getClearedPaymentAccountOUT() != null)
-								return RECONCILIATION;
-						}
-					}
-				}
-			}
-			for (FIN_FinancialAccountAccounting account : accounts) {
-				if (("BPD".equals(transaction.getTransactionType()) && account.getDepositAccount() != null)
-						|| ("BPW".equals(transaction.getTransactionType()) && account.getWithdrawalAccount() != null)
-						|| ("BF".equals(transaction.getTransactionType()) && account.getWithdrawalAccount() != null))
-					return TRANSACTION;
-			}
-			if (transaction.getGLItem() != null) {
-				for (FIN_FinancialAccountAccounting account : accounts) {
-					if ("BPD".equals(transaction.getTransactionType()) && account.getClearedPaymentAccount() != null) {
-						return RECONCILIATION;
-					} else if ("BPW".equals(transaction.getTransactionType())
-							&& account.getClearedPaymentAccountOUT() != null) {
-						return RECONCILIATION;
-					}
-				}
-			}
-			for (FIN_FinancialAccountAccounting account : accounts) {
-				if ("BF".equals(transaction.getTransactionType()) && account.getClearedPaymentAccountOUT() != null) {
-					return RECONCILIATION;
-				}
-			}
-			if (payment != null && paymentMethod != null
-					&& ("RPR".equals(payment.getStatus()) || "PPM".equals(payment.getStatus())
-							|| "RDNC".equals(payment.getStatus()) || "PWNC".equals(payment.getStatus())
-							|| "RPPC".equals(payment.getStatus()))) {
-				for (FIN_FinancialAccountAccounting account : accounts) {
-					if (payment.isReceipt()) {
-						if (("INT").equals(paymentMethod.getUponReceiptUse())
-								&& account.getInTransitPaymentAccountIN() != null)
-							return PAYMENT;
-						else if (("DEP").equals(paymentMethod.getUponReceiptUse())
-								&& account.getDepositAccount() != null)
-							return PAYMENT;
-						else if (("CLE").equals(paymentMethod.getUponReceiptUse())
-								&& account.getClearedPaymentAccount() != null)
-							return PAYMENT;
-					} else {
-						if (("INT").equals(paymentMethod.getUponPaymentUse())
-								&& account.getFINOutIntransitAcct() != null)
-							return PAYMENT;
-						else if (("WIT").equals(paymentMethod.getUponPaymentUse())
-								&& account.getWithdrawalAccount() != null)
-							return PAYMENT;
-						else if (("CLE").equals(paymentMethod.getUponPaymentUse())
-								&& account.getClearedPaymentAccountOUT() != null)
-							return PAYMENT;
-					}
-					if (payment.getAmount().compareTo(BigDecimal.ZERO) == 0) {
-						return PAYMENT;
-					}
-				}
-			}
-			return -1;
-		} catch (Exception e) {
-			log4j.error("ERROR: " + e);
-			return -1;
-		} finally {
-			OBContext.restorePreviousMode();
-		}
+		return new AEAT347PostingLevelResolver(Collections.singletonList(transaction)).getLevel(transaction);
 	}
 
 	/**
@@ -906,9 +1049,10 @@ public class AEAT347ReportAPRDao {
 
 			final StringBuffer hql = new StringBuffer();
 			hql.append(" as dp ");
-			hql.append(" where dp.aPRMTPayment.id = '" + payment.getId() + "'");
+			hql.append(" where dp.aPRMTPayment.id = :paymentId");
 
 			final OBQuery<DebtPayment> query = OBDal.getInstance().createQuery(DebtPayment.class, hql.toString());
+			query.setNamedParameter("paymentId", payment.getId());
 			List<DebtPayment> l = query.list();
 			if (l.size() > 0) {
 				return l.get(0);
@@ -0,0 +1,285 @@
+/************************************************************************************
+ * Copyright (C) 2009-2018 Openbravo S.L.U.
+ * Licensed under the Openbravo Commercial License version 1.0
+ * You may obtain a copy of the License at http://www.openbravo.com/legal/obcl.html
+ ************************************************************************************/
+
+package org.openbravo.module.aeat347apr.es;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.security.OrganizationStructureProvider;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.dal.service.OBQuery;
+import org.openbravo.model.common.enterprise.Organization;
+import org.openbravo.model.common.plm.Product;
+
+/**
+ * Information shared by all the queries of one execution of the AEAT 347 report:
+ * the organization tree, the readable clients, the document types of the report,
+ * the lease business products and the taxes of each report parameter.
+ *
+ * The organization tree, the clients and the document types are resolved when the
+ * context is created. The lease products and the taxes are resolved the first time
+ * they are requested and then kept for the rest of the execution. All the sets
+ * returned can not be modified.
+ *
+ * The information of the business partners and products written in the file is
+ * also kept, so that it is read in batches with
+ * {@link #loadBusinessPartners(Collection)} and
+ * {@link #loadProducts(Collection)} before the records are written.
+ *
+ * @author openbravo
+ *
+ */
+public class AEAT347ReportRunContext {
+
+	/**
+	 * Cached for the ids that do not exist, so that they are not read again. A
+	 * ConcurrentHashMap can not keep null values
+	 */
+	private static final AEAT347BusinessPartnerInfo MISSING_BUSINESS_PARTNER = new AEAT347BusinessPartnerInfo(null,
+			null, null, null, null, null, null, null, null);
+	private static final AEAT347ProductInfo MISSING_PRODUCT = new AEAT347ProductInfo(null, null, null, false);
+
+	private final AEAT347ReportAPRDao reportDao;
+	private final String strOrgId;
+	private final String strClientId;
+	private final String strReportId;
+	private final Set<String> organizations;
+	private final Set<String> parentOrganizations;
+	private final List<String> readableClients;
+	private final Set<String> docTypes;
+	private final Map<String, Set<String>> taxes = new ConcurrentHashMap<String, Set<String>>();
+	private volatile Set<String> leaseProducts;
+	private final Map<String, AEAT347BusinessPartnerInfo> businessPartners =
+			new ConcurrentHashMap<String, AEAT347BusinessPartnerInfo>();
+	private final Map<String, AEAT347ProductInfo> products = new ConcurrentHashMap<String, AEAT347ProductInfo>();
+
+	/**
+	 * @param reportDao   dao used to resolve the information of the report
+	 * @param strOrgId    organization for which the report is launched
+	 * @param strReportId tax report, its document types are the ones reported
+	 */
+	public AEAT347ReportRunContext(AEAT347ReportAPRDao reportDao, String strOrgId, String strReportId) {
+		this(reportDao, strOrgId, strReportId, null);
+	}
+
+	/**
+	 * Creates a context that reports the given document types, all of them if the
+	 * set is empty
+	 */
+	AEAT347ReportRunContext(AEAT347ReportAPRDao reportDao, String strOrgId, Set<String> docTypes) {
+		this(reportDao, strOrgId, null, docTypes);
+	}
+
+	private AEAT347ReportRunContext(AEAT347ReportAPRDao reportDao, String strOrgId, String strReportId,
+			Set<String> docTypes) {
+		try {
+			OBContext.setAdminMode(true);
+			this.reportDao = reportDao;
+			this.strOrgId = strOrgId;
+			this.strReportId = strReportId;
+
+			final Organization org = reportDao.dao.getOrg(strOrgId);
+			this.strClientId = org.getClient().getId();
+			final OrganizationStructureProvider osp = OBContext.getOBContext()
+					.getOrganizationStructureProvider(strClientId);
+			this.organizations = Collections.unmodifiableSet(new LinkedHashSet<String>(osp.getChildTree(org.getId(), true)));
+			this.parentOrganizations = Collections
+					.unmodifiableSet(new LinkedHashSet<String>(osp.getParentTree(org.getId(), false)));
+			this.readableClients = Collections
+					.unmodifiableList(Arrays.asList(OBContext.getOBContext().getReadableClients().clone()));
+			if (docTypes != null) {
+				this.docTypes = Collections.unmodifiableSet(new LinkedHashSet<String>(docTypes));
+			} else {
+				this.docTypes = reportDao.getDocTypeIds(strReportId);
+			}
+		} finally {
+			OBContext.restorePreviousMode();
+		}
+	}
+
+	private AEAT347ReportRunContext(AEAT347ReportRunContext context, Set<String> organizations) {
+		this.reportDao = context.reportDao;
+		this.strOrgId = context.strOrgId;
+		this.strClientId = context.strClientId;
+		this.strReportId = context.strReportId;
+		this.organizations = Collections.unmodifiableSet(new LinkedHashSet<String>(organizations));
+		this.parentOrganizations = context.parentOrganizations;
+		this.readableClients = context.readableClients;
+		this.docTypes = context.docTypes;
+		// the lease products are visible from the whole tree, not only from the given
+		// organizations
+		this.leaseProducts = context.getLeaseProductIds();
+		this.taxes.putAll(context.taxes);
+	}
+
+	/**
+	 * Returns a context of the same execution restricted to some organizations of
+	 * the tree, used to compute a part of the report. The lease products are still
+	 * the ones visible from the whole tree
+	 */
+	AEAT347ReportRunContext forOrganizations(Set<String> organizations) {
+		return new AEAT347ReportRunContext(this, organizations);
+	}
+
+	public String getOrgId() {
+		return strOrgId;
+	}
+
+	public String getClientId() {
+		return strClientId;
+	}
+
+	public String getReportId() {
+		return strReportId;
+	}
+
+	/**
+	 * @return the organization and all its children
+	 */
+	public Set<String> getOrganizations() {
+		return organizations;
+	}
+
+	/**
+	 * @return the parents of the organization
+	 */
+	public Set<String> getParentOrganizations() {
+		return parentOrganizations;
+	}
+
+	public List<String> getReadableClients() {
+		return readableClients;
+	}
+
+	/**
+	 * @return the document types that should be reported, all of them if empty
+	 */
+	public Set<String> getDocTypeIds() {
+		return docTypes;
+	}
+
+	/**
+	 * @param value1 name (SearchKey) given to the tax report parameter
+	 * @param value2 optional name of another tax report parameter
+	 * @return the ids of the taxes of the given parameters of the report
+	 */
+	public Set<String> getTaxIds(String value1, String value2) {
+		final String key = value1 + "|" + value2;
+		Set<String> taxIds = taxes.get(key);
+		if (taxIds == null) {
+			taxIds = reportDao.getTaxIds(strReportId, value1, value2);
+			taxes.put(key, taxIds);
+		}
+		return taxIds;
+	}
+
+	/**
+	 * @return IDs of products with Lease Business characteristic visible from the
+	 *         organization
+	 */
+	public Set<String> getLeaseProductIds() {
+		Set<String> productIds = leaseProducts;
+		if (productIds == null) {
+			try {
+				OBContext.setAdminMode(true);
+				final Set<String> orgs = new HashSet<String>(organizations);
+				orgs.addAll(parentOrganizations);
+
+				final Set<String> ids = new LinkedHashSet<String>();
+				final StringBuffer where = new StringBuffer();
+				where.append(" as p ");
+				where.append(" where p.aeat347Isleasebusiness = 'Y' ");
+				where.append(" and p.organization.id in (:orgs) ");
+
+				final OBQuery<Product> query = OBDal.getInstance().createQuery(Product.class, where.toString());
+				query.setNamedParameter("orgs", orgs);
+				for (Product type : query.list()) {
+					ids.add(type.getId());
+				}
+				productIds = Collections.unmodifiableSet(ids);
+				leaseProducts = productIds;
+			} finally {
+				OBContext.restorePreviousMode();
+			}
+		}
+		return productIds;
+	}
+
+	/**
+	 * Reads in batch the information of the given business partners that has not
+	 * been read yet in this execution
+	 */
+	public void loadBusinessPartners(Collection<String> bpIds) {
+		final Set<String> missing = new LinkedHashSet<String>();
+		for (String bpId : bpIds) {
+			if (bpId != null && !businessPartners.containsKey(bpId)) {
+				missing.add(bpId);
+			}
+		}
+		final Map<String, AEAT347BusinessPartnerInfo> found = reportDao.getBPInfo(missing);
+		for (String bpId : missing) {
+			final AEAT347BusinessPartnerInfo info = found.get(bpId);
+			businessPartners.put(bpId, info == null ? MISSING_BUSINESS_PARTNER : info);
+		}
+	}
+
+	/**
+	 * @return the information of the business partner, read with a single query if
+	 *         it was not loaded before. Null if it does not exist
+	 */
+	public AEAT347BusinessPartnerInfo getBusinessPartnerInfo(String bpId) {
+		if (bpId == null) {
+			return null;
+		}
+		if (!businessPartners.containsKey(bpId)) {
+			loadBusinessPartners(Collections.singleton(bpId));
+		}
+		final AEAT347BusinessPartnerInfo info = businessPartners.get(bpId);
+		return info == MISSING_BUSINESS_PARTNER ? null : info;
+	}
+
+	/**
+	 * Reads in batch the information of the given products that has not been read
+	 * yet in this execution
+	 */
+	public void loadProducts(Collection<String> productIds) {
+		final Set<String> missing = new LinkedHashSet<String>();
+		for (String productId : productIds) {
+			if (productId != null && !"".equals(productId) && !products.containsKey(productId)) {
+				missing.add(productId);
+			}
+		}
+		final Map<String, AEAT347ProductInfo> found = reportDao.getProductInfo(missing);
+		for (String productId : missing) {
+			final AEAT347ProductInfo info = found.get(productId);
+			products.put(productId, info == null ? MISSING_PRODUCT : info);
+		}
+	}
+
+	/**
+	 * @return the information of the product, read with a single query if it was not
+	 *         loaded before. Null if it does not exist
+	 */
+	public AEAT347ProductInfo getProductInfo(String productId) {
+		if (productId == null || "".equals(productId)) {
+			return null;
+		}
+		if (!products.containsKey(productId)) {
+			loadProducts(Collections.singleton(productId));
+		}
+		final AEAT347ProductInfo info = products.get(productId);
+		return info == MISSING_PRODUCT ? null : info;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.Property;
+import org.openbravo.model.ad.datamodel.Column;
+import org.openbravo.model.ad.datamodel.Table;
+import org.openbravo.service.json.JsonConstants;
+
+/**
+ * Replaces the property names used in a filter criteria with the alias of the columns of an HQL
+ * table, in a single pass over the where clause.
+ *
+ * A property name is replaced when it is delimited by blanks or parenthesis, either on its own or
+ * prefixed with the main alias of the table. The rewriter is built once per table, all the
+ * replacements are resolved when it is created.
+ */
+class HQLAliasRewriter {
+
+    private final Map<String, String> replacements;
+
+    private HQLAliasRewriter(Map<String, String> replacements) {
+
+        this.replacements = replacements;
+    }
+
+    /**
+     * Creates the rewriter of an HQL table. Must be invoked in admin mode, as it reads the columns
+     * of the table
+     */
+    static HQLAliasRewriter create(Table table, Entity entity) {
+
+        String mainAlias = table.getEntityAlias();
+        // the replacements of every column, in the order they were applied to the where clause
+        List<Map<String, String>> columnReplacements = new ArrayList<>();
+        for (Column column : table.getADColumnList()) {
+            Property property = entity.getPropertyByColumnName(column.getDBColumnName());
+            Map<String, String> replacementMap = new LinkedHashMap<>();
+            if (property.isPrimitive()) {
+                // if the property is a primitive, just replace the property name with the column alias
+                addReplacement(replacementMap, property.getName(), column.getEntityAlias(), mainAlias);
+            } else {
+                // the criteria can refer to the foreign key via its ID...
+                addReplacement(replacementMap, property.getName() + "." + JsonConstants.ID,
+                        column.getEntityAlias() + "." + JsonConstants.ID, mainAlias);
+                // ... or through its identifier
+                Entity refEntity = property.getReferencedProperty().getEntity();
+                String identifierPropertyName = refEntity.getIdentifierProperties().get(0).getName();
+                addReplacement(replacementMap, property.getName() + "." + identifierPropertyName,
+                        column.getEntityAlias() + "." + identifierPropertyName, mainAlias);
+            }
+            columnReplacements.add(replacementMap);
+        }
+
+        // a name replaced for a column could be replaced again by the replacements of the following
+        // columns, resolve those chains now so that each name is replaced just once
+        Map<String, String> replacements = new HashMap<>();
+        for (int i = 0; i < columnReplacements.size(); i++) {
+            for (Map.Entry<String, String> replacement : columnReplacements.get(i).entrySet()) {
+                if (replacements.containsKey(replacement.getKey())) {
+                    continue;
+                }
+                String newName = replacement.getValue();
+                for (int j = i + 1; j < columnReplacements.size(); j++) {
+                    String chainedName = columnReplacements.get(j).get(newName);
+                    if (chainedName != null) {
+                        newName = chainedName;
+                    }
+                }
+                replacements.put(replacement.getKey(), newName);
+            }
+        }
+        return new HQLAliasRewriter(replacements);
+    }
+
+    private static void addReplacement(Map<String, String> replacementMap, String oldName, String newName,
+            String mainAlias) {
+
+        replacementMap.put(oldName, newName);
+        if (StringUtils.isNotEmpty(mainAlias)) {
+            // if table has alias, add also replacements taking it into account
+            replacementMap.put(mainAlias + "." + oldName, newName);
+        }
+    }
+
+    /**
+     * Returns the where clause using the alias of the columns instead of the property names
+     */
+    String rewrite(String whereClause) {
+
+        int length = whereClause.length();
+        StringBuilder rewritten = new StringBuilder(length + 32);
+        int copied = 0;
+        int index = 0;
+        String lastBlankDelimitedName = null;
+        int lastBlankDelimitedEnd = -1;
+        while (index < length) {
+            if (isDelimiter(whereClause.charAt(index))) {
+                index++;
+                continue;
+            }
+            int start = index;
+            while (index < length && !isDelimiter(whereClause.charAt(index))) {
+                index++;
+            }
+            // names are only replaced if they have a delimiter at both sides
+            if (start == 0 || index == length) {
+                continue;
+            }
+            String name = whereClause.substring(start, index);
+            String newName = replacements.get(name);
+            if (newName == null) {
+                continue;
+            }
+            char before = whereClause.charAt(start - 1);
+            char after = whereClause.charAt(index);
+            if (before == ' ' && after == ' ' && lastBlankDelimitedEnd == start - 1 && name.equals(lastBlankDelimitedName)) {
+                // keeps the behavior of the former regular expression replacement: the blank before
+                // this name was already consumed as the trailing blank of the previous occurrence
+                lastBlankDelimitedName = null;
+                continue;
+            }
+            rewritten.append(whereClause, copied, start).append(newName);
+            copied = index;
+            if (before == ' ' && after == ' ') {
+                lastBlankDelimitedName = name;
+                lastBlankDelimitedEnd = index;
+            } else {
+                lastBlankDelimitedName = null;
+            }
+        }
+        if (copied == 0) {
+            return whereClause;
+        }
+        return rewritten.append(whereClause, copied, length).toString();
+    }
+
+    private static boolean isDelimiter(char c) {
+
+        return c == ' ' || c == '(' || c == ')';
+    }
+}
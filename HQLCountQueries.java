@@ -0,0 +1,105 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+/**
+ * Rewrites the count queries of grouped HQL queries so that the number of groups is computed by
+ * the database instead of scrolling through all of them.
+ *
+ * HQL does not support subqueries in the FROM clause, so {@code select count(*) from (subquery)}
+ * can not be used. When the query is grouped by a single expression and has no HAVING clause, the
+ * number of groups is the number of distinct values of that expression, plus one if there are rows
+ * where it is null.
+ */
+class HQLCountQueries {
+
+    private static final String SELECT_COUNT = "SELECT COUNT(*) ";
+    private static final String GROUP_BY     = " GROUP BY ";
+    private static final String HAVING       = " HAVING ";
+
+    private HQLCountQueries() {
+    }
+
+    /**
+     * Returns a query that selects the number of distinct values of the grouping expression and the
+     * number of rows where it is null, or null if the count query can not be rewritten
+     * 
+     * @param countHqlQuery
+     *            a query starting with select count(*) whose main query is grouped
+     */
+    static String toGroupedCountQuery(String countHqlQuery) {
+
+        String upperCaseQuery = countHqlQuery.toUpperCase();
+        if (!upperCaseQuery.startsWith(SELECT_COUNT)) {
+            return null;
+        }
+        int groupByIndex = upperCaseQuery.lastIndexOf(GROUP_BY);
+        if (groupByIndex == -1 || !isAtTopLevel(countHqlQuery, groupByIndex)
+                || upperCaseQuery.indexOf(HAVING, groupByIndex) != -1) {
+            return null;
+        }
+        String groupByExpression = countHqlQuery.substring(groupByIndex + GROUP_BY.length()).trim();
+        if (groupByExpression.isEmpty() || containsTopLevelComma(groupByExpression)) {
+            // count(distinct) accepts a single expression in every supported database
+            return null;
+        }
+        return "select count(distinct " + groupByExpression + "), count(*) - count(" + groupByExpression + ") "
+                + countHqlQuery.substring(SELECT_COUNT.length(), groupByIndex);
+    }
+
+    /**
+     * Returns true if the position is not inside parenthesis or string literals, that is, if it
+     * belongs to the main query and not to a subquery
+     */
+    private static boolean isAtTopLevel(String hqlQuery, int position) {
+
+        int depth = 0;
+        boolean inLiteral = false;
+        for (int i = 0; i < position; i++) {
+            char c = hqlQuery.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            } else if (!inLiteral && c == '(') {
+                depth++;
+            } else if (!inLiteral && c == ')') {
+                depth--;
+            }
+        }
+        return depth == 0 && !inLiteral;
+    }
+
+    private static boolean containsTopLevelComma(String expression) {
+
+        int depth = 0;
+        boolean inLiteral = false;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            } else if (!inLiteral && c == '(') {
+                depth++;
+            } else if (!inLiteral && c == ')') {
+                depth--;
+            } else if (!inLiteral && depth == 0 && c == ',') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -18,13 +18,22 @@
  */
 package org.openbravo.service.datasource;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.enterprise.inject.Any;
 import javax.enterprise.inject.Instance;
@@ -34,8 +43,10 @@ import javax.persistence.TupleElement;
 
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.query.Query;
+import org.openbravo.base.exception.OBException;
 import org.openbravo.base.exception.OBSecurityException;
 import org.openbravo.base.model.Entity;
 import org.openbravo.base.model.ModelProvider;
@@ -58,6 +69,8 @@ import org.openbravo.model.ad.datamodel.Table;
 import org.openbravo.model.ad.domain.Reference;
 import org.openbravo.model.ad.ui.Tab;
 import org.openbravo.service.datasource.hql.HQLInserterQualifier;
+import org.openbravo.service.datasource.hql.HqlCountModeProvider;
+import org.openbravo.service.datasource.hql.HqlCountModeProvider.CountMode;
 import org.openbravo.service.datasource.hql.HqlInserter;
 import org.openbravo.service.datasource.hql.HqlQueryTransformer;
 import org.openbravo.service.json.AdvancedQueryBuilder;
@@ -68,26 +81,52 @@ import org.slf4j.LoggerFactory;
 
 public class HQLDataSourceService extends ReadOnlyDataSourceService {
 
-    public static final String            PROPERTY_FIELD_SEPARATOR          = "___";
-
-    private static final Logger           log                               = LoggerFactory.getLogger(HQLDataSourceService.class);
-    private static final String           AND                               = " AND ";
-    private static final String           WHERE                             = " WHERE ";
-    private static final String           ORDERBY                           = " ORDER BY ";
-    private static final String           GROUPBY                           = "GROUP BY";
-    private static final String           MAIN_FROM                         = "MAINFROM";
-    private static final String           FROM                              = "FROM ";
-    private static final String           ADDITIONAL_FILTERS                = "@additional_filters@";
-    private static final String           INSERTION_POINT_GENERIC_ID        = "@insertion_point_#@";
-    private static final String           INSERTION_POINT_INDEX_PLACEHOLDER = "#";
-    private static final String           DUMMY_INSERTION_POINT_REPLACEMENT = " 1 = 1 ";
+    public static final String              PROPERTY_FIELD_SEPARATOR          = "___";
+    /**
+     * Keyset pagination: the value of the sort property in the last row of the previous page. If it
+     * is not sent or it is "null", the value of the last row was null
+     */
+    public static final String              KEYSET_SORT_VALUE_PARAMETER       = "_keysetSortValue";
+    /**
+     * Keyset pagination: the id of the last row of the previous page. When it is sent, the page
+     * starts after that row instead of skipping the previous rows
+     */
+    public static final String              KEYSET_ID_PARAMETER               = "_keysetId";
+    /**
+     * Distinct requests: only the values whose identifier starts with this text, ignoring case, are
+     * returned
+     */
+    public static final String              DISTINCT_PREFIX_PARAMETER         = "_distinctPrefix";
+
+    private static final Logger             log                               = LoggerFactory.getLogger(HQLDataSourceService.class);
+    private static final String             AND                               = " AND ";
+    private static final String             WHERE                             = " WHERE ";
+    private static final String             ORDERBY                           = " ORDER BY ";
+    private static final String             GROUPBY                           = "GROUP BY";
+    private static final String             MAIN_FROM                         = "MAINFROM";
+    private static final String             FROM                              = "FROM ";
+    private static final String             ADDITIONAL_FILTERS                = "@additional_filters@";
+    private static final String             INSERTION_POINT_GENERIC_ID        = "@insertion_point_#@";
+    private static final String             INSERTION_POINT_INDEX_PLACEHOLDER = "#";
+    private static final String             DUMMY_INSERTION_POINT_REPLACEMENT = " 1 = 1 ";
+    private static final String             KEYSET_SORT_VALUE                 = "keysetSortValue";
+    private static final String             KEYSET_ID                         = "keysetId";
+    private static final String             DISTINCT_PREFIX                   = "distinctPrefix";
+    private static final long               DISTINCT_VALUES_TIME_TO_LIVE      = 60000L;
 
     @Inject
     @Any
-    private Instance<HqlInserter>         hqlInserters;
+    private Instance<HqlInserter>           hqlInserters;
     @Inject
     @Any
-    private Instance<HqlQueryTransformer> hqlQueryTransformers;
+    private Instance<HqlQueryTransformer>   hqlQueryTransformers;
+    @Inject
+    @Any
+    private Instance<HqlCountModeProvider>  hqlCountModeProviders;
+    @Inject
+    private HQLQueryPlanCache               queryPlanCache;
+    @Inject
+    private HQLQueryExecutor                queryExecutor;
 
     @Override
     public List<DataSourceProperty> getDataSourceProperties(Map<String, Object> parameters) {
@@ -136,9 +175,9 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
     public void checkFetchDatasourceAccess(Map<String, String> parameter) {
 
         final OBContext obContext = OBContext.getOBContext();
-        Table table = getTableFromParameters(parameter);
+        HQLTableDescriptor table = getTableDescriptor(parameter);
         try {
-            Entity entity = ModelProvider.getInstance().getEntityByTableId(table.getId());
+            Entity entity = table.getEntity();
             if (entity != null) {
                 obContext.getEntityAccessChecker().checkReadableAccess(entity);
             }
@@ -147,24 +186,134 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
         }
     }
 
+    /**
+     * Counts the rows of the request. The has more count mode is only applied by
+     * {@link #fetch(Map, Writer)}, which reads one more row instead of counting them, here the rows
+     * are counted exactly
+     */
     @Override
     protected int getCount(Map<String, String> parameters) {
 
-        Table table = getTableFromParameters(parameters);
+        HQLTableDescriptor table = getTableDescriptor(parameters);
+        HqlCountModeProvider countModeProvider = getCountModeProvider(table, parameters);
+        CountMode countMode = countModeProvider != null ? countModeProvider.getCountMode(parameters) : CountMode.EXACT;
+
         boolean justCount = true;
-        Query<Tuple> countQuery = getQuery(table, parameters, justCount);
-        String hqlQuery = countQuery.getQueryString();
-        int nRows = -1;
-        if (hqlQuery.toUpperCase().contains(GROUPBY)) {
-            justCount = false;
-            countQuery = getQuery(table, parameters, justCount);
-            return getGroupedCount(countQuery);
-        } else {
-            nRows = ((Number) countQuery.uniqueResult().get(0)).intValue();
+        CompiledQuery countQuery = compileQuery(table, parameters, justCount);
+        return getCount(table, parameters, countModeProvider, countMode, countQuery);
+    }
+
+    /**
+     * Returns the number of rows of the compiled count query, either exact or cached depending on the
+     * count mode
+     */
+    private int getCount(HQLTableDescriptor table, Map<String, String> parameters, HqlCountModeProvider countModeProvider,
+            CountMode countMode, CompiledQuery countQuery) {
+
+        HQLQueryPlanCache.PlanKey countKey = null;
+        if (countMode == CountMode.CACHED) {
+            countKey = getResultKey(table, countQuery);
+            Integer cachedCount = queryPlanCache.getCount(countKey);
+            if (cachedCount != null) {
+                return cachedCount;
+            }
+        }
+        int nRows = getExactCount(table, parameters, countQuery);
+        if (countKey != null) {
+            queryPlanCache.putCount(countKey, nRows, countModeProvider.getCacheTimeToLive());
         }
         return nRows;
     }
 
+    private int getExactCount(HQLTableDescriptor table, Map<String, String> parameters, CompiledQuery countQuery) {
+
+        String hqlQuery = countQuery.plan.getHqlQuery();
+        if (!hqlQuery.toUpperCase().contains(GROUPBY)) {
+            return ((Number) createQuery(countQuery).uniqueResult().get(0)).intValue();
+        }
+        if (parameters.get(JsonConstants.DISTINCT_PARAMETER) == null) {
+            // let the database count the groups instead of scrolling through all of them
+            String groupedCountQuery = HQLCountQueries.toGroupedCountQuery(hqlQuery);
+            if (groupedCountQuery != null) {
+                Tuple result = createQuery(new CompiledQuery(HQLQueryPlan.create(groupedCountQuery, countQuery.namedParameters),
+                        countQuery.namedParameters)).uniqueResult();
+                int nGroups = ((Number) result.get(0)).intValue();
+                if (((Number) result.get(1)).longValue() > 0) {
+                    // the rows where the grouping expression is null form one more group
+                    nGroups++;
+                }
+                return nGroups;
+            }
+        }
+        boolean justCount = false;
+        return getGroupedCount(getQuery(table, parameters, justCount));
+    }
+
+    /**
+     * Returns the key of a cached result: the query, the values of its parameters and the provided
+     * additional components, for the current user and role
+     */
+    private HQLQueryPlanCache.PlanKey getResultKey(HQLTableDescriptor table, CompiledQuery compiledQuery,
+            String... additionalComponents) {
+
+        List<String> parameterNames = compiledQuery.plan.getParameterNames();
+        String[] components = new String[parameterNames.size() + additionalComponents.length + 3];
+        OBContext obContext = OBContext.getOBContext();
+        components[0] = obContext.getUser().getId();
+        components[1] = obContext.getRole().getId();
+        components[2] = compiledQuery.plan.getHqlQuery();
+        for (int i = 0; i < parameterNames.size(); i++) {
+            components[i + 3] = parameterNames.get(i) + "=" + compiledQuery.namedParameters.get(parameterNames.get(i));
+        }
+        System.arraycopy(additionalComponents, 0, components, parameterNames.size() + 3, additionalComponents.length);
+        return new HQLQueryPlanCache.PlanKey(table.getTableId(), components);
+    }
+
+    /**
+     * Returns, if defined, the count mode provider of the table. If there are several providers, the
+     * one with the lowest priority is chosen
+     */
+    private HqlCountModeProvider getCountModeProvider(HQLTableDescriptor table, Map<String, String> parameters) {
+
+        HqlCountModeProvider provider = null;
+        if (!table.hasCountModeProviders()) {
+            return null;
+        }
+        for (HqlCountModeProvider nextProvider : hqlCountModeProviders.select(new ComponentProvider.Selector(table.getTableId()))) {
+            if (provider == null) {
+                provider = nextProvider;
+            } else if (nextProvider.getPriority(parameters) < provider.getPriority(parameters)) {
+                provider = nextProvider;
+            } else if (nextProvider.getPriority(parameters) == provider.getPriority(parameters)) {
+                log.warn("Trying to get the count mode provider for the table with id {}, there are more than one instance with same priority",
+                        table.getTableId());
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * If enabled, starts running the compiled count query in a background thread, so that it is
+     * computed while the data of the fetch is being read
+     *
+     * @return the count being computed, or null if it could not be started. In that case the rows
+     *         are counted in the request thread once the data has been read
+     */
+    private PendingCount startCount(final HQLTableDescriptor table, Map<String, String> parameters,
+            final HqlCountModeProvider countModeProvider, final CountMode countMode, final CompiledQuery countQuery) {
+
+        // the data query keeps using the request parameters, the count uses its own copy
+        final Map<String, String> countParameters = new HashMap<>(parameters);
+        Future<Integer> future = queryExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+
+                return getCount(table, countParameters, countModeProvider, countMode, countQuery);
+            }
+        });
+        return future != null ? new PendingCount(future) : null;
+    }
+
     protected int getGroupedCount(Query<Tuple> countQuery) {
 
         int nRows = -1;
@@ -179,25 +328,262 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
     @Override
     protected List<Map<String, Object>> getData(Map<String, String> parameters, int startRow, int endRow) {
 
-        Table table = getTableFromParameters(parameters);
-        Entity entity = ModelProvider.getInstance().getEntityByTableId(table.getId());
+        HQLTableDescriptor table = getTableDescriptor(parameters);
+        String distinct = parameters.get(JsonConstants.DISTINCT_PARAMETER);
+        if (distinct != null) {
+            return getDistinctValues(table, parameters, distinct, startRow, endRow);
+        }
         OBContext.setAdminMode(true);
         boolean justCount = false;
         Query<Tuple> query = getQuery(table, parameters, justCount);
 
-        if (startRow > 0) {
+        // with keyset pagination the query already starts after the last row of the previous page
+        if (startRow > 0 && !isKeysetPagination(table, parameters)) {
             query.setFirstResult(startRow);
         }
         if (endRow > startRow) {
             query.setMaxResults(endRow - startRow + 1);
         }
 
-        String distinct = parameters.get(JsonConstants.DISTINCT_PARAMETER);
-        List<Column> columns = table.getADColumnList();
         List<Map<String, Object>> data = new ArrayList<>();
+        String[] propertyNames = null;
         for (Tuple tuple : query.list()) {
             Map<String, Object> record = new HashMap<>();
-            if (distinct != null) {
+            if (propertyNames == null) {
+                // all the rows have the same aliases, resolve their property names just once
+                propertyNames = getPropertyNames(table, getAliases(tuple));
+            }
+            for (int i = 0; i < propertyNames.length; i++) {
+                record.put(propertyNames[i], tuple.get(i));
+            }
+            data.add(record);
+        }
+        OBContext.restorePreviousMode();
+        return data;
+    }
+
+    /**
+     * Fetches the data of the HQL table and returns the JSON response. The response is built by
+     * {@link #fetch(Map, Writer)}, so no map is created for the rows
+     */
+    @Override
+    public String fetch(Map<String, String> parameters) {
+
+        StringWriter writer = new StringWriter();
+        fetch(parameters, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Fetches the data of the HQL table and writes the response directly to the writer, reading
+     * the rows one by one from the database. The rows are not kept in memory, so the memory used
+     * does not depend on the number of rows fetched.
+     *
+     * If the {@link HQLQueryExecutor} is enabled, the rows are read with the read-only DAL and, when
+     * they have to be counted, the count runs at the same time in a background thread. The count is
+     * started and joined, or cancelled if it is not needed, within this method
+     *
+     * @param parameters
+     *            the parameters of the fetch request
+     * @param writer
+     *            the writer where the JSON response is written
+     */
+    public void fetch(Map<String, String> parameters, Writer writer) {
+
+        HQLTableDescriptor table = getTableDescriptor(parameters);
+        int startRow = getRowParameter(parameters, JsonConstants.STARTROW_PARAMETER, 0);
+        int endRow = getRowParameter(parameters, JsonConstants.ENDROW_PARAMETER, -1);
+        boolean paged = endRow > startRow;
+        int pageSize = endRow - startRow + 1;
+        String distinct = parameters.get(JsonConstants.DISTINCT_PARAMETER);
+
+        OBContext.setAdminMode(true);
+        try {
+            HqlCountModeProvider countModeProvider = getCountModeProvider(table, parameters);
+            CountMode countMode = countModeProvider != null ? countModeProvider.getCountMode(parameters) : CountMode.EXACT;
+            // in has more mode, or if the count is not requested, one more row tells whether there are
+            // rows after the page
+            boolean readExtraRow = paged && distinct == null
+                    && (countMode == CountMode.HAS_MORE || "true".equals(parameters.get(JsonConstants.NOCOUNT_PARAMETER)));
+
+            boolean justCount = true;
+            CompiledQuery countQuery = paged && !readExtraRow ? compileQuery(table, parameters, justCount) : null;
+            PendingCount pendingCount = countQuery != null && distinct == null
+                    ? startCount(table, parameters, countModeProvider, countMode, countQuery)
+                    : null;
+            try {
+                HQLJsonRowWriter rowWriter = new HQLJsonRowWriter(writer);
+                rowWriter.writeStart(startRow);
+                int nReadRows;
+                if (distinct != null) {
+                    nReadRows = writeDistinctValues(rowWriter, table, parameters, distinct, startRow, endRow);
+                } else {
+                    boolean readOnly = queryExecutor.startReadOnlyQueries();
+                    try {
+                        nReadRows = writeRows(rowWriter, table, parameters, startRow, paged ? pageSize : -1, readExtraRow);
+                    } finally {
+                        if (readOnly) {
+                            queryExecutor.endReadOnlyQueries();
+                        }
+                    }
+                }
+
+                int nRows = rowWriter.getRowCount();
+                int totalRows = startRow + nRows;
+                if (readExtraRow) {
+                    totalRows += nReadRows > nRows ? 1 : 0;
+                } else if (paged && (nRows == pageSize || (nRows == 0 && startRow > 0))) {
+                    // the last page has not been reached, the rows must be counted
+                    totalRows = pendingCount != null ? pendingCount.getCount()
+                            : getCount(table, parameters, countModeProvider, countMode, countQuery);
+                }
+                rowWriter.writeEnd(startRow, totalRows);
+            } finally {
+                if (pendingCount != null) {
+                    // nothing happens if the count has already been read
+                    pendingCount.cancel();
+                }
+            }
+        } catch (IOException e) {
+            throw new OBException("Error writing the data of the table " + table.getTableId(), e);
+        } finally {
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    private int getRowParameter(Map<String, String> parameters, String name, int defaultValue) {
+
+        String value = parameters.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Writes the rows of the page from a forward only cursor, evicting their objects from the session
+     * once they are written. Returns the number of rows read, which is one more than the rows written
+     * if the extra row is read and exists
+     */
+    private int writeRows(HQLJsonRowWriter rowWriter, HQLTableDescriptor table, Map<String, String> parameters,
+            int startRow, int pageSize, boolean readExtraRow) throws IOException {
+
+        boolean justCount = false;
+        Query<Tuple> query = getQuery(table, parameters, justCount);
+        // with keyset pagination the query already starts after the last row of the previous page
+        if (startRow > 0 && !isKeysetPagination(table, parameters)) {
+            query.setFirstResult(startRow);
+        }
+        if (pageSize > 0) {
+            query.setMaxResults(readExtraRow ? pageSize + 1 : pageSize);
+        }
+
+        int nReadRows = 0;
+        String[] propertyNames = null;
+        ScrollableResults scrollableResults = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (scrollableResults.next()) {
+                nReadRows++;
+                if (pageSize > 0 && nReadRows > pageSize) {
+                    // the extra row is not written
+                    break;
+                }
+                Object[] row = scrollableResults.get();
+                Tuple tuple = row.length == 1 && row[0] instanceof Tuple ? (Tuple) row[0] : null;
+                Object[] values = tuple != null ? tuple.toArray() : row;
+                if (propertyNames == null) {
+                    // all the rows have the same aliases, resolve their property names just once
+                    String[] aliases = tuple != null ? getAliases(tuple) : new String[values.length];
+                    propertyNames = getPropertyNames(table, aliases);
+                }
+                rowWriter.startRow();
+                for (int i = 0; i < propertyNames.length; i++) {
+                    rowWriter.writeValue(propertyNames[i], values[i]);
+                }
+                rowWriter.endRow();
+                // the written rows are not needed anymore, don't keep them in the session
+                evictRowObjects(values);
+            }
+        } finally {
+            scrollableResults.close();
+        }
+        return nReadRows;
+    }
+
+    private int writeDistinctValues(HQLJsonRowWriter rowWriter, HQLTableDescriptor table, Map<String, String> parameters,
+            String distinct, int startRow, int endRow) throws IOException {
+
+        List<Map<String, Object>> values = getDistinctValues(table, parameters, distinct, startRow, endRow);
+        for (Map<String, Object> value : values) {
+            rowWriter.startRow();
+            rowWriter.writeValue(JsonConstants.ID, value.get(JsonConstants.ID));
+            rowWriter.writeValue(JsonConstants.IDENTIFIER, value.get(JsonConstants.IDENTIFIER));
+            rowWriter.endRow();
+        }
+        return values.size();
+    }
+
+    private void evictRowObjects(Object[] values) {
+
+        for (Object value : values) {
+            if (value instanceof BaseOBObject) {
+                queryExecutor.getDal().getSession().evict(value);
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct values of the distinct property, with their id and identifier. The values
+     * are kept for a short time, so that the filter drop-downs do not run the same query again while
+     * the user is typing or scrolling
+     */
+    private List<Map<String, Object>> getDistinctValues(HQLTableDescriptor table, Map<String, String> parameters,
+            String distinct, int startRow, int endRow) {
+
+        OBContext.setAdminMode(true);
+        try {
+            boolean justCount = false;
+            CompiledQuery compiledQuery = compileQuery(table, parameters, justCount);
+            HQLQueryPlanCache.PlanKey key = getResultKey(table, compiledQuery, Integer.toString(startRow),
+                    Integer.toString(endRow));
+            List<Map<String, Object>> data = queryPlanCache.getDistinctValues(key);
+            if (data == null) {
+                data = readDistinctValues(table, compiledQuery, distinct, startRow, endRow);
+                queryPlanCache.putDistinctValues(key, data, DISTINCT_VALUES_TIME_TO_LIVE);
+            }
+            // the cached values are shared, return a copy of them
+            List<Map<String, Object>> values = new ArrayList<>(data.size());
+            for (Map<String, Object> value : data) {
+                values.add(new HashMap<>(value));
+            }
+            return values;
+        } finally {
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    private List<Map<String, Object>> readDistinctValues(HQLTableDescriptor table, CompiledQuery compiledQuery,
+            String distinct, int startRow, int endRow) {
+
+        Query<Tuple> query = createQuery(compiledQuery);
+        if (startRow > 0) {
+            query.setFirstResult(startRow);
+        }
+        if (endRow > startRow) {
+            query.setMaxResults(endRow - startRow + 1);
+        }
+        List<Tuple> tuples = query.list();
+        boolean projected = isDistinctProjection(table.getEntity().getProperty(distinct));
+        List<Map<String, Object>> data = new ArrayList<>();
+        for (Tuple tuple : tuples) {
+            Map<String, Object> record = new HashMap<>();
+            if (projected) {
+                // the id and the identifier of the referenced object are the first positions of the result
+                Object id = tuple.get(0);
+                if (id == null) {
+                    break;
+                }
+                Object identifier = tuple.get(1);
+                record.put(JsonConstants.ID, id);
+                record.put(JsonConstants.IDENTIFIER, identifier != null ? identifier : "");
+            } else {
                 // the whole referenced BaseOBObject is stored in the first position of the result
                 BaseOBObject bob = (BaseOBObject) tuple.get(0);
                 if (bob == null) {
@@ -205,19 +591,79 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
                 }
                 record.put(JsonConstants.ID, bob.getId());
                 record.put(JsonConstants.IDENTIFIER, IdentifierProvider.getInstance().getIdentifier(bob));
-            } else {
-                int i = 0;
-                for (TupleElement<?> tupleElement : tuple.getElements()) {
-                    String alias = tupleElement.getAlias();
-                    String propertyName = getPropertyName(entity, alias, columns.get(i).getDBColumnName());
-                    record.put(propertyName, alias != null ? tuple.get(alias) : tuple.get(i));
-                    i++;
-                }
             }
-            data.add(record);
+            data.add(Collections.unmodifiableMap(record));
         }
-        OBContext.restorePreviousMode();
-        return data;
+        return Collections.unmodifiableList(data);
+    }
+
+    /**
+     * Returns true if the identifier of the objects referenced by the property can be read directly
+     * from the database, without loading the objects: it is a single, not translatable, string
+     * property
+     */
+    private boolean isDistinctProjection(Property property) {
+
+        if (property.getTargetEntity() == null) {
+            return false;
+        }
+        List<Property> identifierProperties = property.getTargetEntity().getIdentifierProperties();
+        return identifierProperties.size() == 1 && isStringProperty(identifierProperties.get(0))
+                && !identifierProperties.get(0).isTranslatable();
+    }
+
+    private boolean isStringProperty(Property property) {
+
+        return property.isPrimitive() && property.getPrimitiveObjectType() == String.class;
+    }
+
+    /**
+     * Returns the filter that selects the distinct values whose identifier starts with the prefix sent
+     * in the request, or null if the prefix is not sent or it can not be applied. The value of the
+     * prefix is added to the named parameters
+     */
+    private String getDistinctPrefixFilter(HQLTableDescriptor table, Map<String, String> parameters,
+            Map<String, Object> queryNamedParameters) {
+
+        String distinct = parameters.get(JsonConstants.DISTINCT_PARAMETER);
+        String prefix = parameters.get(DISTINCT_PREFIX_PARAMETER);
+        if (distinct == null || prefix == null || prefix.isEmpty()) {
+            return null;
+        }
+        Property property = table.getEntity().getProperty(distinct);
+        if (property.getTargetEntity() == null || property.getTargetEntity().getIdentifierProperties().isEmpty()
+                || !isStringProperty(property.getTargetEntity().getIdentifierProperties().get(0))) {
+            return null;
+        }
+        String escapedPrefix = prefix.toUpperCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        queryNamedParameters.put(DISTINCT_PREFIX, escapedPrefix + "%");
+        return "upper(" + table.getColumnAlias(property.getName()) + "."
+                + getNameOfFirstIdentifierProperty(property.getTargetEntity()) + ") like :" + DISTINCT_PREFIX
+                + " escape '\\'";
+    }
+
+    private String[] getAliases(Tuple tuple) {
+
+        List<TupleElement<?>> elements = tuple.getElements();
+        String[] aliases = new String[elements.size()];
+        for (int i = 0; i < aliases.length; i++) {
+            aliases[i] = elements.get(i).getAlias();
+        }
+        return aliases;
+    }
+
+    /**
+     * Returns the names of the properties of the values of a row, given the aliases of the select
+     * clause of the query
+     */
+    private String[] getPropertyNames(HQLTableDescriptor table, String[] aliases) {
+
+        List<String> columnNames = table.getColumnNames();
+        String[] propertyNames = new String[aliases.length];
+        for (int i = 0; i < aliases.length; i++) {
+            propertyNames[i] = getPropertyName(table.getEntity(), aliases[i], columnNames.get(i));
+        }
+        return propertyNames;
     }
 
     private String getPropertyName(Entity entity, String alias, String columnName) {
@@ -237,31 +683,63 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
     }
 
     /**
-     * Returns the HQL table whose data is being fetched. It will be obtained either using the table
-     * id, or the tab id
+     * Returns the descriptor of the HQL table whose data is being fetched. The table will be
+     * obtained either using the table id, or the tab id
      * 
      * @param parameters
      *            the parameters sent in the fetch request
-     * @return the table whose data is being fetched
+     * @return the descriptor of the table whose data is being fetched
      */
-    private Table getTableFromParameters(Map<String, String> parameters) {
+    private HQLTableDescriptor getTableDescriptor(Map<String, String> parameters) {
 
-        Table table = null;
+        String tableId = parameters.get("tableId");
+        String tabId = parameters.get("tabId");
+        if (tableId == null && tabId != null) {
+            tableId = queryPlanCache.getTabTableId(tabId);
+        }
+        HQLTableDescriptor descriptor = tableId != null ? queryPlanCache.getTableDescriptor(tableId) : null;
+        if (descriptor != null) {
+            return descriptor;
+        }
         try {
             OBContext.setAdminMode(true);
-            String tableId = parameters.get("tableId");
-            String tabId = parameters.get("tabId");
+            Table table = null;
             if (tableId != null) {
                 table = OBDal.getInstance().get(Table.class, tableId);
             } else if (tabId != null) {
                 Tab tab = null;
                 tab = OBDal.getInstance().get(Tab.class, tabId);
                 table = tab.getTable();
+                queryPlanCache.putTabTableId(tabId, table.getId());
             }
+            if (table == null) {
+                return null;
+            }
+            descriptor = createTableDescriptor(table);
+            queryPlanCache.putTableDescriptor(descriptor);
         } finally {
             OBContext.restorePreviousMode();
         }
-        return table;
+        return descriptor;
+    }
+
+    /**
+     * Creates the descriptor of the table, checking which HQL transformers, inserters and count mode
+     * providers are defined for it. No instance of them is created here, each request gets its own
+     */
+    private HQLTableDescriptor createTableDescriptor(Table table) {
+
+        boolean hasTransformers = !hqlQueryTransformers.select(new ComponentProvider.Selector(table.getId())).isUnsatisfied();
+        List<Boolean> insertionPointsWithInserters = new ArrayList<>();
+        int index = 0;
+        while (existsInsertionPoint(table.getHqlQuery(), index)) {
+            insertionPointsWithInserters.add(!hqlInserters.select(
+                    new HQLInserterQualifier.Selector(table.getId(), Integer.toString(index))).isUnsatisfied());
+            index++;
+        }
+        boolean hasCountModeProviders = !hqlCountModeProviders.select(new ComponentProvider.Selector(table.getId()))
+                .isUnsatisfied();
+        return HQLTableDescriptor.create(table, hasTransformers, insertionPointsWithInserters, hasCountModeProviders);
     }
 
     /**
@@ -269,58 +747,163 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
      * the query will just return the number of records that fulfill the criteria. If justCount is
      * false, the query will return all the actual records that fulfill the criteria
      */
-    private Query<Tuple> getQuery(Table table, Map<String, String> parameters, boolean justCount) {
+    private Query<Tuple> getQuery(HQLTableDescriptor table, Map<String, String> parameters, boolean justCount) {
+
+        return createQuery(compileQuery(table, parameters, justCount));
+    }
+
+    /**
+     * Obtains the compiled HQL query for the request, either from the query plan cache or building it
+     * from the HQL query of the table, together with the values of its named parameters
+     */
+    private CompiledQuery compileQuery(HQLTableDescriptor table, Map<String, String> parameters, boolean justCount) {
 
         OBContext.setAdminMode(true);
-        String hqlQuery = table.getHqlQuery();
-        // obtains the where clause from the criteria, using the AdvancedQueryBuilder
-        JSONObject criteria = JsonUtils.buildCriteria(parameters);
-        AdvancedQueryBuilder queryBuilder = new AdvancedQueryBuilder();
-        queryBuilder.setEntity(ModelProvider.getInstance().getEntityByTableId(table.getId()));
-        if (!"40F3496FD4614CA9870C2CCE845A19BE".equals(table.getId()) && !"C12A930AD14F4EFCA6D9D47BBEED9D24".equals(table.getId())) {
-            queryBuilder.setCriteria(criteria);
-        }
+        try {
+            // obtains the where clause from the criteria, using the AdvancedQueryBuilder
+            JSONObject criteria = JsonUtils.buildCriteria(parameters);
+            AdvancedQueryBuilder queryBuilder = new AdvancedQueryBuilder();
+            queryBuilder.setEntity(table.getEntity());
+            if (!"40F3496FD4614CA9870C2CCE845A19BE".equals(table.getTableId()) && !"C12A930AD14F4EFCA6D9D47BBEED9D24".equals(table.getTableId())) {
+                queryBuilder.setCriteria(criteria);
+            }
 
-        // don't create new join aliases in the where clause, as they would not be present in the
-        // defined HQL FROM clause
-        queryBuilder.preventCreatingJoinsInWhereClause(true);
-        if (table.getEntityAlias() != null) {
-            queryBuilder.setMainAlias(table.getEntityAlias());
+            // don't create new join aliases in the where clause, as they would not be present in the
+            // defined HQL FROM clause
+            queryBuilder.preventCreatingJoinsInWhereClause(true);
+            if (table.getEntityAlias() != null) {
+                queryBuilder.setMainAlias(table.getEntityAlias());
+            }
+            String whereClause = "";
+            if (!"40F3496FD4614CA9870C2CCE845A19BE".equals(table.getTableId()) && !"C12A930AD14F4EFCA6D9D47BBEED9D24".equals(table.getTableId())) {
+                whereClause = queryBuilder.getWhereClause();
+            }
+            parameters.put("_justCount", String.valueOf(justCount));
+
+            Map<String, Object> queryNamedParameters = queryBuilder.getNamedParameters();
+
+            // the filters that depend on the request also reference their values through named
+            // parameters
+            String requestFilter = null;
+            if (!justCount && isKeysetPagination(table, parameters)) {
+                requestFilter = getKeysetFilter(table, parameters, queryNamedParameters);
+            }
+            String distinctPrefixFilter = getDistinctPrefixFilter(table, parameters, queryNamedParameters);
+            if (distinctPrefixFilter != null) {
+                requestFilter = requestFilter != null ? requestFilter + AND + distinctPrefixFilter : distinctPrefixFilter;
+            }
+
+            // the where clause references the criteria values through named parameters, so the compiled
+            // query can be reused by any request with the same criteria shape
+            HQLQueryPlanCache.PlanKey planKey = null;
+            HQLQueryPlan plan = null;
+            if (table.isCacheable()) {
+                planKey = getQueryPlanKey(table, whereClause, requestFilter, parameters, justCount);
+                plan = queryPlanCache.getPlan(planKey);
+            }
+            if (plan == null) {
+                String hqlQuery = buildHqlQuery(table, whereClause, requestFilter, queryNamedParameters, parameters,
+                        justCount);
+                plan = HQLQueryPlan.create(hqlQuery, queryNamedParameters);
+                if (planKey != null) {
+                    queryPlanCache.putPlan(planKey, plan);
+                }
+            }
+            return new CompiledQuery(plan, queryNamedParameters);
+        } finally {
+            OBContext.restorePreviousMode();
         }
-        String whereClause = "";
-        if (!"40F3496FD4614CA9870C2CCE845A19BE".equals(table.getId()) && !"C12A930AD14F4EFCA6D9D47BBEED9D24".equals(table.getId())) {
-            whereClause = queryBuilder.getWhereClause();
-            // replace the property names with the column alias
-            whereClause = replaceParametersWithAlias(table, whereClause);
+    }
+
+    /**
+     * Creates the hibernate query of a compiled query and sets the values of its named parameters
+     */
+    private Query<Tuple> createQuery(CompiledQuery compiledQuery) {
+
+        HQLQueryPlan plan = compiledQuery.plan;
+        log.debug("HQL query: {}", plan.getHqlQuery());
+        Query<Tuple> query = queryExecutor.getDal().getSession().createQuery(plan.getHqlQuery(), Tuple.class);
+
+        StringBuilder paramsLog = new StringBuilder();
+
+        // sets the parameters of the query
+        for (String key : plan.getParameterNames()) {
+            Object parameter = compiledQuery.namedParameters.get(key);
+            if (parameter instanceof Collection<?>) {
+                query.setParameterList(key, (Collection<?>) parameter);
+            } else {
+                query.setParameter(key, parameter);
+            }
+            if (log.isDebugEnabled()) {
+                paramsLog.append("\n").append(key).append(": ").append(parameter);
+            }
         }
 
+        log.debug("  parameters:{}", paramsLog);
+        return query;
+    }
+
+    /**
+     * Builds the final HQL query of the table for the provided filter where clause. The named
+     * parameters used by the HQL transformers and inserters are added to queryNamedParameters. The
+     * requestFilter, if not null, contains the filters that do not come from the criteria: the keyset
+     * pagination filter and the distinct prefix filter
+     */
+    private String buildHqlQuery(HQLTableDescriptor table, String filterWhereClause, String requestFilter,
+            Map<String, Object> queryNamedParameters, Map<String, String> parameters, boolean justCount) {
+
+        // replace the property names with the column alias
+        String whereClause = replaceParametersWithAlias(table, filterWhereClause);
         String distinct = parameters.get(JsonConstants.DISTINCT_PARAMETER);
+        String distinctSelectClause = null;
         if (distinct != null) {
-            String formClause = null;
-            if (hqlQuery.indexOf(MAIN_FROM) != -1) {
-                formClause = hqlQuery.substring(hqlQuery.indexOf(MAIN_FROM));
-            } else {
-                formClause = hqlQuery.substring(hqlQuery.toUpperCase().lastIndexOf(FROM));
-            }
-            Entity entity = ModelProvider.getInstance().getEntityByTableId(table.getId());
-            Property property = entity.getProperty(distinct);
-            Column distinctColumn = OBDal.getInstance().get(Column.class, property.getColumnId());
-            // TODO: Improve distinct query like this: https://issues.openbravo.com/view.php?id=25182
-            if (justCount) {
-                hqlQuery = "select count(distinct " + distinctColumn.getEntityAlias() + "."
-                        + getNameOfFirstIdentifierProperty(property.getTargetEntity()) + ") " + formClause;
-            } else {
-                // Retrieve:
-                // - the whole referenced object, so that later it is easier to obtain its id and
-                // its identifier (which can be a translation)
-                // - the first property of the entity's identifier. This is needed because it is the column
-                // that will be used to order the rows
-                hqlQuery = "select distinct " + distinctColumn.getEntityAlias() + "," + distinctColumn.getEntityAlias() + "."
-                        + getNameOfFirstIdentifierProperty(property.getTargetEntity()) + " " + formClause;
-            }
+            distinctSelectClause = getDistinctSelectClause(table, distinct, justCount);
+        }
+        String additionalFilter = getAdditionalFilter(table, whereClause, parameters);
+        if (requestFilter != null) {
+            additionalFilter = additionalFilter + AND + requestFilter;
+        }
+
+        HqlQueryTransformer hqlQueryTransformer = getTransformer(table, parameters);
+        if (hqlQueryTransformer != null) {
+            // the transformer can change the query in any way, so the placeholders are replaced one
+            // after the other on the transformed query
+            return buildTransformedHqlQuery(table, hqlQueryTransformer, distinctSelectClause, additionalFilter,
+                    queryNamedParameters, parameters, justCount);
+        }
+
+        HQLQueryTemplate template = table.getQueryTemplate();
+        boolean fromClauseOnly = distinctSelectClause != null;
+        // If the HQL Query contains a GROUP BY clause, the ID of the main entity should not be
+        // included in the order by clause
+        boolean includeMainEntityID = !template.hasGroupBy(fromClauseOnly, additionalFilter);
+        // adds the order by clause unless only the number of rows is needed
+        String orderByClause = justCount ? "" : getSortByClause(table, parameters, includeMainEntityID);
+        if (orderByClause.isEmpty() && !justCount && isKeysetPagination(table, parameters)) {
+            // keyset pagination needs a deterministic order, even if the grid is not sorted
+            orderByClause = ORDERBY + table.getEntityAlias() + ".id";
+        }
+        String[] insertedCode = getInsertedCode(table, template.getInsertionPointCount(fromClauseOnly),
+                queryNamedParameters, parameters);
+        return template.expand(distinctSelectClause, additionalFilter, orderByClause, insertedCode,
+                distinct == null && justCount);
+    }
+
+    /**
+     * Builds the final HQL query of a table that has an HQL Query Transformer. The transformer
+     * receives the query once the additional filters and the order by clause have been added, and
+     * its result is used to fill in the insertion points
+     */
+    private String buildTransformedHqlQuery(HQLTableDescriptor table, HqlQueryTransformer hqlQueryTransformer,
+            String distinctSelectClause, String additionalFilter, Map<String, Object> queryNamedParameters,
+            Map<String, String> parameters, boolean justCount) {
+
+        String hqlQuery = table.getHqlQuery();
+        if (distinctSelectClause != null) {
+            hqlQuery = distinctSelectClause + getFromClause(hqlQuery);
         }
         // adds the additional filters (client, organization and criteria) to the query
-        hqlQuery = addAdditionalFilters(table, hqlQuery, whereClause, parameters);
+        hqlQuery = addAdditionalFilters(hqlQuery, additionalFilter);
 
         boolean includeMainEntityID = true;
         if (hqlQuery.toUpperCase().contains(GROUPBY)) {
@@ -331,63 +914,241 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
 
         if (!justCount) {
             // adds the order by clause unless only the number of rows is needed
-            String orderByClause = getSortByClause(parameters, includeMainEntityID);
+            String orderByClause = getSortByClause(table, parameters, includeMainEntityID);
             if (!orderByClause.isEmpty()) {
                 hqlQuery = hqlQuery + orderByClause;
             }
         }
-        parameters.put("_justCount", String.valueOf(justCount));
 
-        Map<String, Object> queryNamedParameters = queryBuilder.getNamedParameters();
-
-        // if the is any HQL Query transformer defined for this table, use it to transform the query
-        hqlQuery = transFormQuery(hqlQuery, queryNamedParameters, parameters);
+        // use the HQL Query transformer defined for this table to transform the query
+        hqlQuery = hqlQueryTransformer.transformHqlQuery(hqlQuery, parameters, queryNamedParameters);
 
         // replaces the insertion points with injected code or with dummy comparisons
         // if the injected code includes named parameters for the query, they are stored in the
         // queryNamedParameters parameter
-        hqlQuery = fillInInsertionPoints(hqlQuery, queryNamedParameters, parameters);
+        hqlQuery = fillInInsertionPoints(table, hqlQuery, queryNamedParameters, parameters);
 
-        if (distinct == null && justCount) {
-            String formClause = null;
-            if (hqlQuery.indexOf(MAIN_FROM) != -1) {
-                formClause = hqlQuery.substring(hqlQuery.indexOf(MAIN_FROM));
-            } else {
-                formClause = hqlQuery.substring(hqlQuery.toUpperCase().lastIndexOf(FROM));
-            }
-            hqlQuery = "select count(*) " + formClause;
+        if (distinctSelectClause == null && justCount) {
+            hqlQuery = "select count(*) " + getFromClause(hqlQuery);
         }
 
         if (hqlQuery.indexOf(MAIN_FROM) != -1) {
             hqlQuery = hqlQuery.replace(MAIN_FROM, FROM);
         }
+        return hqlQuery;
+    }
 
-        log.debug("HQL query: {}", hqlQuery);
-        Query<Tuple> query = OBDal.getInstance().getSession().createQuery(hqlQuery, Tuple.class);
+    /**
+     * Returns the select clause used to retrieve the distinct values of a property, or the number of
+     * those values if justCount is true
+     */
+    private String getDistinctSelectClause(HQLTableDescriptor table, String distinct, boolean justCount) {
 
-        StringBuilder paramsLog = new StringBuilder();
+        Property property = table.getEntity().getProperty(distinct);
+        String distinctColumnAlias = table.getColumnAlias(property.getName());
+        if (justCount) {
+            return "select count(distinct " + distinctColumnAlias + "."
+                    + getNameOfFirstIdentifierProperty(property.getTargetEntity()) + ") ";
+        }
+        if (isDistinctProjection(property)) {
+            // the identifier is the first identifier property, retrieve just it and the id instead of
+            // loading the whole referenced objects
+            return "select distinct " + distinctColumnAlias + ".id," + distinctColumnAlias + "."
+                    + getNameOfFirstIdentifierProperty(property.getTargetEntity()) + " ";
+        }
+        // the identifier is translatable, has several properties or is not a string: it has to be
+        // built by the IdentifierProvider, so retrieve:
+        // - the whole referenced object, to obtain its id and its identifier
+        // - the first property of the entity's identifier. This is needed because it is the column
+        // that will be used to order the rows
+        return "select distinct " + distinctColumnAlias + "," + distinctColumnAlias + "."
+                + getNameOfFirstIdentifierProperty(property.getTargetEntity()) + " ";
+    }
 
-        // sets the parameters of the query
-        for (String key : queryNamedParameters.keySet()) {
-            // Injection and transforms might have modified the query removing named parameters. Check
-            // that key is still in the query.
-            if (hqlQuery.contains(key)) {
-                Object parameter = queryNamedParameters.get(key);
-                if (parameter instanceof Collection<?>) {
-                    query.setParameterList(key, (Collection<?>) parameter);
-                } else {
-                    query.setParameter(key, parameter);
-                }
-                if (log.isDebugEnabled()) {
-                    paramsLog.append("\n").append(key).append(": ").append(parameter);
-                }
+    /**
+     * Returns the FROM clause of the query, starting at the MAINFROM keyword if present or at the
+     * last FROM otherwise
+     */
+    private String getFromClause(String hqlQuery) {
+
+        if (hqlQuery.indexOf(MAIN_FROM) != -1) {
+            return hqlQuery.substring(hqlQuery.indexOf(MAIN_FROM));
+        }
+        return hqlQuery.substring(hqlQuery.toUpperCase().lastIndexOf(FROM));
+    }
+
+    /**
+     * Returns the code that replaces each insertion point, resolving its HQL inserter just once. If
+     * an insertion point has no inserter, it is replaced with a dummy comparison
+     */
+    private String[] getInsertedCode(HQLTableDescriptor table, int insertionPointCount, Map<String, Object> queryNamedParameters,
+            Map<String, String> parameters) {
+
+        String[] insertedCode = new String[insertionPointCount];
+        for (int index = 0; index < insertionPointCount; index++) {
+            HqlInserter inserter = getHqlInserter(table, index, parameters);
+            if (inserter != null) {
+                insertedCode[index] = inserter.insertHql(parameters, queryNamedParameters);
+            }
+            if (insertedCode[index] == null) {
+                insertedCode[index] = DUMMY_INSERTION_POINT_REPLACEMENT;
             }
         }
+        return insertedCode;
+    }
 
-        log.debug("  parameters:{}", paramsLog);
+    /**
+     * Returns true if the page is requested with keyset pagination and the query supports it: the
+     * request is not a distinct request, the table has no HQL transformer, the rows are not grouped
+     * and they are sorted by a property whose value can be compared
+     */
+    private boolean isKeysetPagination(HQLTableDescriptor table, Map<String, String> parameters) {
 
-        OBContext.restorePreviousMode();
-        return query;
+        if (parameters.get(KEYSET_ID_PARAMETER) == null || parameters.get(JsonConstants.DISTINCT_PARAMETER) != null
+                || table.hasTransformers()) {
+            return false;
+        }
+        String whereClauseParameter = parameters.get(JsonConstants.WHERE_AND_FILTER_CLAUSE);
+        if (table.getQueryTemplate().hasGroupBy(false, whereClauseParameter != null ? whereClauseParameter : "")) {
+            return false;
+        }
+        String sortPropertyName = getSortPropertyName(parameters);
+        if (sortPropertyName == null) {
+            // the rows are just sorted by id
+            return true;
+        }
+        Property sortProperty = getKeysetSortProperty(table, sortPropertyName);
+        return sortProperty != null && isKeysetComparable(sortProperty.getPrimitiveObjectType());
+    }
+
+    /**
+     * Returns the name of the property used to sort the rows, without direction and identifier
+     * suffix, or null if the rows are not sorted
+     */
+    private String getSortPropertyName(Map<String, String> parameters) {
+
+        String sortBy = parameters.get(JsonConstants.SORTBY_PARAMETER);
+        if (sortBy == null) {
+            sortBy = parameters.get(JsonConstants.ORDERBY_PARAMETER);
+        }
+        if (sortBy == null) {
+            return null;
+        }
+        if (sortBy.startsWith("-")) {
+            sortBy = sortBy.substring(1);
+        }
+        if (sortBy.endsWith("$_identifier")) {
+            sortBy = sortBy.substring(0, sortBy.length() - ("$identifier".length() + 1));
+        }
+        return sortBy;
+    }
+
+    /**
+     * Returns the property whose value is compared by the keyset filter: the sort property itself or,
+     * for foreign keys, the first identifier property of the referenced entity, as done in
+     * {@link #getSortByClause(HQLTableDescriptor, Map, boolean)}
+     */
+    private Property getKeysetSortProperty(HQLTableDescriptor table, String sortPropertyName) {
+
+        boolean checkIsNotNull = false;
+        Property property = table.getEntity().getProperty(sortPropertyName, checkIsNotNull);
+        if (property == null || table.getColumnAlias(property.getName()) == null) {
+            return null;
+        }
+        if (property.getTargetEntity() == null) {
+            return property;
+        }
+        List<Property> identifierProperties = property.getTargetEntity().getIdentifierProperties();
+        if (identifierProperties.isEmpty() || !identifierProperties.get(0).isPrimitive()) {
+            return null;
+        }
+        return identifierProperties.get(0);
+    }
+
+    private boolean isKeysetComparable(Class<?> type) {
+
+        return type == String.class || type == BigDecimal.class || type == Long.class || Date.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Returns the filter that selects the rows after the last row of the previous page. The rows are
+     * sorted by the sort property and then by id, with the null values last in ascending order and
+     * first in descending order, so the filter selects the rows whose sort value is after the last
+     * one, or the same with a greater id. The values of the filter are added to the named parameters
+     */
+    private String getKeysetFilter(HQLTableDescriptor table, Map<String, String> parameters,
+            Map<String, Object> queryNamedParameters) {
+
+        String idExpression = table.getEntityAlias() + ".id";
+        queryNamedParameters.put(KEYSET_ID, parameters.get(KEYSET_ID_PARAMETER));
+        String idFilter = idExpression + " > :" + KEYSET_ID;
+
+        String sortPropertyName = getSortPropertyName(parameters);
+        if (sortPropertyName == null) {
+            return idFilter;
+        }
+        String sortBy = parameters.get(JsonConstants.SORTBY_PARAMETER);
+        if (sortBy == null) {
+            sortBy = parameters.get(JsonConstants.ORDERBY_PARAMETER);
+        }
+        boolean asc = !sortBy.startsWith("-");
+        Property property = table.getEntity().getProperty(sortPropertyName);
+        String sortExpression = table.getColumnAlias(property.getName());
+        if (property.getTargetEntity() != null) {
+            sortExpression = sortExpression + "." + getNameOfFirstIdentifierProperty(property.getTargetEntity());
+        }
+
+        String sortValue = parameters.get(KEYSET_SORT_VALUE_PARAMETER);
+        if (sortValue == null || "null".equals(sortValue)) {
+            if (asc) {
+                // the null values are the last ones
+                return "(" + sortExpression + " is null and " + idFilter + ")";
+            }
+            return "((" + sortExpression + " is null and " + idFilter + ") or " + sortExpression + " is not null)";
+        }
+        queryNamedParameters.put(KEYSET_SORT_VALUE,
+                getKeysetSortValue(getKeysetSortProperty(table, sortPropertyName).getPrimitiveObjectType(), sortValue));
+        String comparison = sortExpression + (asc ? " > :" : " < :") + KEYSET_SORT_VALUE + " or (" + sortExpression + " = :"
+                + KEYSET_SORT_VALUE + " and " + idFilter + ")";
+        if (asc) {
+            return "(" + comparison + " or " + sortExpression + " is null)";
+        }
+        return "(" + comparison + ")";
+    }
+
+    private Object getKeysetSortValue(Class<?> type, String value) {
+
+        if (type == BigDecimal.class) {
+            return new BigDecimal(value);
+        } else if (type == Long.class) {
+            return Long.valueOf(value);
+        } else if (Date.class.isAssignableFrom(type)) {
+            try {
+                if (value.length() > 10) {
+                    return JsonUtils.createDateTimeFormat().parse(value);
+                }
+                return JsonUtils.createDateFormat().parse(value);
+            } catch (ParseException e) {
+                throw new OBException("The keyset sort value " + value + " is not a valid date", e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the key that identifies the compiled query: besides the criteria shape, it includes
+     * every value that is embedded as text in the HQL query. The organizations are included as they
+     * are written in the query, so a change in the organization tree or in the access of the role
+     * leads to a different key
+     */
+    private HQLQueryPlanCache.PlanKey getQueryPlanKey(HQLTableDescriptor table, String whereClause, String requestFilter,
+            Map<String, String> parameters, boolean justCount) {
+
+        return new HQLQueryPlanCache.PlanKey(table.getTableId(), whereClause, requestFilter, String.valueOf(justCount),
+                parameters.get(JsonConstants.DISTINCT_PARAMETER), parameters.get(JsonConstants.SORTBY_PARAMETER),
+                parameters.get(JsonConstants.ORDERBY_PARAMETER), OBContext.getOBContext().getCurrentClient().getId(),
+                DataSourceUtils.getOrgs(parameters.get(JsonConstants.ORG_PARAMETER)),
+                parameters.get(JsonConstants.WHERE_AND_FILTER_CLAUSE));
     }
 
     /**
@@ -395,6 +1156,8 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
      * insertion points are defined in the query but its definition is not injected, replace them with
      * dummy comparisons
      * 
+     * @param table
+     *            descriptor of the table being fetched
      * @param hqlQuery
      *            hql query that might contain insertion points
      * @param queryNamedParameters
@@ -405,12 +1168,13 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
      * @return the updated hql query. Also, hqlParameters can contain the named parameters used in the
      *         insertion points
      */
-    private String fillInInsertionPoints(String hqlQuery, Map<String, Object> queryNamedParameters, Map<String, String> parameters) {
+    private String fillInInsertionPoints(HQLTableDescriptor table, String hqlQuery, Map<String, Object> queryNamedParameters,
+            Map<String, String> parameters) {
 
         String updatedHqlQuery = hqlQuery;
         int index = 0;
         while (existsInsertionPoint(hqlQuery, index)) {
-            HqlInserter inserter = getHqlInserter(index, parameters);
+            HqlInserter inserter = getHqlInserter(table, index, parameters);
             String insertedCode = null;
             if (inserter != null) {
                 insertedCode = inserter.insertHql(parameters, queryNamedParameters);
@@ -425,48 +1189,30 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
         return updatedHqlQuery;
     }
 
-    /**
-     * If there is any HQL Query Transformer defined, uses its transformHqlQuery to transform the
-     * query
-     * 
-     * @param hqlQuery
-     *            the original HQL query
-     * @param queryNamedParameters
-     *            the named parameters that will be used in the query
-     * @param parameters
-     *            the parameters of the request
-     * @return the transformed query
-     */
-    private String transFormQuery(String hqlQuery, Map<String, Object> queryNamedParameters, Map<String, String> parameters) {
-
-        String transformedHqlQuery = hqlQuery;
-        HqlQueryTransformer hqlQueryTransformer = getTransformer(parameters);
-        if (hqlQueryTransformer != null) {
-            transformedHqlQuery = hqlQueryTransformer.transformHqlQuery(transformedHqlQuery, parameters, queryNamedParameters);
-        }
-        return transformedHqlQuery;
-    }
-
     /**
      * Returns, if defined, an HQL Query Transformer for this table. If the are several transformers
      * defined, the one with the lowest priority will be chosen
      * 
+     * @param table
+     *            the descriptor of the table being fetched
      * @param parameters
      *            the parameters of the request
      * @return the HQL Query transformer that will be used to transform the query
      */
-    private HqlQueryTransformer getTransformer(Map<String, String> parameters) {
+    private HqlQueryTransformer getTransformer(HQLTableDescriptor table, Map<String, String> parameters) {
 
+        if (!table.hasTransformers()) {
+            return null;
+        }
         HqlQueryTransformer transformer = null;
-        Table table = getTableFromParameters(parameters);
-        for (HqlQueryTransformer nextTransformer : hqlQueryTransformers.select(new ComponentProvider.Selector(table.getId()))) {
+        for (HqlQueryTransformer nextTransformer : hqlQueryTransformers.select(new ComponentProvider.Selector(table.getTableId()))) {
             if (transformer == null) {
                 transformer = nextTransformer;
             } else if (nextTransformer.getPriority(parameters) < transformer.getPriority(parameters)) {
                 transformer = nextTransformer;
             } else if (nextTransformer.getPriority(parameters) == transformer.getPriority(parameters)) {
                 log.warn("Trying to get hql query transformer for the table with id {}, there are more than one instance with same priority",
-                        table.getId());
+                        table.getTableId());
             }
         }
         return transformer;
@@ -475,6 +1221,8 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
     /**
      * Returns, if defined, an HQL inserter for the insertion point with index id
      * 
+     * @param table
+     *            the descriptor of the table being fetched
      * @param index
      *            the index of the insertion point
      * @param parameters
@@ -482,11 +1230,15 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
      * @return the HQL inserter with the lowest priority for the insertion point
      * @insertion_point_<index>@
      */
-    private HqlInserter getHqlInserter(int index, Map<String, String> parameters) {
+    private HqlInserter getHqlInserter(HQLTableDescriptor table, int index, Map<String, String> parameters) {
 
+        // a transformer can add insertion points that are not present in the HQL query of the table,
+        // the inserters of those are always looked up
+        if (index < table.getInsertionPointCount() && !table.hasInserters(index)) {
+            return null;
+        }
         HqlInserter inserter = null;
-        Table table = getTableFromParameters(parameters);
-        for (HqlInserter inj : hqlInserters.select(new HQLInserterQualifier.Selector(table.getId(), Integer.toString(index)))) {
+        for (HqlInserter inj : hqlInserters.select(new HQLInserterQualifier.Selector(table.getTableId(), Integer.toString(index)))) {
             if (inserter == null) {
                 inserter = inj;
             } else if (inj.getPriority(parameters) < inserter.getPriority(parameters)) {
@@ -494,7 +1246,7 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
             } else if (inj.getPriority(parameters) == inserter.getPriority(parameters)) {
                 log.warn(
                         "Trying to get hql inserter for the insertion point {} of the table with id {}, there are more than one instance with same priority",
-                        INSERTION_POINT_GENERIC_ID.replace(INSERTION_POINT_INDEX_PLACEHOLDER, Integer.toString(index)), table.getId());
+                        INSERTION_POINT_GENERIC_ID.replace(INSERTION_POINT_INDEX_PLACEHOLDER, Integer.toString(index)), table.getTableId());
             }
         }
         return inserter;
@@ -525,83 +1277,31 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
      *            the filter criteria
      * @return an updated filter criteria that uses the alias of the columns instead of their names
      */
-    private String replaceParametersWithAlias(Table table, String whereClause) {
+    private String replaceParametersWithAlias(HQLTableDescriptor table, String whereClause) {
 
         if (whereClause.trim().isEmpty()) {
             return whereClause;
         }
-        String updatedWhereClause = whereClause.toString();
-        Entity entity = ModelProvider.getInstance().getEntityByTableId(table.getId());
-        for (Column column : table.getADColumnList()) {
-            // look for the property name, replace it with the column alias
-            Property property = entity.getPropertyByColumnName(column.getDBColumnName());
-            // Map used to replace the property name used in the criteria with its alias
-            Map<String, String> replacementMap = new HashMap<>();
-            String propertyNameBefore = null;
-            String propertyNameAfter = null;
-            if (property.isPrimitive()) {
-                // if the property is a primitive, just replace the property name with the column alias
-                propertyNameBefore = property.getName();
-                propertyNameAfter = column.getEntityAlias();
-                addEntryToReplacementMap(replacementMap, propertyNameBefore, propertyNameAfter, table.getEntityAlias());
-            } else {
-                // the criteria can refer to the foreign key via its ID...
-                propertyNameBefore = property.getName() + "." + JsonConstants.ID;
-                propertyNameAfter = column.getEntityAlias() + "." + JsonConstants.ID;
-                addEntryToReplacementMap(replacementMap, propertyNameBefore, propertyNameAfter, table.getEntityAlias());
-                // ... or through its identifier
-                Entity refEntity = property.getReferencedProperty().getEntity();
-                String identifierPropertyName = refEntity.getIdentifierProperties().get(0).getName();
-                propertyNameBefore = property.getName() + "." + identifierPropertyName;
-                propertyNameAfter = column.getEntityAlias() + "." + identifierPropertyName;
-                addEntryToReplacementMap(replacementMap, propertyNameBefore, propertyNameAfter, table.getEntityAlias());
-            }
-            for (Entry<String, String> replacement : replacementMap.entrySet()) {
-                updatedWhereClause = updatedWhereClause.replaceAll(replacement.getKey(), replacement.getValue());
-            }
-        }
-        return updatedWhereClause;
+        return table.getAliasRewriter().rewrite(whereClause);
     }
 
     /**
-     * Adds a pair oldName-newName to the replacement map All possible parenthesis combinations are
-     * added to the replacement map
-     */
-    private void addEntryToReplacementMap(Map<String, String> replacementMap, String oldName, String newName, String mainAlias) {
-
-        replacementMap.put(" " + oldName + " ", " " + newName + " ");
-        replacementMap.put("[(]" + oldName + "[)]", "(" + newName + ")");
-        replacementMap.put("[(]" + oldName + " ", "(" + newName + " ");
-        replacementMap.put(" " + oldName + "[)]", " " + newName + ")");
-
-        if (StringUtils.isNotEmpty(mainAlias)) {
-            // if table has alias, add also replacements taking it into account
-            addEntryToReplacementMap(replacementMap, mainAlias + "." + oldName, newName, null);
-        }
-    }
-
-    /**
-     * Adds the additional filters to the hql query. The additional filters include the client filter,
-     * the organization filter and the filter created from the grid criteria
+     * Returns the additional filters of the hql query. The additional filters include the client
+     * filter, the organization filter and the filter created from the grid criteria
      * 
      * @param table
      *            table being fetched
-     * @param hqlQuery
-     *            hql query without the additional filters
      * @param filterWhereClause
      *            filter created from the grid criteria
      * @param parameters
      *            parameters used for this request
      */
-    private String addAdditionalFilters(Table table, String hqlQuery, String filterWhereClause, Map<String, String> parameters) {
+    private String getAdditionalFilter(HQLTableDescriptor table, String filterWhereClause, Map<String, String> parameters) {
 
         OBContext.setAdminMode(true);
         StringBuilder additionalFilter = new StringBuilder();
         final String entityAlias = table.getEntityAlias();
 
-        // replace the carriage returns and the tabulations with blanks
-        String hqlQueryWithFilters = hqlQuery.replace("\n", " ").replace("\r", " ");
-
         // client filter
         additionalFilter.append(entityAlias + ".client.id in ('0', '").append(OBContext.getOBContext().getCurrentClient().getId()).append("')");
 
@@ -619,10 +1319,26 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
         if (whereClauseParameter != null && !whereClauseParameter.trim().isEmpty() && !"null".equals(whereClauseParameter)) {
             additionalFilter.append(AND + whereClauseParameter);
         }
+        OBContext.restorePreviousMode();
+        return additionalFilter.toString();
+    }
+
+    /**
+     * Adds the additional filters to the hql query
+     * 
+     * @param hqlQuery
+     *            hql query without the additional filters
+     * @param additionalFilter
+     *            the additional filters, see {@link #getAdditionalFilter(HQLTableDescriptor, String, Map)}
+     */
+    private String addAdditionalFilters(String hqlQuery, String additionalFilter) {
+
+        // replace the carriage returns and the tabulations with blanks
+        String hqlQueryWithFilters = hqlQuery.replace("\n", " ").replace("\r", " ");
 
         if (hqlQueryWithFilters.contains(ADDITIONAL_FILTERS)) {
             // replace @additional_filters@ with the actual hql filters
-            hqlQueryWithFilters = hqlQueryWithFilters.replace(ADDITIONAL_FILTERS, additionalFilter.toString());
+            hqlQueryWithFilters = hqlQueryWithFilters.replace(ADDITIONAL_FILTERS, additionalFilter);
         } else {
             // adds the hql filters in the proper place at the end of the query
             String separator = null;
@@ -633,9 +1349,8 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
                 // otherwise, append with 'where'
                 separator = WHERE;
             }
-            hqlQueryWithFilters = hqlQueryWithFilters + separator + additionalFilter.toString();
+            hqlQueryWithFilters = hqlQueryWithFilters + separator + additionalFilter;
         }
-        OBContext.restorePreviousMode();
         return hqlQueryWithFilters;
     }
 
@@ -654,6 +1369,8 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
     /**
      * Returns a HQL sort by clause based on the parameters sent to the datasource
      * 
+     * @param table
+     *            descriptor of the table being fetched
      * @param parameters
      *            parameters sent in the request. They can contain useful info like the property being
      *            sorted, its table, etc
@@ -663,10 +1380,9 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
      *            for instance
      * @return an HQL sort by clause or an empty string if the grid is not being filtered
      */
-    private String getSortByClause(Map<String, String> parameters, boolean includeMainEntityID) {
+    private String getSortByClause(HQLTableDescriptor table, Map<String, String> parameters, boolean includeMainEntityID) {
 
         String orderByClause = "";
-        Table table = getTableFromParameters(parameters);
 
         boolean isDistinctQuery = false;
         final String sortBy = parameters.get(JsonConstants.SORTBY_PARAMETER);
@@ -694,15 +1410,13 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
             propertyName = orderByClause;
         }
 
-        Entity entity = ModelProvider.getInstance().getEntityByTableId(table.getId());
         boolean checkIsNotNull = false;
-        Property property = entity.getProperty(propertyName, checkIsNotNull);
+        Property property = table.getEntity().getProperty(propertyName, checkIsNotNull);
         if (property == null) {
             orderByClause = ORDERBY + propertyName;
         } else {
-            Column column = OBDal.getInstance().get(Column.class, property.getColumnId());
             if (!orderByClause.isEmpty()) {
-                orderByClause = ORDERBY + column.getEntityAlias();
+                orderByClause = ORDERBY + table.getColumnAlias(property.getName());
                 if (property.getTargetEntity() != null) {
                     orderByClause = orderByClause + "." + getNameOfFirstIdentifierProperty(property.getTargetEntity());
                 }
@@ -728,4 +1442,54 @@ public class HQLDataSourceService extends ReadOnlyDataSourceService {
         }
         return propertyName;
     }
+
+    /**
+     * A compiled HQL query together with the values of the named parameters of the request
+     */
+    private static class CompiledQuery {
+        private final HQLQueryPlan        plan;
+        private final Map<String, Object> namedParameters;
+
+        private CompiledQuery(HQLQueryPlan plan, Map<String, Object> namedParameters) {
+
+            this.plan = plan;
+            this.namedParameters = namedParameters;
+        }
+    }
+
+    /**
+     * A count running in the background, together with the parameters of the fetch it belongs to
+     */
+    /**
+     * The count of a fetch being computed in a background thread. It belongs to the fetch that
+     * started it, which reads or cancels it before returning
+     */
+    private static class PendingCount {
+        private final Future<Integer> future;
+
+        private PendingCount(Future<Integer> future) {
+
+            this.future = future;
+        }
+
+        private int getCount() {
+
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OBException("Interrupted while counting the rows", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new OBException("Error counting the rows", e.getCause());
+            }
+        }
+
+        private void cancel() {
+
+            future.cancel(true);
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.base.structure.IdentifierProvider;
+import org.openbravo.service.json.JsonConstants;
+import org.openbravo.service.json.JsonUtils;
+
+/**
+ * Writes the response of a fetch request directly to a writer, one row at a time, so that no
+ * intermediate map or JSON object is created for the rows.
+ *
+ * The values are encoded as the datasources do when the rows are returned as maps: dates and
+ * timestamps in XML schema format and referenced objects as their id plus an
+ * {@link JsonConstants#IDENTIFIER} property.
+ */
+class HQLJsonRowWriter {
+
+    private static final String    IDENTIFIER_SUFFIX = JsonConstants.FIELD_SEPARATOR + JsonConstants.IDENTIFIER;
+
+    private final Writer           writer;
+    private final SimpleDateFormat dateFormat        = JsonUtils.createDateFormat();
+    private final SimpleDateFormat dateTimeFormat    = JsonUtils.createDateTimeFormat();
+    private boolean                firstValue;
+    private int                    rowCount;
+
+    HQLJsonRowWriter(Writer writer) {
+
+        this.writer = writer;
+    }
+
+    /**
+     * Writes the beginning of the response, up to the opening of the data array
+     */
+    void writeStart(int startRow) throws IOException {
+
+        writer.write("{" + JSONObject.quote(JsonConstants.RESPONSE_RESPONSE) + ":{");
+        writer.write(JSONObject.quote(JsonConstants.RESPONSE_STATUS) + ":" + JsonConstants.RPCREQUEST_STATUS_SUCCESS + ",");
+        writer.write(JSONObject.quote(JsonConstants.RESPONSE_STARTROW) + ":" + startRow + ",");
+        writer.write(JSONObject.quote(JsonConstants.RESPONSE_DATA) + ":[");
+    }
+
+    void startRow() throws IOException {
+
+        if (rowCount > 0) {
+            writer.write(',');
+        }
+        writer.write('{');
+        firstValue = true;
+    }
+
+    void endRow() throws IOException {
+
+        writer.write('}');
+        rowCount++;
+    }
+
+    /**
+     * Writes a property of the current row. Referenced objects are written as their id, plus the
+     * identifier in the propertyName$_identifier property
+     */
+    void writeValue(String propertyName, Object value) throws IOException {
+
+        if (value instanceof BaseOBObject) {
+            BaseOBObject bob = (BaseOBObject) value;
+            writeName(propertyName);
+            writer.write(JSONObject.quote(String.valueOf(bob.getId())));
+            writeName(propertyName + IDENTIFIER_SUFFIX);
+            writer.write(JSONObject.quote(IdentifierProvider.getInstance().getIdentifier(bob)));
+            return;
+        }
+        writeName(propertyName);
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof Timestamp) {
+            writer.write(JSONObject.quote(JsonUtils.convertToCorrectXSDFormat(dateTimeFormat.format(value))));
+        } else if (value instanceof Date) {
+            writer.write(JSONObject.quote(dateFormat.format(value)));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(value.toString());
+        } else {
+            writer.write(JSONObject.quote(value.toString()));
+        }
+    }
+
+    private void writeName(String propertyName) throws IOException {
+
+        if (!firstValue) {
+            writer.write(',');
+        }
+        firstValue = false;
+        writer.write(JSONObject.quote(propertyName));
+        writer.write(':');
+    }
+
+    /**
+     * Closes the data array and writes the rest of the response
+     */
+    void writeEnd(int startRow, int totalRows) throws IOException {
+
+        writer.write("],");
+        writer.write(JSONObject.quote(JsonConstants.RESPONSE_ENDROW) + ":" + (startRow + Math.max(rowCount, 1) - 1) + ",");
+        writer.write(JSONObject.quote(JsonConstants.RESPONSE_TOTALROWS) + ":" + totalRows);
+        writer.write("}}");
+        writer.flush();
+    }
+
+    int getRowCount() {
+
+        return rowCount;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs HQL datasource queries in background threads, so that the count and the data of a fetch
+ * can be obtained at the same time.
+ *
+ * The number of threads and of queued queries is bounded. Each task runs with the security context
+ * of the request that submitted it and with its own session of the read-only pool, see
+ * {@link #getDal()}, which is closed once the task finishes. While it is enabled, the request
+ * thread also reads the data of the fetch with the read-only DAL, see
+ * {@link #startReadOnlyQueries()}. It is configured with these
+ * Openbravo.properties:
+ * <ul>
+ * <li>hqlDatasource.parallelCount: set to true to run the count of the fetches in parallel with
+ * their data. False by default.</li>
+ * <li>hqlDatasource.parallelCount.threads: number of threads, 4 by default.</li>
+ * <li>hqlDatasource.parallelCount.queueSize: number of queries waiting for a thread, 50 by
+ * default. When it is full, the queries are run in the request thread.</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class HQLQueryExecutor {
+
+    private static final Logger      log                 = LoggerFactory.getLogger(HQLQueryExecutor.class);
+    private static final String      ENABLED_PROPERTY    = "hqlDatasource.parallelCount";
+    private static final String      THREADS_PROPERTY    = "hqlDatasource.parallelCount.threads";
+    private static final String      QUEUE_SIZE_PROPERTY = "hqlDatasource.parallelCount.queueSize";
+    private static final int         DEFAULT_THREADS     = 4;
+    private static final int         DEFAULT_QUEUE_SIZE  = 50;
+
+    /**
+     * Set in the threads of the executor while they run a task, and in a request thread while it
+     * reads the data of a fetch
+     */
+    private static final ThreadLocal<Boolean> queryThread = new ThreadLocal<>();
+
+    private final boolean            enabled;
+    private final ThreadPoolExecutor executor;
+
+    public HQLQueryExecutor() {
+
+        Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+        enabled = "true".equals(properties.getProperty(ENABLED_PROPERTY, "false").trim());
+        if (enabled) {
+            int threads = getIntProperty(properties, THREADS_PROPERTY, DEFAULT_THREADS);
+            int queueSize = getIntProperty(properties, QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new QueryThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    private static int getIntProperty(Properties properties, String name, int defaultValue) {
+
+        String value = properties.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value {} for property {}, using {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the DAL whose session must be used by the queries of the current thread: the read-only
+     * one in the threads of this executor, the default one otherwise
+     */
+    public OBDal getDal() {
+
+        return Boolean.TRUE.equals(queryThread.get()) ? OBDal.getReadOnlyInstance() : OBDal.getInstance();
+    }
+
+    /**
+     * Makes the queries of the current thread use the read-only DAL, see {@link #getDal()}, until
+     * {@link #endReadOnlyQueries()} is invoked. The read-only session is not closed then, it is
+     * released together with the rest of the sessions of the request
+     * 
+     * @return true if the read-only DAL is used from now on, false if the executor is disabled or the
+     *         current thread is already using it
+     */
+    public boolean startReadOnlyQueries() {
+
+        if (!enabled || Boolean.TRUE.equals(queryThread.get())) {
+            return false;
+        }
+        queryThread.set(Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Makes the queries of the current thread use the default DAL again, see
+     * {@link #startReadOnlyQueries()}
+     */
+    public void endReadOnlyQueries() {
+
+        queryThread.remove();
+    }
+
+    /**
+     * Returns true if the queries can be run in parallel
+     */
+    public boolean isEnabled() {
+
+        return enabled;
+    }
+
+    /**
+     * Runs the task in a background thread, with the security context of the current thread.
+     * 
+     * @return the future result of the task, or null if it could not be submitted because the
+     *         executor is disabled or full. In that case the caller is expected to run the task
+     *         itself
+     */
+    public <T> Future<T> submit(final Callable<T> task) {
+
+        if (!enabled) {
+            return null;
+        }
+        final OBContext obContext = OBContext.getOBContext();
+        try {
+            return executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+
+                    OBContext.setOBContext(obContext);
+                    queryThread.set(Boolean.TRUE);
+                    try {
+                        return task.call();
+                    } finally {
+                        // nothing has been modified, just release the connections
+                        queryThread.remove();
+                        OBDal.getReadOnlyInstance().rollbackAndClose();
+                        OBDal.getInstance().rollbackAndClose();
+                        OBContext.setOBContext((OBContext) null);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("HQL query executor is full, the query will be run in the request thread");
+            return null;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class QueryThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "hql-datasource-query-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of compiling the HQL of an HQL table for a given criteria shape: the final HQL text
+ * and the names of the named parameters that have to be bound to it, in binding order.
+ *
+ * Instances are immutable so they can be shared between requests through the
+ * {@link HQLQueryPlanCache}.
+ */
+class HQLQueryPlan {
+
+    private final String       hqlQuery;
+    private final List<String> parameterNames;
+
+    HQLQueryPlan(String hqlQuery, List<String> parameterNames) {
+
+        this.hqlQuery = hqlQuery;
+        this.parameterNames = Collections.unmodifiableList(new ArrayList<>(parameterNames));
+    }
+
+    /**
+     * Creates a plan for the provided query, keeping only the named parameters that are still
+     * present in it. Injection and transforms might have removed some of them from the query.
+     */
+    static HQLQueryPlan create(String hqlQuery, Map<String, Object> queryNamedParameters) {
+
+        List<String> parameterNames = new ArrayList<>();
+        for (String key : queryNamedParameters.keySet()) {
+            if (hqlQuery.contains(key)) {
+                parameterNames.add(key);
+            }
+        }
+        return new HQLQueryPlan(hqlQuery, parameterNames);
+    }
+
+    String getHqlQuery() {
+
+        return hqlQuery;
+    }
+
+    List<String> getParameterNames() {
+
+        return parameterNames;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the compiled {@link HQLQueryPlan}s of the HQL tables, so that repeated fetches with the
+ * same criteria shape only need to bind the values of the named parameters.
+ *
+ * It also keeps the {@link HQLTableDescriptor} of each table, the table of each tab, the row
+ * counts computed for the tables whose count mode is
+ * {@link org.openbravo.service.datasource.hql.HqlCountModeProvider.CountMode#CACHED} and, for a
+ * short time, the distinct values returned to the filter drop-downs.
+ *
+ * The information of a table is discarded whenever its AD Table or AD Column metadata changes, and
+ * the table of a tab whenever the AD Tab changes, see {@link HQLQueryPlanCacheInvalidator}.
+ */
+@ApplicationScoped
+public class HQLQueryPlanCache {
+
+    private static final Logger                                          log            = LoggerFactory.getLogger(HQLQueryPlanCache.class);
+    private static final int                                             MAX_PLANS      = 1000;
+    private static final int                                             MAX_COUNTS     = 1000;
+    private static final int                                             MAX_TABLES     = 500;
+    private static final int                                             MAX_DISTINCTS  = 1000;
+
+    private final Map<PlanKey, HQLQueryPlan>                             plans          = new LRUMap<>(MAX_PLANS);
+    private final Map<PlanKey, ExpiringValue<Integer>>                   counts         = new LRUMap<>(MAX_COUNTS);
+    private final Map<PlanKey, ExpiringValue<List<Map<String, Object>>>> distinctValues = new LRUMap<>(MAX_DISTINCTS);
+    private final Map<String, HQLTableDescriptor>                        descriptors    = new LRUMap<>(MAX_TABLES);
+    private final Map<String, String>                                    tabTables      = new ConcurrentHashMap<>();
+
+    private final AtomicLong                                             hits           = new AtomicLong();
+    private final AtomicLong                                             misses         = new AtomicLong();
+    private final AtomicLong                                             evictions      = new AtomicLong();
+
+    /**
+     * Returns the plan stored for the given key, or null if it has not been compiled yet
+     */
+    HQLQueryPlan getPlan(PlanKey key) {
+
+        HQLQueryPlan plan;
+        synchronized (plans) {
+            plan = plans.get(key);
+        }
+        if (plan == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return plan;
+    }
+
+    void putPlan(PlanKey key, HQLQueryPlan plan) {
+
+        synchronized (plans) {
+            plans.put(key, plan);
+        }
+    }
+
+    /**
+     * Returns the row count stored for the given key, or null if it has not been computed or it has
+     * already expired
+     */
+    Integer getCount(PlanKey key) {
+
+        return getValue(counts, key);
+    }
+
+    void putCount(PlanKey key, int count, long timeToLive) {
+
+        putValue(counts, key, count, timeToLive);
+    }
+
+    /**
+     * Returns the distinct values stored for the given key, or null if they have not been read or
+     * they have already expired. The returned list can not be modified
+     */
+    List<Map<String, Object>> getDistinctValues(PlanKey key) {
+
+        return getValue(distinctValues, key);
+    }
+
+    void putDistinctValues(PlanKey key, List<Map<String, Object>> values, long timeToLive) {
+
+        putValue(distinctValues, key, values, timeToLive);
+    }
+
+    private <V> V getValue(Map<PlanKey, ExpiringValue<V>> map, PlanKey key) {
+
+        synchronized (map) {
+            ExpiringValue<V> expiringValue = map.get(key);
+            if (expiringValue == null) {
+                return null;
+            }
+            if (expiringValue.expirationTime < System.currentTimeMillis()) {
+                map.remove(key);
+                return null;
+            }
+            return expiringValue.value;
+        }
+    }
+
+    private <V> void putValue(Map<PlanKey, ExpiringValue<V>> map, PlanKey key, V value, long timeToLive) {
+
+        synchronized (map) {
+            map.put(key, new ExpiringValue<>(value, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * Returns the descriptor of the given table, or null if it has not been created yet
+     */
+    HQLTableDescriptor getTableDescriptor(String tableId) {
+
+        synchronized (descriptors) {
+            return descriptors.get(tableId);
+        }
+    }
+
+    void putTableDescriptor(HQLTableDescriptor descriptor) {
+
+        synchronized (descriptors) {
+            descriptors.put(descriptor.getTableId(), descriptor);
+        }
+    }
+
+    /**
+     * Returns the id of the table of the given tab, or null if it is not known yet
+     */
+    String getTabTableId(String tabId) {
+
+        return tabTables.get(tabId);
+    }
+
+    void putTabTableId(String tabId, String tableId) {
+
+        tabTables.put(tabId, tableId);
+    }
+
+    /**
+     * Discards the table kept for the given tab
+     */
+    public void invalidateTab(String tabId) {
+
+        tabTables.remove(tabId);
+    }
+
+    /**
+     * Discards all the information kept for the given table
+     */
+    public void invalidate(String tableId) {
+
+        synchronized (descriptors) {
+            descriptors.remove(tableId);
+        }
+        int removed = 0;
+        synchronized (plans) {
+            removed = removeTableKeys(plans, tableId);
+        }
+        synchronized (counts) {
+            removeTableKeys(counts, tableId);
+        }
+        synchronized (distinctValues) {
+            removeTableKeys(distinctValues, tableId);
+        }
+        log.debug("Invalidated {} HQL query plans of table {}", removed, tableId);
+    }
+
+    private int removeTableKeys(Map<PlanKey, ?> map, String tableId) {
+
+        int removed = 0;
+        Iterator<PlanKey> keys = map.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().tableId.equals(tableId)) {
+                keys.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public void invalidateAll() {
+
+        synchronized (descriptors) {
+            descriptors.clear();
+        }
+        tabTables.clear();
+        synchronized (plans) {
+            plans.clear();
+        }
+        synchronized (counts) {
+            counts.clear();
+        }
+        synchronized (distinctValues) {
+            distinctValues.clear();
+        }
+    }
+
+    public long getHits() {
+
+        return hits.get();
+    }
+
+    public long getMisses() {
+
+        return misses.get();
+    }
+
+    public long getEvictions() {
+
+        return evictions.get();
+    }
+
+    public int getSize() {
+
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+    /**
+     * Access ordered map that evicts the least recently used entry once its maximum size is exceeded
+     */
+    private class LRUMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int         maxSize;
+
+        LRUMap(int maxSize) {
+
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+
+            boolean evict = size() > maxSize;
+            if (evict && this == plans) {
+                evictions.incrementAndGet();
+            }
+            return evict;
+        }
+    }
+
+    private static class ExpiringValue<V> {
+        private final V    value;
+        private final long expirationTime;
+
+        private ExpiringValue(V value, long expirationTime) {
+
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /**
+     * Identifies a compiled query: the table, the criteria shape (the where clause generated by the
+     * AdvancedQueryBuilder, which references the criteria values through named parameters) and the
+     * request parameters that end up embedded in the HQL text.
+     */
+    public static class PlanKey {
+
+        private final String   tableId;
+        private final String[] components;
+        private final int      hashCode;
+
+        public PlanKey(String tableId, String... components) {
+
+            this.tableId = tableId;
+            this.components = components;
+            this.hashCode = 31 * tableId.hashCode() + Arrays.hashCode(components);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PlanKey)) {
+                return false;
+            }
+            PlanKey other = (PlanKey) obj;
+            return tableId.equals(other.tableId) && Arrays.equals(components, other.components);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.transaction.Synchronization;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.datamodel.Column;
+import org.openbravo.model.ad.datamodel.Table;
+import org.openbravo.model.ad.ui.Tab;
+
+/**
+ * Discards the cached HQL query plans and descriptor of a table whenever its AD Table or any of its
+ * AD Columns is created, modified or deleted. The table cached for a tab is discarded whenever the
+ * AD Tab is modified or deleted. They are discarded both when the change is flushed and once its
+ * transaction finishes
+ */
+public class HQLQueryPlanCacheInvalidator extends EntityPersistenceEventObserver {
+
+    private static Entity[]   entities = { ModelProvider.getInstance().getEntity(Table.ENTITY_NAME),
+            ModelProvider.getInstance().getEntity(Column.ENTITY_NAME), ModelProvider.getInstance().getEntity(Tab.ENTITY_NAME) };
+
+    @Inject
+    private HQLQueryPlanCache queryPlanCache;
+
+    @Override
+    protected Entity[] getObservedEntities() {
+
+        return entities;
+    }
+
+    public void onSave(@Observes EntityNewEvent event) {
+
+        invalidate(event);
+    }
+
+    public void onUpdate(@Observes EntityUpdateEvent event) {
+
+        invalidate(event);
+    }
+
+    public void onDelete(@Observes EntityDeleteEvent event) {
+
+        invalidate(event);
+    }
+
+    private void invalidate(EntityPersistenceEvent event) {
+
+        if (!isValidEvent(event)) {
+            return;
+        }
+        BaseOBObject bob = event.getTargetInstance();
+        String tableId = null;
+        String tabId = null;
+        if (bob instanceof Table) {
+            tableId = ((Table) bob).getId();
+        } else if (bob instanceof Column && ((Column) bob).getTable() != null) {
+            tableId = ((Column) bob).getTable().getId();
+        } else if (bob instanceof Tab) {
+            tabId = ((Tab) bob).getId();
+        } else {
+            return;
+        }
+        invalidate(tableId, tabId);
+        // until the transaction is committed, a concurrent fetch can build the plans and descriptors
+        // again from the previous metadata, so they are discarded again once it finishes
+        final String invalidatedTableId = tableId;
+        final String invalidatedTabId = tabId;
+        OBDal.getInstance().getSession().getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+
+                invalidate(invalidatedTableId, invalidatedTabId);
+            }
+        });
+    }
+
+    private void invalidate(String tableId, String tabId) {
+
+        if (tableId != null) {
+            queryPlanCache.invalidate(tableId);
+        }
+        if (tabId != null) {
+            queryPlanCache.invalidateTab(tabId);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pre-parsed HQL query of an HQL table. It keeps the offsets of the insertion points, the
+ * MAINFROM keyword and the additional filters placeholder, so that the final query of a request
+ * can be generated in a single pass.
+ *
+ * The expansion produces the same query as replacing each placeholder in turn: the carriage
+ * returns are replaced with blanks, the additional filters are placed in their placeholder or
+ * appended to the where clause, the sort clause is appended, the insertion points are replaced with
+ * the injected code and MAINFROM is replaced with FROM.
+ */
+class HQLQueryTemplate {
+
+    private static final String  AND                    = " AND ";
+    private static final String  WHERE                  = " WHERE ";
+    private static final String  GROUPBY                = "GROUP BY";
+    private static final String  MAIN_FROM              = "MAINFROM";
+    private static final String  FROM                   = "FROM ";
+    private static final String  ADDITIONAL_FILTERS     = "@additional_filters@";
+    private static final String  INSERTION_POINT_PREFIX = "@insertion_point_";
+    private static final String  INSERTION_POINT_SUFFIX = "@";
+
+    private final String         hqlQuery;
+    private final int            fromClauseIndex;
+    private final int            lastWhereIndex;
+    private final int            lastGroupByIndex;
+    private final List<Marker>   markers;
+
+    private HQLQueryTemplate(String hqlQuery, int fromClauseIndex, List<Marker> markers) {
+
+        this.hqlQuery = hqlQuery;
+        this.fromClauseIndex = fromClauseIndex;
+        this.markers = Collections.unmodifiableList(markers);
+        String upperCaseHqlQuery = hqlQuery.toUpperCase();
+        this.lastWhereIndex = upperCaseHqlQuery.lastIndexOf(WHERE);
+        this.lastGroupByIndex = upperCaseHqlQuery.lastIndexOf(GROUPBY);
+    }
+
+    /**
+     * Parses the HQL query defined in an HQL table
+     */
+    static HQLQueryTemplate parse(String tableHqlQuery) {
+
+        int fromClauseIndex = tableHqlQuery.indexOf(MAIN_FROM);
+        if (fromClauseIndex == -1) {
+            fromClauseIndex = tableHqlQuery.toUpperCase().lastIndexOf(FROM);
+        }
+        // replace the carriage returns and the tabulations with blanks
+        String hqlQuery = tableHqlQuery.replace("\n", " ").replace("\r", " ");
+
+        List<Marker> markers = new ArrayList<>();
+        int index = 0;
+        while (index < hqlQuery.length()) {
+            Marker marker = null;
+            if (hqlQuery.startsWith(ADDITIONAL_FILTERS, index)) {
+                marker = new Marker(index, index + ADDITIONAL_FILTERS.length(), Marker.ADDITIONAL_FILTERS, -1);
+            } else if (hqlQuery.startsWith(MAIN_FROM, index)) {
+                marker = new Marker(index, index + MAIN_FROM.length(), Marker.MAIN_FROM, -1);
+            } else if (hqlQuery.startsWith(INSERTION_POINT_PREFIX, index)) {
+                marker = parseInsertionPoint(hqlQuery, index);
+            }
+            if (marker != null) {
+                markers.add(marker);
+                index = marker.end;
+            } else {
+                index++;
+            }
+        }
+        return new HQLQueryTemplate(hqlQuery, fromClauseIndex, markers);
+    }
+
+    private static Marker parseInsertionPoint(String hqlQuery, int start) {
+
+        int digitsStart = start + INSERTION_POINT_PREFIX.length();
+        int digitsEnd = digitsStart;
+        while (digitsEnd < hqlQuery.length() && Character.isDigit(hqlQuery.charAt(digitsEnd))) {
+            digitsEnd++;
+        }
+        if (digitsEnd == digitsStart || digitsEnd - digitsStart > 9
+                || !hqlQuery.startsWith(INSERTION_POINT_SUFFIX, digitsEnd)) {
+            return null;
+        }
+        String digits = hqlQuery.substring(digitsStart, digitsEnd);
+        int insertionPointIndex = Integer.parseInt(digits);
+        if (!Integer.toString(insertionPointIndex).equals(digits)) {
+            // only @insertion_point_<index>@ is an insertion point, it can not have leading zeros
+            return null;
+        }
+        return new Marker(start, digitsEnd + INSERTION_POINT_SUFFIX.length(), Marker.INSERTION_POINT,
+                insertionPointIndex);
+    }
+
+    /**
+     * @param fromClauseOnly
+     *            true if the query will be generated just from the FROM clause, as it is done for
+     *            distinct queries
+     * @return the number of consecutive insertion points, starting with @insertion_point_0@, present
+     *         in the query
+     */
+    int getInsertionPointCount(boolean fromClauseOnly) {
+
+        int start = getStart(fromClauseOnly);
+        int count = 0;
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (Marker marker : markers) {
+                if (marker.start >= start && marker.type == Marker.INSERTION_POINT
+                        && marker.insertionPointIndex == count) {
+                    found = true;
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the query, once the additional filter is added, contains a GROUP BY clause
+     */
+    boolean hasGroupBy(boolean fromClauseOnly, String additionalFilter) {
+
+        return lastGroupByIndex >= getStart(fromClauseOnly) || additionalFilter.toUpperCase().contains(GROUPBY);
+    }
+
+    /**
+     * Generates the final query
+     *
+     * @param selectClause
+     *            if not null, the query will start with this select clause followed by the FROM
+     *            clause of the template
+     * @param additionalFilter
+     *            the additional filters of the request
+     * @param orderByClause
+     *            the order by clause to be appended to the query
+     * @param insertedCode
+     *            the code that replaces each insertion point
+     * @param justCount
+     *            if true, the select clause of the query is replaced with a count(*)
+     */
+    String expand(String selectClause, String additionalFilter, String orderByClause, String[] insertedCode,
+            boolean justCount) {
+
+        int start = getStart(selectClause != null);
+        StringBuilder query = new StringBuilder(hqlQuery.length() - start + additionalFilter.length()
+                + orderByClause.length() + 64);
+        if (selectClause != null) {
+            query.append(selectClause);
+        }
+        boolean additionalFiltersPlaced = false;
+        int mainFromIndex = -1;
+        int copied = start;
+        for (Marker marker : markers) {
+            if (marker.start < start) {
+                continue;
+            }
+            query.append(hqlQuery, copied, marker.start);
+            copied = marker.end;
+            switch (marker.type) {
+            case Marker.ADDITIONAL_FILTERS:
+                query.append(additionalFilter);
+                additionalFiltersPlaced = true;
+                break;
+            case Marker.MAIN_FROM:
+                if (mainFromIndex == -1) {
+                    mainFromIndex = query.length();
+                }
+                query.append(FROM);
+                break;
+            default:
+                if (marker.insertionPointIndex < insertedCode.length) {
+                    query.append(insertedCode[marker.insertionPointIndex]);
+                } else {
+                    query.append(hqlQuery, marker.start, marker.end);
+                }
+            }
+        }
+        query.append(hqlQuery, copied, hqlQuery.length());
+        if (!additionalFiltersPlaced) {
+            // adds the hql filters in the proper place at the end of the query, if there is already a
+            // where clause, append with 'AND', otherwise, append with 'where'
+            query.append(lastWhereIndex >= start ? AND : WHERE).append(additionalFilter);
+        }
+        query.append(orderByClause);
+
+        if (justCount) {
+            int fromIndex = mainFromIndex != -1 ? mainFromIndex : query.toString().toUpperCase().lastIndexOf(FROM);
+            return "select count(*) " + query.substring(fromIndex);
+        }
+        return query.toString();
+    }
+
+    private int getStart(boolean fromClauseOnly) {
+
+        return fromClauseOnly ? fromClauseIndex : 0;
+    }
+
+    private static class Marker {
+        private static final int ADDITIONAL_FILTERS = 0;
+        private static final int MAIN_FROM          = 1;
+        private static final int INSERTION_POINT    = 2;
+
+        private final int        start;
+        private final int        end;
+        private final int        type;
+        private final int        insertionPointIndex;
+
+        private Marker(int start, int end, int type, int insertionPointIndex) {
+
+            this.start = start;
+            this.end = end;
+            this.type = type;
+            this.insertionPointIndex = insertionPointIndex;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.base.model.Property;
+import org.openbravo.model.ad.datamodel.Column;
+import org.openbravo.model.ad.datamodel.Table;
+
+/**
+ * Immutable snapshot of the metadata of an HQL table needed to fetch its data: the HQL query, the
+ * entity, the column aliases and which HQL transformers, inserters and count mode providers are
+ * defined for it.
+ *
+ * It is built once per table and shared between requests through the {@link HQLQueryPlanCache}, so
+ * that a fetch does not need to read the AD Table and AD Column definitions again. The transformers,
+ * inserters and count mode providers themselves are not kept, as they can be stateful: each request
+ * obtains its own instances of them, and only for the tables and insertion points that have some.
+ */
+class HQLTableDescriptor {
+
+    private final String                     tableId;
+    private final String                     entityAlias;
+    private final String                     hqlQuery;
+    private final Entity                     entity;
+    private final List<String>               columnNames;
+    private final Map<String, String>        columnAliases;
+    private final HQLQueryTemplate           queryTemplate;
+    private final HQLAliasRewriter           aliasRewriter;
+    private final boolean                    hasTransformers;
+    private final List<Boolean>              insertionPointsWithInserters;
+    private final boolean                    hasCountModeProviders;
+    private final boolean                    cacheable;
+
+    private HQLTableDescriptor(Table table, Entity entity, boolean hasTransformers,
+            List<Boolean> insertionPointsWithInserters, boolean hasCountModeProviders) {
+
+        this.tableId = table.getId();
+        this.entityAlias = table.getEntityAlias();
+        this.hqlQuery = table.getHqlQuery();
+        this.entity = entity;
+        List<String> names = new ArrayList<>();
+        Map<String, String> aliases = new HashMap<>();
+        for (Column column : table.getADColumnList()) {
+            names.add(column.getDBColumnName());
+            Property property = entity.getPropertyByColumnName(column.getDBColumnName());
+            aliases.put(property.getName(), column.getEntityAlias());
+        }
+        this.columnNames = Collections.unmodifiableList(names);
+        this.columnAliases = Collections.unmodifiableMap(aliases);
+        this.queryTemplate = HQLQueryTemplate.parse(hqlQuery);
+        this.aliasRewriter = HQLAliasRewriter.create(table, entity);
+        this.hasTransformers = hasTransformers;
+        this.insertionPointsWithInserters = Collections.unmodifiableList(new ArrayList<>(insertionPointsWithInserters));
+        this.hasCountModeProviders = hasCountModeProviders;
+        // the compiled queries can only be reused if they do not depend on code that can generate a
+        // different query on each request
+        this.cacheable = !hasTransformers && !insertionPointsWithInserters.contains(Boolean.TRUE);
+    }
+
+    /**
+     * Creates the descriptor of an HQL table. Must be invoked in admin mode, as it reads the columns
+     * of the table
+     * 
+     * @param table
+     *            the HQL table
+     * @param hasTransformers
+     *            true if some HQL query transformer is defined for the table
+     * @param insertionPointsWithInserters
+     *            for each insertion point of the HQL query of the table, by index, true if some HQL
+     *            inserter is defined for it
+     * @param hasCountModeProviders
+     *            true if some count mode provider is defined for the table
+     */
+    static HQLTableDescriptor create(Table table, boolean hasTransformers, List<Boolean> insertionPointsWithInserters,
+            boolean hasCountModeProviders) {
+
+        Entity entity = ModelProvider.getInstance().getEntityByTableId(table.getId());
+        return new HQLTableDescriptor(table, entity, hasTransformers, insertionPointsWithInserters, hasCountModeProviders);
+    }
+
+    String getTableId() {
+
+        return tableId;
+    }
+
+    String getEntityAlias() {
+
+        return entityAlias;
+    }
+
+    /**
+     * Returns the HQL query defined in the table
+     */
+    String getHqlQuery() {
+
+        return hqlQuery;
+    }
+
+    Entity getEntity() {
+
+        return entity;
+    }
+
+    /**
+     * Returns the DB column names of the columns of the table, in the order they are defined
+     */
+    List<String> getColumnNames() {
+
+        return columnNames;
+    }
+
+    /**
+     * Returns the alias used in the HQL query for the column of the given property, or null if the
+     * property does not belong to the table
+     */
+    String getColumnAlias(String propertyName) {
+
+        return columnAliases.get(propertyName);
+    }
+
+    HQLQueryTemplate getQueryTemplate() {
+
+        return queryTemplate;
+    }
+
+    HQLAliasRewriter getAliasRewriter() {
+
+        return aliasRewriter;
+    }
+
+    boolean hasTransformers() {
+
+        return hasTransformers;
+    }
+
+    /**
+     * Returns the number of insertion points of the HQL query of the table
+     */
+    int getInsertionPointCount() {
+
+        return insertionPointsWithInserters.size();
+    }
+
+    /**
+     * Returns true if some HQL inserter is defined for the insertion point with the given index
+     */
+    boolean hasInserters(int index) {
+
+        return insertionPointsWithInserters.get(index);
+    }
+
+    boolean hasCountModeProviders() {
+
+        return hasCountModeProviders;
+    }
+
+    /**
+     * Returns true if the compiled queries of the table can be reused between requests, that is, if
+     * the table has no HQL transformer and no HQL inserter for its insertion points
+     */
+    boolean isCacheable() {
+
+        return cacheable;
+    }
+}
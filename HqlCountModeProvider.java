@@ -0,0 +1,80 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo Public License
+ * Version 1.1 (the "License"), being the Mozilla Public License
+ * Version 1.1 with a permitted attribution clause; you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2014-2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s): ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.service.datasource.hql;
+
+import java.util.Map;
+
+/**
+ * Allows an HQL table to choose how the total number of rows of its grids is computed. The
+ * implementations must be qualified with the id of the table they apply to, using
+ * {@code @ComponentProvider.Qualifier}. If there are several providers for the same table, the one
+ * with the lowest priority is used.
+ *
+ * Tables without a provider use {@link CountMode#EXACT}.
+ */
+public abstract class HqlCountModeProvider {
+
+    private static final long DEFAULT_CACHE_TIME_TO_LIVE = 30000L;
+
+    public enum CountMode {
+        /**
+         * The total number of rows is computed on every request
+         */
+        EXACT,
+        /**
+         * The total number of rows is not computed, only the rows of the requested page plus one are
+         * read to know whether there are more rows after the page
+         */
+        HAS_MORE,
+        /**
+         * The total number of rows is computed and kept for a short time for the current user, so
+         * that paging through the same criteria does not compute it again
+         */
+        CACHED
+    }
+
+    /**
+     * Returns the count mode used for the current request
+     * 
+     * @param parameters
+     *            the parameters of the request
+     */
+    public abstract CountMode getCountMode(Map<String, String> parameters);
+
+    /**
+     * Returns the time, in milliseconds, that a total computed in {@link CountMode#CACHED} mode is
+     * kept
+     */
+    public long getCacheTimeToLive() {
+
+        return DEFAULT_CACHE_TIME_TO_LIVE;
+    }
+
+    /**
+     * Returns the priority of this provider. If there are several providers for the same table, the
+     * one with the lowest priority is used
+     * 
+     * @param parameters
+     *            the parameters of the request
+     */
+    public int getPriority(Map<String, String> parameters) {
+
+        return 100;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo  Public  License
+ * Version  1.1  (the  "License"),  being   the  Mozilla   Public  License
+ * Version 1.1  with a permitted attribution clause; you may not  use this
+ * file except in compliance with the License. You  may  obtain  a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License  is  distributed  on  an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific  language  governing  rights  and  limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s):  ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.erpCommon.ad_reports;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+/**
+ * Limits the number of reports that are generated at the same time, in total and by each user.
+ * The same instance is shared by all the report servlets, so the global limit applies to all of
+ * them.
+ *
+ * The limits are given on each call, because they come from preferences that can be different for
+ * each role. A report that cannot be run at once waits for a running report to finish, up to the
+ * number of seconds of the reportAdmission.waitSeconds property of Openbravo.properties. By
+ * default it does not wait. The waiting reports are admitted in the order they arrived: each one
+ * waits on its own condition in a queue, only the first one of the queue is checked against the
+ * limits and a report that arrives while others are waiting is queued behind them. So the first
+ * report of the queue holds the ones behind it even if they could run, until it is admitted or its
+ * wait time has passed.
+ *
+ * Each call to {@link #admit(String, int, int)} that returns {@link Admission#ADMITTED} must be
+ * followed by a call to {@link #release(String)} once the report has been generated.
+ */
+public class ReportAdmissionController {
+
+  private static final Logger log4j = Logger.getLogger(ReportAdmissionController.class);
+
+  private static final String WAIT_SECONDS_PROPERTY = "reportAdmission.waitSeconds";
+
+  private static ReportAdmissionController instance;
+
+  /**
+   * Result of a request to run a report
+   */
+  public enum Admission {
+    ADMITTED, USER_LIMIT, GLOBAL_LIMIT
+  }
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+  /** Conditions of the waiting reports, in the order they arrived */
+  private final Deque<Condition> waiters = new ArrayDeque<Condition>();
+  private final Map<String, Integer> userExecutions = new HashMap<String, Integer>();
+  private final long waitNanos;
+  private int executions;
+  private long admitted;
+  private long rejected;
+
+  public static synchronized ReportAdmissionController getInstance() {
+    if (instance == null) {
+      instance = new ReportAdmissionController(getWaitSeconds());
+    }
+    return instance;
+  }
+
+  ReportAdmissionController(long waitSeconds) {
+    waitNanos = TimeUnit.SECONDS.toNanos(waitSeconds);
+  }
+
+  private static long getWaitSeconds() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    String value = properties.getProperty(WAIT_SECONDS_PROPERTY);
+    if (value == null || value.trim().isEmpty()) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      log4j.warn("Invalid value " + value + " for property " + WAIT_SECONDS_PROPERTY
+          + ", reports will not wait");
+      return 0;
+    }
+  }
+
+  /**
+   * Requests to run a report, waiting for a running one to finish if any of the limits has been
+   * reached
+   *
+   * @param userId
+   *          user that runs the report
+   * @param userLimit
+   *          maximum number of reports run at the same time by the user, 0 for no limit
+   * @param globalLimit
+   *          maximum number of reports run at the same time, 0 for no limit
+   * @return {@link Admission#ADMITTED} if the report can be run, otherwise the limit that is still
+   *         exceeded once the wait time has passed
+   */
+  public Admission admit(String userId, int userLimit, int globalLimit) {
+    long nanos = waitNanos;
+    lock.lock();
+    try {
+      // a report does not pass the ones already waiting
+      Admission admission = waiters.isEmpty() ? tryAdmit(userId, userLimit, globalLimit)
+          : Admission.GLOBAL_LIMIT;
+      if (admission == Admission.ADMITTED) {
+        return admission;
+      }
+      if (nanos <= 0) {
+        rejected++;
+        return admission;
+      }
+      Condition turn = lock.newCondition();
+      waiters.addLast(turn);
+      try {
+        while (true) {
+          try {
+            nanos = turn.awaitNanos(nanos);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            nanos = 0;
+          }
+          if (waiters.peekFirst() == turn) {
+            admission = tryAdmit(userId, userLimit, globalLimit);
+            if (admission == Admission.ADMITTED) {
+              return admission;
+            }
+          }
+          if (nanos <= 0) {
+            rejected++;
+            return admission;
+          }
+        }
+      } finally {
+        waiters.remove(turn);
+        // the next report may be admitted too, if this one has been admitted or has given up
+        signalFirstWaiter();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Admission tryAdmit(String userId, int userLimit, int globalLimit) {
+    int userExecution = getExecutions(userId);
+    if (userLimit > 0 && userExecution >= userLimit) {
+      return Admission.USER_LIMIT;
+    }
+    if (globalLimit > 0 && executions >= globalLimit) {
+      return Admission.GLOBAL_LIMIT;
+    }
+    userExecutions.put(userId, userExecution + 1);
+    executions++;
+    admitted++;
+    return Admission.ADMITTED;
+  }
+
+  private void signalFirstWaiter() {
+    Condition first = waiters.peekFirst();
+    if (first != null) {
+      first.signal();
+    }
+  }
+
+  /**
+   * Frees the place of a report admitted for the user, so that a waiting report can be run
+   */
+  public void release(String userId) {
+    lock.lock();
+    try {
+      int userExecution = getExecutions(userId);
+      if (userExecution <= 1) {
+        userExecutions.remove(userId);
+      } else {
+        userExecutions.put(userId, userExecution - 1);
+      }
+      if (executions > 0) {
+        executions--;
+      }
+      signalFirstWaiter();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int getExecutions(String userId) {
+    Integer userExecution = userExecutions.get(userId);
+    return userExecution == null ? 0 : userExecution;
+  }
+
+  /**
+   * @return number of reports being run
+   */
+  public int getExecutions() {
+    lock.lock();
+    try {
+      return executions;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of reports being run by the user
+   */
+  public int getUserExecutions(String userId) {
+    lock.lock();
+    try {
+      return getExecutions(userId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of reports waiting to be admitted
+   */
+  public int getWaiting() {
+    lock.lock();
+    try {
+      return waiters.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of reports admitted since the server started
+   */
+  public long getAdmitted() {
+    lock.lock();
+    try {
+      return admitted;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of reports rejected since the server started
+   */
+  public long getRejected() {
+    lock.lock();
+    try {
+      return rejected;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
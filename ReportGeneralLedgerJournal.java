@@ -18,30 +18,48 @@
  */
 package org.openbravo.erpCommon.ad_reports;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.jasperreports.engine.JRParameter;
+import net.sf.jasperreports.engine.fill.JRSwapFileVirtualizer;
+import net.sf.jasperreports.engine.util.JRSwapFile;
+
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.hibernate.query.Query;
+import org.openbravo.base.exception.OBException;
 import org.openbravo.base.secureApp.HttpSecureAppServlet;
 import org.openbravo.base.secureApp.VariablesHistory;
 import org.openbravo.base.secureApp.VariablesSecureApp;
 import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.client.application.report.ReportingUtils;
+import org.openbravo.client.application.report.ReportingUtils.ExportType;
 import org.openbravo.client.kernel.RequestContext;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBDal;
@@ -71,6 +89,12 @@ import org.openbravo.xmlEngine.XmlDocument;
 
 public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
   private static final String GL_JOURNAL_TABLE_ID = "224";
+  /** Pages of the PDF report kept in memory, the rest are swapped to a temporary file */
+  private static final int PDF_PAGES_IN_MEMORY = 50;
+  /** Pages of accounting entries whose number of lines is read at once when paging */
+  private static final int PAGES_READ_AHEAD = 5;
+  /** Session attribute of the {@link ReportGeneralLedgerJournalSnapshot} of the last search */
+  private static final String SNAPSHOT = "ReportGeneralLedgerJournal.snapshot";
 
   private static final long serialVersionUID = 1L;
 
@@ -87,8 +111,6 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
    */
   private static final String PREVIOUS_RANGE = "ReportGeneralLedgerJournal.previousRange";
   private static final String PREVIOUS_RANGE_OLD = "ReportGeneralLedgerJournal.previousRangeOld";
-  private static final Map<String, Integer> userExecutions = new HashMap<String, Integer>();
-  private static int reportExecutions = 0;
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException,
@@ -208,8 +230,10 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
       printPageDataSheet(response, vars, "", "", "", "", "", "", "", strFactAcctGroupId, "", "",
           "", "", "1", "1", "", "Y", "", "", "", "", "", "", "");
     } else if (vars.commandIn("FIND")) {
+      boolean admitted = false;
       try {
         OBError msg = checkReportUsage(vars);
+        admitted = msg == null;
         if (msg != null) {
           advise(request, response, msg.getType(), msg.getTitle(), msg.getMessage());
           return;
@@ -306,14 +330,20 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
             strcelementvaluefrom, strcelementvalueto, strcelementvaluefromdes,
             strcelementvaluetodes);
       } finally {
-        decreaseReportUsage();
+        if (admitted) {
+          decreaseReportUsage();
+        }
       }
-    } else if (vars.commandIn("PDF", "XLS")) {
+    } else if (vars.commandIn("PDF", "XLS", "CSV")) {
+      boolean admitted = false;
       try {
         if (log4j.isDebugEnabled()) {
           log4j.debug("PDF");
         }
-        OBError msg = checkReportUsage(vars);
+        // The background jobs wait in their own queue, so they are not rejected by the limits
+        boolean async = StringUtils.equals(vars.getStringParameter("inpAsync"), "Y");
+        OBError msg = async ? null : checkReportUsage(vars);
+        admitted = !async && msg == null;
         if (msg != null) {
           advisePopUp(request, response, msg.getType(), msg.getTitle(), msg.getMessage());
           return;
@@ -408,9 +438,24 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
             strOrg, strTable, strRecord, strFactAcctGroupId, strcAcctSchemaId, strShowClosing,
             strShowReg, strShowOpening, strPageNo, strEntryNo,
             StringUtils.equals(strShowDescription, "Y") ? "Y" : "", strShowRegular,
-            strShowDivideUp, strcelementvaluefrom, strcelementvalueto);
+            strShowDivideUp, strcelementvaluefrom, strcelementvalueto, async);
       } finally {
-        decreaseReportUsage();
+        if (admitted) {
+          decreaseReportUsage();
+        }
+      }
+    } else if (vars.commandIn("JOB_STATUS")) {
+      ReportGeneralLedgerJournalJobs.Job job = getUserJob(vars);
+      printPageJobStatus(response, job);
+    } else if (vars.commandIn("JOB_RESULT")) {
+      ReportGeneralLedgerJournalJobs.Job job = getUserJob(vars);
+      if (job == null || job.getStatus() != ReportGeneralLedgerJournalJobs.Status.DONE) {
+        ConnectionProvider readOnlyCP = DalConnectionProvider.getReadOnlyConnectionProvider();
+        advisePopUp(request, response, "WARNING",
+            Utility.messageBD(readOnlyCP, "ProcessStatus-W", vars.getLanguage()),
+            Utility.messageBD(readOnlyCP, "NoDataFound", vars.getLanguage()));
+      } else {
+        printPageJobResult(response, job);
       }
     } else if (vars.commandIn("PREVIOUS_RELATION")) {
       String strInitRecord = vars.getSessionValue("ReportGeneralLedgerJournal.initRecordNumber");
@@ -505,13 +550,12 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
     XmlDocument xmlDocument = null;
     ReportGeneralLedgerJournalData scrollData = null;
     ReportGeneralLedgerJournalData[] data = null;
-    ReportGeneralLedgerJournalData[] dataCountLines = null;
     ReportGeneralLedgerJournalData scrollCountLines = null;
     String strPosition = "0";
     ToolBar toolbar = new ToolBar(readOnlyCP, vars.getLanguage(), "ReportGeneralLedgerJournal",
         false, "", "", "imprimir();return false;", false, "ad_reports", strReplaceWith, false, true);
     toolbar.setEmail(false);
-    int totalAcctEntries = 0;
+    boolean hasNextEntries = false;
     int lastRecordNumber = 0;
     String rowNum = "0";
     String oraLimit1 = null;
@@ -527,49 +571,77 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
                   "0"))) {
         String strCheck = buildCheck(strShowClosing, strShowReg, strShowOpening, strShowRegular,
             strShowDivideUp);
-        String strTreeOrg = TreeData.getTreeOrg(readOnlyCP, vars.getClient());
-        String strOrgFamily = getFamily(strTreeOrg, strOrg);
+        String strUserClient = Utility.getContext(readOnlyCP, vars, "#User_Client",
+            "ReportGeneralLedger");
+        String strUserOrg = Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree",
+            "ReportGeneralLedger");
+        ReportGeneralLedgerJournalSnapshot snapshot = getSnapshot(readOnlyCP, vars, strUserClient,
+            strUserOrg, strDateFrom, strDateTo, strDocument, strDocumentNo, strOrg,
+            strcAcctSchemaId, strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto);
+        String strOrgFamily = snapshot.getOrgFamily();
+        String strDateToNext = snapshot.getDateTo();
+        String strDocumentNoCondition = snapshot.getDocumentNo();
         if (StringUtils.isEmpty(strRecord)) {
-          // Stores the number of lines per accounting entry
-          try {
-            scrollCountLines = ReportGeneralLedgerJournalData.selectCountGroupedLines(readOnlyCP,
-                rowNum,
-                Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-                Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-                strDateFrom, DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1"), strDocument,
-                getDocumentNo(vars.getClient(), strDocument, strDocumentNo), strcAcctSchemaId,
-                strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto,
-                null, null, null);
-            Vector<ReportGeneralLedgerJournalData> res = new Vector<ReportGeneralLedgerJournalData>();
-            while (scrollCountLines.next()) {
-              res.add(scrollCountLines.get());
-              totalAcctEntries += Integer.parseInt(scrollCountLines.get().groupedlines);
-            }
-            dataCountLines = new ReportGeneralLedgerJournalData[res.size()];
-            res.copyInto(dataCountLines);
-          } finally {
-            if (scrollCountLines != null) {
-              scrollCountLines.close();
-            }
-          }
           String strInitAcctEntries = vars.getSessionValue(PREVIOUS_ACCTENTRIES);
           int acctEntries = (StringUtils.isEmpty(strInitAcctEntries) ? 0 : Integer
               .parseInt(strInitAcctEntries.split(",")[0]));
+          // Only the accounting entries that can be shown in this page are read: each entry has
+          // at least one line, so the page never needs more entries than lines in the range. One
+          // more entry is read to know whether there is a next page
+          int firstEntry = acctEntries;
+          int countWindow = intRecordRangePredefined + 2;
+          List<Integer> entryLines = snapshot.getEntryLines(firstEntry, countWindow);
+          if (entryLines == null) {
+            // The entries of the next pages are read too, so that moving to them only needs to
+            // read their lines
+            int readWindow = countWindow * PAGES_READ_AHEAD;
+            String countRowNum = "0";
+            String countOraLimit1 = null;
+            String countOraLimit2 = null;
+            String countPgLimit = null;
+            if (StringUtils.equalsIgnoreCase(readOnlyCP.getRDBMS(), "ORACLE")) {
+              countRowNum = "ROWNUM";
+              countOraLimit1 = String.valueOf(firstEntry + readWindow);
+              countOraLimit2 = (firstEntry + 1) + " AND " + countOraLimit1;
+            } else {
+              countPgLimit = readWindow + " OFFSET " + firstEntry;
+            }
 
-          int groupedLines[] = new int[intRecordRangePredefined + 1];
+            // Stores the number of lines per accounting entry
+            try {
+              scrollCountLines = ReportGeneralLedgerJournalData.selectCountGroupedLines(readOnlyCP,
+                  countRowNum, strUserClient, strUserOrg, strDateFrom, strDateToNext,
+                  strDocument, strDocumentNoCondition, strcAcctSchemaId, strOrgFamily, strCheck,
+                  strAllaccounts, strcelementvaluefrom, strcelementvalueto, countPgLimit,
+                  countOraLimit1, countOraLimit2);
+              List<Integer> res = new ArrayList<Integer>(readWindow);
+              while (scrollCountLines.next()) {
+                res.add(Integer.valueOf(scrollCountLines.get().groupedlines));
+              }
+              snapshot.putEntryLines(firstEntry, res, res.size() < readWindow);
+            } finally {
+              if (scrollCountLines != null) {
+                scrollCountLines.close();
+              }
+            }
+            entryLines = snapshot.getEntryLines(firstEntry, countWindow);
+          }
+          // Accounting entries read until the end of the window, counted from the first one
+          int readEntries = firstEntry + entryLines.size();
+
+          int groupedLines[] = new int[intRecordRangePredefined + 2];
           int i = 1;
-          while (groupedLines[i - 1] <= intRecordRangePredefined
-              && dataCountLines.length >= acctEntries) {
-            if (dataCountLines.length > acctEntries) {
+          while (groupedLines[i - 1] <= intRecordRangePredefined && readEntries >= acctEntries) {
+            if (readEntries > acctEntries) {
               groupedLines[i] = groupedLines[i - 1]
-                  + Integer.parseInt(dataCountLines[acctEntries].groupedlines);
+                  + entryLines.get(acctEntries - firstEntry);
               i++;
             }
             acctEntries++;
           }
 
           int intRecordRangeUsed = 0;
-          if (dataCountLines.length != acctEntries - 1) {
+          if (readEntries != acctEntries - 1) {
             if (i == 2) {
               // The first entry is bigger than the predefined range
               intRecordRangeUsed = groupedLines[i - 1];
@@ -599,6 +671,7 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
           vars.setSessionValue(PREVIOUS_RANGE_OLD, vars.getSessionValue(PREVIOUS_RANGE));
           vars.setSessionValue(PREVIOUS_RANGE,
               String.valueOf(intRecordRangeUsed) + "," + vars.getSessionValue(PREVIOUS_RANGE));
+          hasNextEntries = acctEntries - 1 < readEntries;
           if (StringUtils.equalsIgnoreCase(readOnlyCP.getRDBMS(), "ORACLE")) {
             rowNum = "ROWNUM";
             oraLimit1 = String.valueOf((initRecordNumber == 0 ? initRecordNumber
@@ -611,12 +684,10 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
                 + (initRecordNumber == 0 ? initRecordNumber : initRecordNumber - 1);
           }
           scrollData = ReportGeneralLedgerJournalData.select(readOnlyCP, rowNum, "'N'",
-              Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-              Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-              strDateFrom, DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1"), strDocument,
-              getDocumentNo(vars.getClient(), strDocument, strDocumentNo), strcAcctSchemaId,
-              strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto,
-              vars.getLanguage(), pgLimit, oraLimit1, oraLimit2);
+              strUserClient, strUserOrg, strDateFrom, strDateToNext, strDocument,
+              strDocumentNoCondition, strcAcctSchemaId, strOrgFamily, strCheck, strAllaccounts,
+              strcelementvaluefrom, strcelementvalueto, vars.getLanguage(), pgLimit, oraLimit1,
+              oraLimit2);
           Vector<ReportGeneralLedgerJournalData> res = new Vector<ReportGeneralLedgerJournalData>();
           while (scrollData.next()) {
             addDataToResponse(scrollData.get(), res, tablesToTabsMap);
@@ -624,13 +695,15 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
           data = new ReportGeneralLedgerJournalData[res.size()];
           res.copyInto(data);
           if (data != null && data.length > 0) {
-            strPosition = ReportGeneralLedgerJournalData.selectCount(readOnlyCP,
-                Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-                Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-                strDateFrom, DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1"), strDocument,
-                getDocumentNo(vars.getClient(), strDocument, strDocumentNo), strcAcctSchemaId,
-                strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto,
-                data[0].dateacct, data[0].identifier);
+            strPosition = snapshot.getPosition(data[0].dateacct, data[0].identifier);
+            if (strPosition == null) {
+              strPosition = ReportGeneralLedgerJournalData.selectCount(readOnlyCP, strUserClient,
+                  strUserOrg, strDateFrom, strDateToNext, strDocument, strDocumentNoCondition,
+                  strcAcctSchemaId, strOrgFamily, strCheck, strAllaccounts,
+                  strcelementvaluefrom, strcelementvalueto, data[0].dateacct,
+                  data[0].identifier);
+              snapshot.putPosition(data[0].dateacct, data[0].identifier, strPosition);
+            }
           }
         } else {
           if (StringUtils.equalsIgnoreCase(readOnlyCP.getRDBMS(), "ORACLE")) {
@@ -703,7 +776,7 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
         String discard[] = { "secTable" };
         toolbar
             .prepareRelationBarTemplate(false, false,
-                "submitCommandForm('XLS', false, null, 'ReportGeneralLedgerJournal.xls', 'EXCEL');return false;");
+                "submitCommandForm('XLS', false, null, 'ReportGeneralLedgerJournal.xlsx', 'EXCEL');return false;");
         xmlDocument = xmlEngine.readXmlTemplate(
             "org/openbravo/erpCommon/ad_reports/ReportGeneralLedgerJournal", discard)
             .createXmlDocument();
@@ -711,10 +784,10 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
       } else {
         data = notshow(data, vars);
         boolean hasPrevious = !(data == null || data.length == 0 || initRecordNumber <= 1);
-        boolean hasNext = !(data == null || data.length == 0 || lastRecordNumber >= totalAcctEntries);
+        boolean hasNext = !(data == null || data.length == 0 || !hasNextEntries);
         toolbar
             .prepareRelationBarTemplate(true, true,
-                "submitCommandForm('XLS', false, null, 'ReportGeneralLedgerJournal.xls', 'EXCEL');return false;");
+                "submitCommandForm('XLS', false, null, 'ReportGeneralLedgerJournal.xlsx', 'EXCEL');return false;");
         xmlDocument = xmlEngine.readXmlTemplate(
             "org/openbravo/erpCommon/ad_reports/ReportGeneralLedgerJournal").createXmlDocument();
 
@@ -877,15 +950,10 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
       String strFactAcctGroupId, String strcAcctSchemaId, String strShowClosing, String strShowReg,
       String strShowOpening, String strPageNo, String strEntryNo, String strShowDescription,
       String strShowRegular, String strShowDivideUp, String strcelementvaluefrom,
-      String strcelementvalueto) throws IOException, ServletException {
+      String strcelementvalueto, boolean async) throws IOException, ServletException {
 
     ReportGeneralLedgerJournalData scrollData = null;
-    ReportGeneralLedgerJournalData[] data = null;
 
-    String strAllaccounts = "Y";
-    if (StringUtils.isNotEmpty(strcelementvaluefrom)) {
-      strAllaccounts = "N";
-    }
     ConnectionProvider readOnlyCP = DalConnectionProvider.getReadOnlyConnectionProvider();
     String strTreeOrg = TreeData.getTreeOrg(readOnlyCP, vars.getClient());
     String strOrgFamily = getFamily(strTreeOrg, strOrg);
@@ -897,127 +965,367 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
             myMessage.getMessage());
         return;
       }
-      if (StringUtils.isNotEmpty(strFactAcctGroupId)) {
-        scrollData = ReportGeneralLedgerJournalData.selectDirect2(readOnlyCP,
-            Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-            Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-            strFactAcctGroupId, vars.getLanguage());
-
-      } else if (StringUtils.isEmpty(strRecord)) {
-        String strCheck = buildCheck(strShowClosing, strShowReg, strShowOpening, strShowRegular,
-            strShowDivideUp);
-        // Get the number of records that the query would return
-        int recordCount = Integer.parseInt(ReportGeneralLedgerJournalData.selectCountNoOfRecords(
-            readOnlyCP,
-            Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-            Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-            strDateFrom, DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1"), strDocument,
-            getDocumentNo(vars.getClient(), strDocument, strDocumentNo), strcAcctSchemaId,
-            strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto,
-            StringUtils.equals(strShowDescription, "Y") ? "'Y'" : "'N'"));
-        // Get the limit of number of records shown for a report based on the preference
-        int limit = Integer.parseInt(Utility.getPreference(vars, "ReportsLimit", ""));
-        // Do not print the XLS report if there are more than 65532 records
-        if (vars.commandIn("XLS") && recordCount > 100000000) {
-          advisePopUp(request, response, "ERROR",
-              Utility.messageBD(readOnlyCP, "ProcessStatus-E", vars.getLanguage()),
-              Utility.messageBD(readOnlyCP, "numberOfRowsExceeded", vars.getLanguage()));
-          // Do not print the PDF report if the number of records is greater than the limit of
-          // records shown
-        } else if (limit > 0 && recordCount > limit) {
-          advisePopUp(
-              request,
-              response,
-              "WARNING",
-              Utility.messageBD(readOnlyCP, "ProcessStatus-W", vars.getLanguage()),
-              Utility.messageBD(readOnlyCP, "ReportsLimit", vars.getLanguage()).replace("@limit@",
-                  String.valueOf(limit)));
-        } else {
-          scrollData = ReportGeneralLedgerJournalData.select(readOnlyCP, "0",
-              StringUtils.equals(strShowDescription, "Y") ? "'Y'" : "'N'",
-              Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-              Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-              strDateFrom, DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1"), strDocument,
-              getDocumentNo(vars.getClient(), strDocument, strDocumentNo), strcAcctSchemaId,
-              strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto,
-              vars.getLanguage(), null, null, null);
+      JournalQuery query = getJournalQuery(readOnlyCP, vars, strDateFrom, strDateTo, strDocument,
+          strDocumentNo, strTable, strRecord, strFactAcctGroupId, strcAcctSchemaId,
+          strShowClosing, strShowReg, strShowOpening, strShowDescription, strShowRegular,
+          strShowDivideUp, strcelementvaluefrom, strcelementvalueto, strOrgFamily);
+      // Get the limit of number of records shown for a report based on the preference. The CSV
+      // export is not limited
+      int limit = vars.commandIn("PDF", "XLS") && query.isCountable() ? Integer.parseInt(Utility
+          .getPreference(vars, "ReportsLimit", "")) : 0;
+      // The XLS export writes the same title as the PDF report
+      HashMap<String, Object> parameters = vars.commandIn("PDF", "XLS") ? getReportParameters(
+          vars, readOnlyCP, strDateFrom, strDateTo, strOrg, strcAcctSchemaId, strPageNo,
+          strEntryNo, strShowDescription) : null;
+      if (async) {
+        ReportGeneralLedgerJournalJobs.Job job;
+        try {
+          job = submitJob(vars, query, limit, parameters);
+        } catch (RejectedExecutionException e) {
+          // the queue is full, the client can submit the export again later
+          printPageJobRejected(response, e.getMessage());
+          return;
         }
-      } else {
-        scrollData = ReportGeneralLedgerJournalData.selectDirect(readOnlyCP, "0",
-            StringUtils.equals(strShowDescription, "Y") ? "'Y'" : "'N'",
-            Utility.getContext(readOnlyCP, vars, "#User_Client", "ReportGeneralLedger"),
-            Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree", "ReportGeneralLedger"),
-            strTable, strRecord, strcAcctSchemaId, vars.getLanguage(), null, null, null);
+        printPageJobStatus(response, job);
+        return;
       }
-      Vector<ReportGeneralLedgerJournalData> res = new Vector<ReportGeneralLedgerJournalData>();
-      while (scrollData.next()) {
-        res.add(scrollData.get());
+      // Do not print the PDF or XLS report if the number of records is greater than the limit of
+      // records shown
+      if (limit > 0 && query.count(readOnlyCP) > limit) {
+        advisePopUp(
+            request,
+            response,
+            "WARNING",
+            Utility.messageBD(readOnlyCP, "ProcessStatus-W", vars.getLanguage()),
+            Utility.messageBD(readOnlyCP, "ReportsLimit", vars.getLanguage()).replace("@limit@",
+                String.valueOf(limit)));
+        return;
       }
-      data = new ReportGeneralLedgerJournalData[res.size()];
-      res.copyInto(data);
-      if (data == null || data.length == 0) {
+      scrollData = query.select(readOnlyCP);
+      ReportGeneralLedgerJournalDataSource lines = new ReportGeneralLedgerJournalDataSource(
+          scrollData, vars.getJavaDateFormat());
+      if (!lines.hasLines()) {
         advisePopUp(request, response, "WARNING",
             Utility.messageBD(readOnlyCP, "ProcessStatus-W", vars.getLanguage()),
             Utility.messageBD(readOnlyCP, "NoDataFound", vars.getLanguage()));
+      } else if (vars.commandIn("XLS", "CSV")) {
+        printPageExport(response, vars, lines, readOnlyCP, parameters);
       } else {
-        String strSubtitle = (Utility.messageBD(readOnlyCP, "LegalEntity", vars.getLanguage()) + ": ")
-            + ReportGeneralLedgerJournalData.selectCompany(readOnlyCP, vars.getClient()) + "\n";
-        ;
+        String strReportName = "@basedesign@/org/openbravo/erpCommon/ad_reports/ReportGeneralLedgerJournal.jrxml";
+
+        // The filled pages are swapped to disk, so that the lines are read from the scroll and
+        // the pages written without keeping the whole report in memory
+        JRSwapFileVirtualizer virtualizer = new JRSwapFileVirtualizer(PDF_PAGES_IN_MEMORY,
+            new JRSwapFile(System.getProperty("java.io.tmpdir"), 4096, 100), true);
+        parameters.put(JRParameter.REPORT_VIRTUALIZER, virtualizer);
+        try {
+          renderJR(vars, response, strReportName, "JournalEntriesReport", "pdf", parameters,
+              lines, null);
+        } finally {
+          virtualizer.cleanup();
+        }
+      }
+    } finally {
+      if (scrollData != null) {
+        scrollData.close();
+      }
+    }
+  }
 
-        SimpleDateFormat javaSDF = new SimpleDateFormat(vars.getJavaDateFormat());
-        SimpleDateFormat sqlSDF = new SimpleDateFormat(vars.getSqlDateFormat().replace('Y', 'y')
-            .replace('D', 'd'));
+  /**
+   * Returns the snapshot of the search kept in the session, or a new one if the filters have
+   * changed, it is no longer valid or the search is run again
+   */
+  private ReportGeneralLedgerJournalSnapshot getSnapshot(ConnectionProvider readOnlyCP,
+      VariablesSecureApp vars, String strUserClient, String strUserOrg, String strDateFrom,
+      String strDateTo, String strDocument, String strDocumentNo, String strOrg,
+      String strcAcctSchemaId, String strCheck, String strAllaccounts,
+      String strcelementvaluefrom, String strcelementvalueto) throws IOException,
+      ServletException {
+    String key = ReportGeneralLedgerJournalSnapshot.getKey(vars.getRole(), strUserClient,
+        strUserOrg, strDateFrom, strDateTo, strDocument, strDocumentNo, strOrg, strcAcctSchemaId,
+        strCheck, strAllaccounts, strcelementvaluefrom, strcelementvalueto);
+    Object cached = vars.getSessionObject(SNAPSHOT);
+    if (!vars.commandIn("FIND") && cached instanceof ReportGeneralLedgerJournalSnapshot
+        && ((ReportGeneralLedgerJournalSnapshot) cached).isValid(readOnlyCP, key)) {
+      return (ReportGeneralLedgerJournalSnapshot) cached;
+    }
+    String strTreeOrg = TreeData.getTreeOrg(readOnlyCP, vars.getClient());
+    ReportGeneralLedgerJournalSnapshot snapshot = new ReportGeneralLedgerJournalSnapshot(
+        readOnlyCP, key, strcAcctSchemaId, strDateFrom, getFamily(strTreeOrg, strOrg),
+        DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1"), getDocumentNo(vars.getClient(),
+            strDocument, strDocumentNo));
+    vars.setSessionObject(SNAPSHOT, snapshot);
+    return snapshot;
+  }
 
-        if (!StringUtils.equals(strOrg, "0")) {
-          strSubtitle += (Utility.messageBD(readOnlyCP, "OBUIAPP_Organization", vars.getLanguage()) + ": ")
-              + ReportGeneralLedgerJournalData.selectOrg(readOnlyCP, strOrg) + "\n";
-        }
+  /**
+   * Returns the parameters of the PDF report. The Subtitle and TaxID parameters are also the title
+   * of the XLS export
+   */
+  private HashMap<String, Object> getReportParameters(VariablesSecureApp vars,
+      ConnectionProvider readOnlyCP, String strDateFrom, String strDateTo, String strOrg,
+      String strcAcctSchemaId, String strPageNo, String strEntryNo, String strShowDescription)
+      throws ServletException {
+    String strSubtitle = (Utility.messageBD(readOnlyCP, "LegalEntity", vars.getLanguage()) + ": ")
+        + ReportGeneralLedgerJournalData.selectCompany(readOnlyCP, vars.getClient()) + "\n";
+
+    SimpleDateFormat javaSDF = new SimpleDateFormat(vars.getJavaDateFormat());
+    SimpleDateFormat sqlSDF = new SimpleDateFormat(vars.getSqlDateFormat().replace('Y', 'y')
+        .replace('D', 'd'));
+
+    if (!StringUtils.equals(strOrg, "0")) {
+      strSubtitle += (Utility.messageBD(readOnlyCP, "OBUIAPP_Organization", vars.getLanguage()) + ": ")
+          + ReportGeneralLedgerJournalData.selectOrg(readOnlyCP, strOrg) + "\n";
+    }
 
-        if (StringUtils.isNotEmpty(strDateFrom) || StringUtils.isNotEmpty(strDateTo)) {
-          try {
-            strSubtitle += (Utility.messageBD(readOnlyCP, "From", vars.getLanguage()) + ": ")
-                + (StringUtils.isNotEmpty(strDateFrom) ? javaSDF.format(sqlSDF.parse(strDateFrom))
-                    : "")
-                + "  "
-                + (Utility.messageBD(readOnlyCP, "OBUIAPP_To", vars.getLanguage()) + ": ")
-                + (StringUtils.isNotEmpty(strDateTo) ? javaSDF.format(sqlSDF.parse(strDateTo)) : "")
-                + "\n";
-          } catch (ParseException e) {
-            log4j.error("Error when parsing dates", e);
-          }
-        }
+    if (StringUtils.isNotEmpty(strDateFrom) || StringUtils.isNotEmpty(strDateTo)) {
+      try {
+        strSubtitle += (Utility.messageBD(readOnlyCP, "From", vars.getLanguage()) + ": ")
+            + (StringUtils.isNotEmpty(strDateFrom) ? javaSDF.format(sqlSDF.parse(strDateFrom))
+                : "")
+            + "  "
+            + (Utility.messageBD(readOnlyCP, "OBUIAPP_To", vars.getLanguage()) + ": ")
+            + (StringUtils.isNotEmpty(strDateTo) ? javaSDF.format(sqlSDF.parse(strDateTo)) : "")
+            + "\n";
+      } catch (ParseException e) {
+        log4j.error("Error when parsing dates", e);
+      }
+    }
 
-        if (StringUtils.isNotEmpty(strcAcctSchemaId)) {
-          AcctSchema financialMgmtAcctSchema = OBDal.getReadOnlyInstance().get(AcctSchema.class,
-              strcAcctSchemaId);
-          strSubtitle += Utility.messageBD(readOnlyCP, "generalLedger", vars.getLanguage()) + ": "
-              + financialMgmtAcctSchema.getName();
-        }
+    if (StringUtils.isNotEmpty(strcAcctSchemaId)) {
+      AcctSchema financialMgmtAcctSchema = OBDal.getReadOnlyInstance().get(AcctSchema.class,
+          strcAcctSchemaId);
+      strSubtitle += Utility.messageBD(readOnlyCP, "generalLedger", vars.getLanguage()) + ": "
+          + financialMgmtAcctSchema.getName();
+    }
 
-        String strOutput;
-        String strReportName;
-        if (vars.commandIn("PDF")) {
-          strOutput = "pdf";
-          strReportName = "@basedesign@/org/openbravo/erpCommon/ad_reports/ReportGeneralLedgerJournal.jrxml";
-        } else {
-          strOutput = "xls";
-          strReportName = "@basedesign@/org/openbravo/erpCommon/ad_reports/ReportGeneralLedgerJournalExcel.jrxml";
-        }
+    HashMap<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("ShowDescription", strShowDescription);
+    parameters.put("Subtitle", strSubtitle);
+    parameters.put("PageNo", strPageNo);
+    parameters.put("InitialEntryNumber", strEntryNo);
+    parameters.put("TaxID", ReportGeneralLedgerJournalData.selectOrgTaxID(readOnlyCP, strOrg));
+    parameters.put("strDateFormat", vars.getJavaDateFormat());
+    return parameters;
+  }
 
-        HashMap<String, Object> parameters = new HashMap<String, Object>();
-        parameters.put("ShowDescription", strShowDescription);
-        parameters.put("Subtitle", strSubtitle);
-        parameters.put("PageNo", strPageNo);
-        parameters.put("InitialEntryNumber", strEntryNo);
-        parameters.put("TaxID", ReportGeneralLedgerJournalData.selectOrgTaxID(readOnlyCP, strOrg));
-        parameters.put("strDateFormat", vars.getJavaDateFormat());
-        renderJR(vars, response, strReportName, "JournalEntriesReport", strOutput, parameters,
-            data, null);
-      }
+  private JournalQuery getJournalQuery(ConnectionProvider readOnlyCP, VariablesSecureApp vars,
+      String strDateFrom, String strDateTo, String strDocument, String strDocumentNo,
+      String strTable, String strRecord, String strFactAcctGroupId, String strcAcctSchemaId,
+      String strShowClosing, String strShowReg, String strShowOpening, String strShowDescription,
+      String strShowRegular, String strShowDivideUp, String strcelementvaluefrom,
+      String strcelementvalueto, String strOrgFamily) throws ServletException {
+    JournalQuery query = new JournalQuery();
+    query.strUserClient = Utility.getContext(readOnlyCP, vars, "#User_Client",
+        "ReportGeneralLedger");
+    query.strUserOrg = Utility.getContext(readOnlyCP, vars, "#AccessibleOrgTree",
+        "ReportGeneralLedger");
+    query.strLanguage = vars.getLanguage();
+    query.strShowDescription = StringUtils.equals(strShowDescription, "Y") ? "'Y'" : "'N'";
+    query.strcAcctSchemaId = strcAcctSchemaId;
+    if (StringUtils.isNotEmpty(strFactAcctGroupId)) {
+      query.strFactAcctGroupId = strFactAcctGroupId;
+    } else if (StringUtils.isEmpty(strRecord)) {
+      query.strDateFrom = strDateFrom;
+      query.strDateTo = DateTimeData.nDaysAfter(readOnlyCP, strDateTo, "1");
+      query.strDocument = strDocument;
+      query.strDocumentNo = getDocumentNo(vars.getClient(), strDocument, strDocumentNo);
+      query.strOrgFamily = strOrgFamily;
+      query.strCheck = buildCheck(strShowClosing, strShowReg, strShowOpening, strShowRegular,
+          strShowDivideUp);
+      query.strAllaccounts = StringUtils.isNotEmpty(strcelementvaluefrom) ? "N" : "Y";
+      query.strcelementvaluefrom = strcelementvaluefrom;
+      query.strcelementvalueto = strcelementvalueto;
+    } else {
+      query.strTable = strTable;
+      query.strRecord = strRecord;
+    }
+    return query;
+  }
+
+  /**
+   * Queues the export as a background job, or returns the job of an identical export already
+   * queued by the user
+   *
+   * @throws RejectedExecutionException
+   *           if the queue of jobs is full
+   */
+  private ReportGeneralLedgerJournalJobs.Job submitJob(VariablesSecureApp vars,
+      final JournalQuery query, final int limit, final HashMap<String, Object> reportParameters)
+      throws ServletException {
+    final String strLanguage = vars.getLanguage();
+    final String strJavaDateFormat = vars.getJavaDateFormat();
+    final String format = vars.commandIn("CSV") ? "csv" : (vars.commandIn("XLS") ? "xlsx"
+        : "pdf");
+    final String strLimitMessage = Utility.messageBD(this, "ReportsLimit", strLanguage).replace(
+        "@limit@", String.valueOf(limit));
+    final String strNoDataMessage = Utility.messageBD(this, "NoDataFound", strLanguage);
+    final String strReportName = getBaseDesignPath(strLanguage)
+        + "/org/openbravo/erpCommon/ad_reports/ReportGeneralLedgerJournal.jrxml";
+    if ("pdf".equals(format)) {
+      reportParameters.put("BASE_DESIGN", getBaseDesignPath(strLanguage));
+      reportParameters.put("LANGUAGE", strLanguage);
+      reportParameters.put("LOCALE", new Locale(strLanguage.substring(0, 2),
+          strLanguage.substring(3, 5)));
+      DecimalFormatSymbols dfs = new DecimalFormatSymbols();
+      dfs.setDecimalSeparator(vars.getSessionValue("#AD_ReportDecimalSeparator").charAt(0));
+      dfs.setGroupingSeparator(vars.getSessionValue("#AD_ReportGroupingSeparator").charAt(0));
+      reportParameters.put("NUMBERFORMAT",
+          new DecimalFormat(vars.getSessionValue("#AD_ReportNumberFormat"), dfs));
+    }
+    // identical requests of the same user, role and client share the same job
+    String key = StringUtils.join(new Object[] { vars.getUser(), vars.getRole(),
+        vars.getClient(), format, query.getKey(),
+        reportParameters == null ? "" : reportParameters.get("Subtitle"),
+        reportParameters == null ? "" : reportParameters.get("PageNo"),
+        reportParameters == null ? "" : reportParameters.get("InitialEntryNumber") }, '|');
+
+    return ReportGeneralLedgerJournalJobs.getInstance().submit(key, vars.getUser(),
+        "JournalEntriesReport." + format, new ReportGeneralLedgerJournalJobs.JobTask() {
+          @Override
+          public void run(File file) throws Exception {
+            ConnectionProvider readOnlyCP = DalConnectionProvider.getReadOnlyConnectionProvider();
+            if (limit > 0 && query.count(readOnlyCP) > limit) {
+              throw new OBException(strLimitMessage);
+            }
+            ReportGeneralLedgerJournalData scrollData = query.select(readOnlyCP);
+            try {
+              ReportGeneralLedgerJournalDataSource lines = new ReportGeneralLedgerJournalDataSource(
+                  scrollData, strJavaDateFormat);
+              if (!lines.hasLines()) {
+                throw new OBException(strNoDataMessage);
+              }
+              if ("pdf".equals(format)) {
+                writePDF(strReportName, reportParameters, file, readOnlyCP, lines);
+                return;
+              }
+              ReportGeneralLedgerJournalExporter exporter = new ReportGeneralLedgerJournalExporter(
+                  readOnlyCP, strLanguage);
+              OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+              try {
+                if ("csv".equals(format)) {
+                  exporter.writeCsv(lines, out);
+                } else {
+                  exporter.writeXlsx(lines, out, (String) reportParameters.get("Subtitle"),
+                      (String) reportParameters.get("TaxID"));
+                }
+              } finally {
+                out.close();
+              }
+            } finally {
+              scrollData.close();
+            }
+          }
+        });
+  }
+
+  private static void writePDF(String strReportName, HashMap<String, Object> parameters,
+      File file, ConnectionProvider readOnlyCP, ReportGeneralLedgerJournalDataSource lines) {
+    HashMap<String, Object> jobParameters = new HashMap<String, Object>(parameters);
+    JRSwapFileVirtualizer virtualizer = new JRSwapFileVirtualizer(PDF_PAGES_IN_MEMORY,
+        new JRSwapFile(System.getProperty("java.io.tmpdir"), 4096, 100), true);
+    jobParameters.put(JRParameter.REPORT_VIRTUALIZER, virtualizer);
+    try {
+      ReportingUtils.exportJR(strReportName, ExportType.PDF, jobParameters, file, false,
+          readOnlyCP, lines, null);
     } finally {
-      if (scrollData != null) {
-        scrollData.close();
+      virtualizer.cleanup();
+    }
+  }
+
+  /**
+   * @return the job of the inpJobId parameter, null if it does not exist or it belongs to another
+   *         user
+   */
+  private ReportGeneralLedgerJournalJobs.Job getUserJob(VariablesSecureApp vars) {
+    ReportGeneralLedgerJournalJobs.Job job = ReportGeneralLedgerJournalJobs.getInstance().getJob(
+        vars.getStringParameter("inpJobId"));
+    if (job == null || !StringUtils.equals(job.getUserId(), vars.getUser())) {
+      return null;
+    }
+    return job;
+  }
+
+  private void printPageJobStatus(HttpServletResponse response,
+      ReportGeneralLedgerJournalJobs.Job job) throws IOException, ServletException {
+    JSONObject json = new JSONObject();
+    try {
+      if (job == null) {
+        json.put("status", "NOT_FOUND");
+      } else {
+        json.put("jobId", job.getId());
+        json.put("status", job.getStatus().name());
+        if (job.getErrorMessage() != null) {
+          json.put("message", job.getErrorMessage());
+        }
       }
+    } catch (JSONException e) {
+      throw new ServletException(e);
+    }
+    printPageJson(response, json);
+  }
+
+  private void printPageJobRejected(HttpServletResponse response, String strMessage)
+      throws IOException, ServletException {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("status", "REJECTED");
+      json.put("message", strMessage);
+    } catch (JSONException e) {
+      throw new ServletException(e);
+    }
+    printPageJson(response, json);
+  }
+
+  private void printPageJson(HttpServletResponse response, JSONObject json) throws IOException {
+    response.setContentType("application/json; charset=UTF-8");
+    PrintWriter out = response.getWriter();
+    out.print(json.toString());
+    out.close();
+  }
+
+  private void printPageJobResult(HttpServletResponse response,
+      ReportGeneralLedgerJournalJobs.Job job) throws IOException {
+    String fileName = job.getFileName();
+    if (fileName.endsWith(".csv")) {
+      response.setContentType("text/csv; charset=UTF-8");
+    } else if (fileName.endsWith(".xlsx")) {
+      response
+          .setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+    } else {
+      response.setContentType("application/pdf");
+    }
+    response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+    response.setContentLengthLong(job.getFile().length());
+    OutputStream out = response.getOutputStream();
+    Files.copy(job.getFile().toPath(), out);
+    out.flush();
+  }
+
+  /**
+   * Writes the lines as an XLSX workbook or, for the CSV command, as a CSV file while they are
+   * read from the query
+   */
+  private void printPageExport(HttpServletResponse response, VariablesSecureApp vars,
+      ReportGeneralLedgerJournalDataSource lines, ConnectionProvider conn,
+      HashMap<String, Object> parameters) throws IOException, ServletException {
+    ReportGeneralLedgerJournalExporter exporter = new ReportGeneralLedgerJournalExporter(conn,
+        vars.getLanguage());
+    long exportedLines;
+    if (vars.commandIn("CSV")) {
+      response.setContentType("text/csv; charset=UTF-8");
+      response.setHeader("Content-Disposition", "attachment; filename=JournalEntriesReport.csv");
+      exportedLines = exporter.writeCsv(lines, response.getOutputStream());
+    } else {
+      response
+          .setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+      response.setHeader("Content-Disposition", "attachment; filename=JournalEntriesReport.xlsx");
+      exportedLines = exporter.writeXlsx(lines, response.getOutputStream(),
+          (String) parameters.get("Subtitle"), (String) parameters.get("TaxID"));
+    }
+    if (log4j.isDebugEnabled()) {
+      log4j.debug("Journal entries exported: " + exportedLines + " lines");
     }
   }
 
@@ -1168,12 +1476,14 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
     }
   }
 
+  /**
+   * Admits the report in the {@link ReportAdmissionController}, waiting for its turn if the
+   * limits of the ReportsUserExecutionsLimit and ReportsExecutionsLimit preferences are reached
+   *
+   * @return null if the report has been admitted, otherwise the message of the limit exceeded
+   */
   private OBError checkReportUsage(VariablesSecureApp vars) {
     String userId = getUser();
-    int userExecution = userExecutions.containsKey(userId) ? userExecutions.get(userId) : 0;
-    userExecution++;
-    userExecutions.put(userId, userExecution);
-    reportExecutions++;
 
     String userExecutionPreference = Utility.getPreference(vars, "ReportsUserExecutionsLimit", "");
     int userExecutionLimit = Integer.parseInt(StringUtils.isEmpty(userExecutionPreference) ? "0"
@@ -1182,8 +1492,10 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
     int reportExecutionLimit = Integer
         .parseInt(StringUtils.isEmpty(reportExecutionPreference) ? "0" : reportExecutionPreference);
 
-    // userExecutionLimit = 0 means that the userExecutionLimit must not be checked
-    if (userExecution > userExecutionLimit && userExecutionLimit > 0) {
+    // a limit = 0 means that the limit must not be checked
+    ReportAdmissionController.Admission admission = ReportAdmissionController.getInstance().admit(
+        userId, userExecutionLimit, reportExecutionLimit);
+    if (admission == ReportAdmissionController.Admission.USER_LIMIT) {
       OBError myMessage = new OBError();
       myMessage.setType("Error");
       myMessage.setTitle(Utility.messageBD(this, "Error", vars.getLanguage()));
@@ -1192,10 +1504,7 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
       msgbody = String.format(msgbody, userExecutionLimit, userName);
       myMessage.setMessage(msgbody);
       return myMessage;
-    }
-
-    // reportExecutionLimit = 0 means that the reportExecutionLimit must not be checked
-    else if (reportExecutions > reportExecutionLimit && reportExecutionLimit > 0) {
+    } else if (admission == ReportAdmissionController.Admission.GLOBAL_LIMIT) {
       OBError myMessage = new OBError();
       myMessage.setType("Error");
       myMessage.setTitle(Utility.messageBD(this, "Error", vars.getLanguage()));
@@ -1213,16 +1522,71 @@ public class ReportGeneralLedgerJournal extends HttpSecureAppServlet {
   }
 
   private void decreaseReportUsage() {
-    String userId = getUser();
-    if (userExecutions.containsKey(userId)) {
-      userExecutions.put(userId, userExecutions.get(userId) - 1);
-      if (userExecutions.get(userId) <= 0) {
-        userExecutions.remove(userId);
+    ReportAdmissionController.getInstance().release(getUser());
+  }
+
+  /**
+   * Filters of the exported lines, with the values that depend on the session already resolved,
+   * so that the query can also be run by a background job
+   */
+  private static class JournalQuery {
+    private String strUserClient;
+    private String strUserOrg;
+    private String strLanguage;
+    private String strShowDescription;
+    private String strcAcctSchemaId;
+    private String strFactAcctGroupId;
+    private String strTable;
+    private String strRecord;
+    private String strDateFrom;
+    private String strDateTo;
+    private String strDocument;
+    private String strDocumentNo;
+    private String strOrgFamily;
+    private String strCheck;
+    private String strAllaccounts;
+    private String strcelementvaluefrom;
+    private String strcelementvalueto;
+
+    /**
+     * @return true if the lines are filtered by the report criteria, the only ones that are
+     *         limited by the ReportsLimit preference
+     */
+    boolean isCountable() {
+      return StringUtils.isEmpty(strFactAcctGroupId) && StringUtils.isEmpty(strRecord);
+    }
+
+    int count(ConnectionProvider conn) throws ServletException {
+      return Integer.parseInt(ReportGeneralLedgerJournalData.selectCountNoOfRecords(conn,
+          strUserClient, strUserOrg, strDateFrom, strDateTo, strDocument, strDocumentNo,
+          strcAcctSchemaId, strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom,
+          strcelementvalueto, strShowDescription));
+    }
+
+    ReportGeneralLedgerJournalData select(ConnectionProvider conn) throws ServletException {
+      if (StringUtils.isNotEmpty(strFactAcctGroupId)) {
+        return ReportGeneralLedgerJournalData.selectDirect2(conn, strUserClient, strUserOrg,
+            strFactAcctGroupId, strLanguage);
+      } else if (StringUtils.isEmpty(strRecord)) {
+        return ReportGeneralLedgerJournalData.select(conn, "0", strShowDescription,
+            strUserClient, strUserOrg, strDateFrom, strDateTo, strDocument, strDocumentNo,
+            strcAcctSchemaId, strOrgFamily, strCheck, strAllaccounts, strcelementvaluefrom,
+            strcelementvalueto, strLanguage, null, null, null);
+      } else {
+        return ReportGeneralLedgerJournalData.selectDirect(conn, "0", strShowDescription,
+            strUserClient, strUserOrg, strTable, strRecord, strcAcctSchemaId, strLanguage, null,
+            null, null);
       }
     }
-    reportExecutions--;
-    if (reportExecutions < 0) {
-      reportExecutions = 0;
+
+    /**
+     * @return a key that is the same for the queries that return the same lines
+     */
+    String getKey() {
+      return StringUtils.join(new String[] { strUserClient, strUserOrg, strLanguage,
+          strShowDescription, strcAcctSchemaId, strFactAcctGroupId, strTable, strRecord,
+          strDateFrom, strDateTo, strDocument, strDocumentNo, strOrgFamily, strCheck,
+          strAllaccounts, strcelementvaluefrom, strcelementvalueto }, '|');
     }
   }
 
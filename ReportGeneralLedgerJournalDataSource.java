@@ -0,0 +1,133 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo  Public  License
+ * Version  1.1  (the  "License"),  being   the  Mozilla   Public  License
+ * Version 1.1  with a permitted attribution clause; you may not  use this
+ * file except in compliance with the License. You  may  obtain  a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License  is  distributed  on  an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific  language  governing  rights  and  limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s):  ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.erpCommon.ad_reports;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.servlet.ServletException;
+
+import net.sf.jasperreports.engine.JRDataSource;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JRField;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Reads the lines of the General Ledger Journal straight from the scroll of the query, so that
+ * the report can be exported without keeping all its lines in memory.
+ *
+ * It is used as the data source of the JasperReports templates, converting the values to the
+ * class of each field, and as a plain line iterator by the CSV and XLSX exports. Only the current
+ * line is kept. The scroll is not closed by this class.
+ */
+class ReportGeneralLedgerJournalDataSource implements JRDataSource {
+
+  private final ReportGeneralLedgerJournalData scroll;
+  private final SimpleDateFormat dateFormat;
+  private ReportGeneralLedgerJournalData current;
+  private boolean peeked;
+  private long lines;
+
+  /**
+   * @param scroll
+   *          scroll of the query, positioned before its first line
+   * @param strDateFormat
+   *          java date format of the dates returned by the query
+   */
+  ReportGeneralLedgerJournalDataSource(ReportGeneralLedgerJournalData scroll, String strDateFormat) {
+    this.scroll = scroll;
+    this.dateFormat = new SimpleDateFormat(strDateFormat);
+  }
+
+  /**
+   * Returns true if the query returns any line. The first line is read and kept for the next
+   * call to {@link #next()} or {@link #nextLine()}
+   */
+  boolean hasLines() throws ServletException {
+    if (!peeked) {
+      current = scroll.next() ? scroll.get() : null;
+      peeked = true;
+    }
+    return current != null;
+  }
+
+  /**
+   * @return the next line of the query, null once all of them have been read
+   */
+  ReportGeneralLedgerJournalData nextLine() throws ServletException {
+    if (peeked) {
+      peeked = false;
+    } else {
+      current = scroll.next() ? scroll.get() : null;
+    }
+    if (current != null) {
+      lines++;
+    }
+    return current;
+  }
+
+  /**
+   * @return number of lines read so far
+   */
+  long getLines() {
+    return lines;
+  }
+
+  @Override
+  public boolean next() throws JRException {
+    try {
+      return nextLine() != null;
+    } catch (ServletException e) {
+      throw new JRException(e);
+    }
+  }
+
+  @Override
+  public Object getFieldValue(JRField field) throws JRException {
+    String value = current.getField(field.getName());
+    Class<?> valueClass = field.getValueClass();
+    if (value == null || (StringUtils.isEmpty(value) && !String.class.equals(valueClass))) {
+      return null;
+    }
+    try {
+      if (BigDecimal.class.equals(valueClass)) {
+        return new BigDecimal(value);
+      } else if (Timestamp.class.equals(valueClass)) {
+        return new Timestamp(dateFormat.parse(value).getTime());
+      } else if (Date.class.isAssignableFrom(valueClass)) {
+        return dateFormat.parse(value);
+      } else if (Long.class.equals(valueClass)) {
+        return Long.valueOf(value);
+      } else if (Integer.class.equals(valueClass)) {
+        return Integer.valueOf(value);
+      } else if (Double.class.equals(valueClass)) {
+        return Double.valueOf(value);
+      }
+    } catch (NumberFormatException e) {
+      throw new JRException("Invalid value " + value + " for field " + field.getName(), e);
+    } catch (ParseException e) {
+      throw new JRException("Invalid date " + value + " for field " + field.getName(), e);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo  Public  License
+ * Version  1.1  (the  "License"),  being   the  Mozilla   Public  License
+ * Version 1.1  with a permitted attribution clause; you may not  use this
+ * file except in compliance with the License. You  may  obtain  a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License  is  distributed  on  an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific  language  governing  rights  and  limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s):  ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.erpCommon.ad_reports;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openbravo.database.ConnectionProvider;
+import org.openbravo.erpCommon.utility.Utility;
+
+/**
+ * Writes the lines of the General Ledger Journal as CSV or as an XLSX workbook while they are read
+ * from the query, so the memory used does not depend on the number of lines exported.
+ *
+ * The XLSX workbook is written with a streaming workbook that only keeps a window of rows in
+ * memory and flushes the rest to a temporary file. Each sheet starts with the same title rows as
+ * the PDF report: legal entity, organization, dates, general ledger and tax id. When a sheet
+ * reaches the row limit of the format, the export continues in a new sheet.
+ */
+class ReportGeneralLedgerJournalExporter {
+
+  /** Fields of the query exported, in the order of the columns */
+  private static final String[] FIELDS = { "dateacct", "seqno", "docname", "value", "name",
+      "description", "amtacctdr", "amtacctcr" };
+  /** Elements or messages used as the header of each column */
+  private static final String[] HEADERS = { "DateAcct", "SeqNo", "DocumentType", "Account",
+      "Name", "Description", "AmtAcctDr", "AmtAcctCr" };
+  /** Fields exported as numbers */
+  private static final String[] NUMERIC_FIELDS = { "amtacctdr", "amtacctcr" };
+
+  private static final int ROWS_IN_MEMORY = 100;
+  private static final int MAX_ROWS_PER_SHEET = 1048576;
+  private static final char CSV_SEPARATOR = ',';
+
+  private final String[] headers;
+  private final String strTaxIdLabel;
+
+  ReportGeneralLedgerJournalExporter(ConnectionProvider conn, String strLanguage) {
+    headers = new String[HEADERS.length];
+    for (int i = 0; i < HEADERS.length; i++) {
+      headers[i] = Utility.messageBD(conn, HEADERS[i], strLanguage);
+    }
+    strTaxIdLabel = Utility.messageBD(conn, "TaxID", strLanguage);
+  }
+
+  /**
+   * Writes the lines as UTF-8 CSV, one line per accounting line with a header line
+   *
+   * @return number of lines written
+   */
+  long writeCsv(ReportGeneralLedgerJournalDataSource lines, OutputStream out) throws IOException,
+      ServletException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writeCsvLine(writer, headers);
+    String[] values = new String[FIELDS.length];
+    ReportGeneralLedgerJournalData line;
+    while ((line = lines.nextLine()) != null) {
+      for (int i = 0; i < FIELDS.length; i++) {
+        values[i] = line.getField(FIELDS[i]);
+      }
+      writeCsvLine(writer, values);
+    }
+    writer.flush();
+    return lines.getLines();
+  }
+
+  private static void writeCsvLine(Writer writer, String[] values) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        writer.write(CSV_SEPARATOR);
+      }
+      String value = values[i] == null ? "" : values[i];
+      if (StringUtils.containsAny(value, new char[] { CSV_SEPARATOR, '"', '\n', '\r' })) {
+        writer.write('"');
+        writer.write(StringUtils.replace(value, "\"", "\"\""));
+        writer.write('"');
+      } else {
+        writer.write(value);
+      }
+    }
+    writer.write("\r\n");
+  }
+
+  /**
+   * Writes the lines as an XLSX workbook. Each sheet starts with the title rows of the report and
+   * a header row
+   *
+   * @param strSubtitle
+   *          subtitle of the PDF report, one title row is written for each of its lines
+   * @param strTaxId
+   *          tax id of the organization, not written if it is empty
+   * @return number of lines written
+   */
+  long writeXlsx(ReportGeneralLedgerJournalDataSource lines, OutputStream out,
+      String strSubtitle, String strTaxId) throws IOException, ServletException {
+    List<String> titles = new ArrayList<String>();
+    for (String title : StringUtils.split(StringUtils.defaultString(strSubtitle), '\n')) {
+      titles.add(title);
+    }
+    if (StringUtils.isNotEmpty(strTaxId)) {
+      titles.add(strTaxIdLabel + ": " + strTaxId);
+    }
+    SXSSFWorkbook workbook = new SXSSFWorkbook(ROWS_IN_MEMORY);
+    try {
+      Sheet sheet = null;
+      int rowNumber = 0;
+      ReportGeneralLedgerJournalData line;
+      while ((line = lines.nextLine()) != null) {
+        if (sheet == null || rowNumber == MAX_ROWS_PER_SHEET) {
+          sheet = workbook.createSheet();
+          rowNumber = writeXlsxHeader(sheet, titles);
+        }
+        Row row = sheet.createRow(rowNumber++);
+        for (int i = 0; i < FIELDS.length; i++) {
+          String value = line.getField(FIELDS[i]);
+          if (StringUtils.isEmpty(value)) {
+            continue;
+          }
+          Cell cell = row.createCell(i);
+          if (isNumeric(FIELDS[i])) {
+            cell.setCellValue(new BigDecimal(value).doubleValue());
+          } else {
+            cell.setCellValue(value);
+          }
+        }
+      }
+      if (sheet == null) {
+        writeXlsxHeader(workbook.createSheet(), titles);
+      }
+      workbook.write(out);
+      out.flush();
+      return lines.getLines();
+    } finally {
+      // removes the temporary files of the rows flushed from memory
+      workbook.dispose();
+    }
+  }
+
+  /**
+   * Writes the title rows, an empty row and the header row at the beginning of the sheet
+   *
+   * @return number of rows written
+   */
+  private int writeXlsxHeader(Sheet sheet, List<String> titles) {
+    int rowNumber = 0;
+    for (String title : titles) {
+      sheet.createRow(rowNumber++).createCell(0).setCellValue(title);
+    }
+    if (!titles.isEmpty()) {
+      rowNumber++;
+    }
+    Row header = sheet.createRow(rowNumber++);
+    for (int i = 0; i < headers.length; i++) {
+      header.createCell(i).setCellValue(headers[i]);
+    }
+    return rowNumber;
+  }
+
+  private static boolean isNumeric(String field) {
+    for (String numericField : NUMERIC_FIELDS) {
+      if (StringUtils.equals(numericField, field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
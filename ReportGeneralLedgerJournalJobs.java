@@ -0,0 +1,340 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo  Public  License
+ * Version  1.1  (the  "License"),  being   the  Mozilla   Public  License
+ * Version 1.1  with a permitted attribution clause; you may not  use this
+ * file except in compliance with the License. You  may  obtain  a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License  is  distributed  on  an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific  language  governing  rights  and  limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s):  ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.erpCommon.ad_reports;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Runs the General Ledger Journal exports in background threads, so that big reports wait for
+ * their turn instead of holding a request thread or being rejected.
+ *
+ * Each job writes its file in a spool directory, where it is kept until it expires. The jobs wait
+ * in a bounded queue sorted by priority: the jobs of users with fewer jobs waiting go first and,
+ * among them, the oldest one. A job submitted while an identical one (same user, role, filters
+ * and format) is waiting or running is not queued again: the existing job is returned instead.
+ *
+ * The expired jobs and their files are removed every {@value #PURGE_INTERVAL_MINUTES} minutes. The
+ * files left in the spool directory by a previous run of the server are removed when it starts.
+ *
+ * Each job keeps the user, role, client and organization that submitted it, and runs with a new
+ * security context built from them in the worker thread. It is configured with
+ * these Openbravo.properties:
+ * <ul>
+ * <li>reportJobs.threads: number of threads, 2 by default. Each running job uses a connection of
+ * the read-only pool, so it should not be bigger than the size of that pool.</li>
+ * <li>reportJobs.queueSize: number of jobs waiting for a thread, 50 by default. When it is full,
+ * new jobs are rejected.</li>
+ * <li>reportJobs.spoolDir: directory of the generated files, a folder in the temporary directory
+ * by default.</li>
+ * <li>reportJobs.expirationMinutes: minutes a finished job and its file are kept, 60 by
+ * default.</li>
+ * </ul>
+ */
+class ReportGeneralLedgerJournalJobs {
+
+  private static final Logger log4j = Logger.getLogger(ReportGeneralLedgerJournalJobs.class);
+
+  private static final String THREADS_PROPERTY = "reportJobs.threads";
+  private static final String QUEUE_SIZE_PROPERTY = "reportJobs.queueSize";
+  private static final String SPOOL_DIR_PROPERTY = "reportJobs.spoolDir";
+  private static final String EXPIRATION_PROPERTY = "reportJobs.expirationMinutes";
+  private static final int DEFAULT_THREADS = 2;
+  private static final int DEFAULT_QUEUE_SIZE = 50;
+  private static final int DEFAULT_EXPIRATION_MINUTES = 60;
+  private static final int PURGE_INTERVAL_MINUTES = 5;
+
+  private static ReportGeneralLedgerJournalJobs instance;
+
+  enum Status {
+    QUEUED, RUNNING, DONE, ERROR
+  }
+
+  /**
+   * Generates the file of a job
+   */
+  interface JobTask {
+    void run(File file) throws Exception;
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService purger;
+  private final int queueSize;
+  private final long expirationMillis;
+  private final File spoolDir;
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<String, Job> jobsById = new HashMap<String, Job>();
+  private final Map<String, Job> jobsByKey = new HashMap<String, Job>();
+
+  static synchronized ReportGeneralLedgerJournalJobs getInstance() {
+    if (instance == null) {
+      instance = new ReportGeneralLedgerJournalJobs();
+    }
+    return instance;
+  }
+
+  private ReportGeneralLedgerJournalJobs() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    int threads = getIntProperty(properties, THREADS_PROPERTY, DEFAULT_THREADS);
+    queueSize = getIntProperty(properties, QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+    expirationMillis = TimeUnit.MINUTES.toMillis(getIntProperty(properties, EXPIRATION_PROPERTY,
+        DEFAULT_EXPIRATION_MINUTES));
+    String strSpoolDir = properties.getProperty(SPOOL_DIR_PROPERTY);
+    spoolDir = new File(strSpoolDir == null || strSpoolDir.trim().isEmpty() ? new File(
+        System.getProperty("java.io.tmpdir"), "openbravo-report-jobs").getPath()
+        : strSpoolDir.trim());
+    spoolDir.mkdirs();
+    deleteSpoolFiles();
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(), new JobThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+    purger = Executors.newSingleThreadScheduledExecutor(new JobThreadFactory("report-job-purge-"));
+    purger.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          purgeExpired();
+        } catch (Throwable t) {
+          log4j.error("Error removing the expired report jobs", t);
+        }
+      }
+    }, PURGE_INTERVAL_MINUTES, PURGE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Removes the files of the jobs of a previous run of the server, none of them can be downloaded
+   * anymore
+   */
+  private void deleteSpoolFiles() {
+    File[] files = spoolDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isFile() && !file.delete()) {
+        log4j.warn("Could not delete the report file " + file.getPath());
+      }
+    }
+  }
+
+  private static int getIntProperty(Properties properties, String name, int defaultValue) {
+    String value = properties.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      int intValue = Integer.parseInt(value.trim());
+      return intValue > 0 ? intValue : defaultValue;
+    } catch (NumberFormatException e) {
+      log4j.warn("Invalid value " + value + " for property " + name + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Queues a job, or returns the identical job waiting or running
+   *
+   * @param key
+   *          identifies the user, role, filters and format of the job
+   * @param fileName
+   *          name of the file shown to the user
+   * @throws RejectedExecutionException
+   *           if the queue is full
+   */
+  synchronized Job submit(String key, String userId, String fileName, JobTask task) {
+    purgeExpired();
+    Job job = jobsByKey.get(key);
+    if (job != null && (job.getStatus() == Status.QUEUED || job.getStatus() == Status.RUNNING)) {
+      return job;
+    }
+    if (executor.getQueue().size() >= queueSize) {
+      throw new RejectedExecutionException("The report job queue is full");
+    }
+    int userJobs = 0;
+    for (Job queued : jobsById.values()) {
+      if (queued.getStatus() == Status.QUEUED && queued.userId.equals(userId)) {
+        userJobs++;
+      }
+    }
+    String jobId = UUID.randomUUID().toString().replace("-", "").toUpperCase();
+    OBContext obContext = OBContext.getOBContext();
+    job = new Job(jobId, key, userId, obContext.getRole().getId(),
+        obContext.getCurrentClient().getId(), obContext.getCurrentOrganization().getId(),
+        fileName, new File(spoolDir, jobId), task, userJobs, sequence.incrementAndGet());
+    jobsById.put(jobId, job);
+    jobsByKey.put(key, job);
+    executor.execute(job);
+    return job;
+  }
+
+  /**
+   * @return the job, null if it does not exist or has expired
+   */
+  synchronized Job getJob(String jobId) {
+    purgeExpired();
+    return jobsById.get(jobId);
+  }
+
+  private synchronized void purgeExpired() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Job> it = jobsById.values().iterator(); it.hasNext();) {
+      Job job = it.next();
+      if (job.finished > 0 && now - job.finished > expirationMillis) {
+        it.remove();
+        if (jobsByKey.get(job.key) == job) {
+          jobsByKey.remove(job.key);
+        }
+        if (job.file.exists() && !job.file.delete()) {
+          log4j.warn("Could not delete the report file " + job.file.getPath());
+        }
+      }
+    }
+  }
+
+  /**
+   * A report export waiting, running or finished. Its file can be read once its status is
+   * {@link Status#DONE}
+   */
+  static class Job implements Runnable, Comparable<Job> {
+    private final String id;
+    private final String key;
+    private final String userId;
+    private final String roleId;
+    private final String clientId;
+    private final String orgId;
+    private final String fileName;
+    private final File file;
+    private final JobTask task;
+    private final int priority;
+    private final long sequence;
+    private volatile Status status = Status.QUEUED;
+    private volatile String errorMessage;
+    private volatile long finished;
+
+    private Job(String id, String key, String userId, String roleId, String clientId,
+        String orgId, String fileName, File file, JobTask task, int priority, long sequence) {
+      this.id = id;
+      this.key = key;
+      this.userId = userId;
+      this.roleId = roleId;
+      this.clientId = clientId;
+      this.orgId = orgId;
+      this.fileName = fileName;
+      this.file = file;
+      this.task = task;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      status = Status.RUNNING;
+      long start = System.currentTimeMillis();
+      try {
+        // the context of the request is not shared with the worker thread, a new one is built
+        OBContext.setOBContext(userId, roleId, clientId, orgId);
+        task.run(file);
+        status = Status.DONE;
+        log4j.debug("Report job " + id + " done in " + (System.currentTimeMillis() - start)
+            + " ms");
+      } catch (Throwable t) {
+        log4j.error("Error generating the report of job " + id, t);
+        errorMessage = t.getMessage();
+        status = Status.ERROR;
+        file.delete();
+      } finally {
+        finished = System.currentTimeMillis();
+        // nothing has been modified, just release the connections
+        OBDal.getReadOnlyInstance().rollbackAndClose();
+        OBDal.getInstance().rollbackAndClose();
+        OBContext.setOBContext((OBContext) null);
+      }
+    }
+
+    @Override
+    public int compareTo(Job other) {
+      if (priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String getUserId() {
+      return userId;
+    }
+
+    String getFileName() {
+      return fileName;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    Status getStatus() {
+      return status;
+    }
+
+    String getErrorMessage() {
+      return errorMessage;
+    }
+  }
+
+  private static class JobThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String prefix;
+
+    JobThreadFactory() {
+      this("report-job-");
+    }
+
+    JobThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
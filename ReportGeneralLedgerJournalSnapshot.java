@@ -0,0 +1,248 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo  Public  License
+ * Version  1.1  (the  "License"),  being   the  Mozilla   Public  License
+ * Version 1.1  with a permitted attribution clause; you may not  use this
+ * file except in compliance with the License. You  may  obtain  a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License  is  distributed  on  an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific  language  governing  rights  and  limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s):  ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.erpCommon.ad_reports;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.openbravo.database.ConnectionProvider;
+
+/**
+ * Values of the General Ledger Journal that do not change while the user moves through the pages
+ * of the same search. It is kept in the session, so the previous and next pages only need to read
+ * their lines.
+ *
+ * It keeps the values of the filters resolved with queries, the number of lines of each accounting
+ * entry read so far and the position of the first line of each page already shown. A snapshot is
+ * only used for the same filters, and is discarded once it is older than
+ * {@value #TIME_TO_LIVE_MINUTES} minutes or once {@link #invalidate(String)} is called for its
+ * accounting schema.
+ *
+ * The posting process writes the fact lines with SQL, so their changes are not notified to
+ * {@link #invalidate(String)}. The snapshot also keeps the number of fact lines of its accounting
+ * schema and dates and their last update, and is discarded when they are different.
+ */
+class ReportGeneralLedgerJournalSnapshot implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log4j = Logger.getLogger(ReportGeneralLedgerJournalSnapshot.class);
+
+  private static final int TIME_TO_LIVE_MINUTES = 5;
+
+  /** Version of each accounting schema, increased each time its entries change */
+  private static final Map<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+  private final String key;
+  private final String strcAcctSchemaId;
+  private final long version;
+  private final long created;
+  private final String strDateFrom;
+  private final String strFingerprint;
+  private final String strOrgFamily;
+  private final String strDateTo;
+  private final String strDocumentNo;
+  private final Map<Integer, Integer> entryLines = new HashMap<Integer, Integer>();
+  private final Map<String, String> positions = new HashMap<String, String>();
+  private int totalEntries = -1;
+
+  /**
+   * @param strDateFrom
+   *          date to filter from
+   * @param strDateTo
+   *          day after the date to filter by, as used by the queries
+   * @param strDocumentNo
+   *          condition of the document number filter, as used by the queries
+   */
+  ReportGeneralLedgerJournalSnapshot(ConnectionProvider conn, String key,
+      String strcAcctSchemaId, String strDateFrom, String strOrgFamily, String strDateTo,
+      String strDocumentNo) throws ServletException {
+    this.key = key;
+    this.strcAcctSchemaId = strcAcctSchemaId;
+    this.version = getVersion(strcAcctSchemaId).get();
+    this.created = System.currentTimeMillis();
+    this.strDateFrom = strDateFrom;
+    // read after the version, so a change made meanwhile is detected by one of them
+    this.strFingerprint = getFingerprint(conn, strcAcctSchemaId, strDateFrom, strDateTo);
+    this.strOrgFamily = strOrgFamily;
+    this.strDateTo = strDateTo;
+    this.strDocumentNo = strDocumentNo;
+  }
+
+  /**
+   * @return the key of the snapshot of the given filters, the same for the same filters
+   */
+  static String getKey(String... filters) {
+    String[] normalized = new String[filters.length];
+    for (int i = 0; i < filters.length; i++) {
+      normalized[i] = StringUtils.trimToEmpty(filters[i]);
+    }
+    return StringUtils.join(normalized, '|');
+  }
+
+  /**
+   * Discards the snapshots of the accounting schema. It should be called whenever its entries are
+   * posted, modified or removed
+   */
+  static void invalidate(String strcAcctSchemaId) {
+    getVersion(strcAcctSchemaId).incrementAndGet();
+  }
+
+  private static AtomicLong getVersion(String strcAcctSchemaId) {
+    String schemaKey = StringUtils.trimToEmpty(strcAcctSchemaId);
+    AtomicLong schemaVersion = versions.get(schemaKey);
+    if (schemaVersion == null) {
+      versions.putIfAbsent(schemaKey, new AtomicLong());
+      schemaVersion = versions.get(schemaKey);
+    }
+    return schemaVersion;
+  }
+
+  /**
+   * @return true if the snapshot can be used for the filters of the key
+   */
+  boolean isValid(ConnectionProvider conn, String filtersKey) throws ServletException {
+    return StringUtils.equals(key, filtersKey)
+        && System.currentTimeMillis() - created < TimeUnit.MINUTES.toMillis(TIME_TO_LIVE_MINUTES)
+        && getVersion(strcAcctSchemaId).get() == version
+        && StringUtils.equals(strFingerprint,
+            getFingerprint(conn, strcAcctSchemaId, strDateFrom, strDateTo));
+  }
+
+  /**
+   * @return the number of fact lines of the accounting schema between the dates and the time of
+   *         their last update, that change whenever any of them is posted, modified or removed
+   */
+  private static String getFingerprint(ConnectionProvider conn, String strcAcctSchemaId,
+      String strDateFrom, String strDateTo) throws ServletException {
+    String strSql = "SELECT COUNT(*) AS TOTAL, MAX(UPDATED) AS LASTUPDATED FROM FACT_ACCT"
+        + " WHERE C_ACCTSCHEMA_ID = ?";
+    if (StringUtils.isNotEmpty(strDateFrom)) {
+      strSql += " AND DATEACCT >= TO_DATE(?)";
+    }
+    if (StringUtils.isNotEmpty(strDateTo)) {
+      strSql += " AND DATEACCT < TO_DATE(?)";
+    }
+    PreparedStatement st = null;
+    try {
+      st = conn.getPreparedStatement(strSql);
+      int parameter = 1;
+      st.setString(parameter++, strcAcctSchemaId);
+      if (StringUtils.isNotEmpty(strDateFrom)) {
+        st.setString(parameter++, strDateFrom);
+      }
+      if (StringUtils.isNotEmpty(strDateTo)) {
+        st.setString(parameter++, strDateTo);
+      }
+      ResultSet result = st.executeQuery();
+      try {
+        result.next();
+        Timestamp lastUpdated = result.getTimestamp("LASTUPDATED");
+        return result.getLong("TOTAL") + ":"
+            + (lastUpdated == null ? "" : String.valueOf(lastUpdated.getTime()));
+      } finally {
+        result.close();
+      }
+    } catch (SQLException e) {
+      log4j.error("SQL error in query: " + strSql + "Exception:" + e);
+      throw new ServletException("@CODE=" + Integer.toString(e.getErrorCode()) + "@"
+          + e.getMessage());
+    } catch (Exception ex) {
+      log4j.error("Exception in query: " + strSql + "Exception:" + ex);
+      throw new ServletException("@CODE=@" + ex.getMessage());
+    } finally {
+      try {
+        conn.releasePreparedStatement(st);
+      } catch (Exception ignore) {
+        ignore.printStackTrace();
+      }
+    }
+  }
+
+  String getOrgFamily() {
+    return strOrgFamily;
+  }
+
+  String getDateTo() {
+    return strDateTo;
+  }
+
+  String getDocumentNo() {
+    return strDocumentNo;
+  }
+
+  /**
+   * @return the number of lines of each accounting entry from the first one given, up to the given
+   *         number of entries or the last entry. Null if any of them has not been read yet
+   */
+  synchronized List<Integer> getEntryLines(int firstEntry, int entries) {
+    List<Integer> lines = new ArrayList<Integer>(entries);
+    for (int entry = firstEntry; entry < firstEntry + entries; entry++) {
+      if (totalEntries >= 0 && entry >= totalEntries) {
+        break;
+      }
+      Integer entryLine = entryLines.get(entry);
+      if (entryLine == null) {
+        return null;
+      }
+      lines.add(entryLine);
+    }
+    return lines;
+  }
+
+  /**
+   * Keeps the number of lines of the accounting entries read from the first one given
+   *
+   * @param last
+   *          true if there are no more accounting entries after the ones given
+   */
+  synchronized void putEntryLines(int firstEntry, List<Integer> lines, boolean last) {
+    for (int i = 0; i < lines.size(); i++) {
+      entryLines.put(firstEntry + i, lines.get(i));
+    }
+    if (last) {
+      totalEntries = firstEntry + lines.size();
+    }
+  }
+
+  /**
+   * @return the position of the page that starts with the given line, null if it is not known
+   */
+  synchronized String getPosition(String strDateAcct, String strIdentifier) {
+    return positions.get(strDateAcct + "|" + strIdentifier);
+  }
+
+  synchronized void putPosition(String strDateAcct, String strIdentifier, String strPosition) {
+    positions.put(strDateAcct + "|" + strIdentifier, strPosition);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Openbravo  Public  License
+ * Version  1.1  (the  "License"),  being   the  Mozilla   Public  License
+ * Version 1.1  with a permitted attribution clause; you may not  use this
+ * file except in compliance with the License. You  may  obtain  a copy of
+ * the License at http://www.openbravo.com/legal/license.html
+ * Software distributed under the License  is  distributed  on  an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific  language  governing  rights  and  limitations
+ * under the License.
+ * The Original Code is Openbravo ERP.
+ * The Initial Developer of the Original Code is Openbravo SLU
+ * All portions are Copyright (C) 2018 Openbravo SLU
+ * All Rights Reserved.
+ * Contributor(s):  ______________________________________.
+ ************************************************************************
+ */
+package org.openbravo.erpCommon.ad_reports;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.base.model.Property;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.model.financialmgmt.accounting.AccountingFact;
+import org.openbravo.model.financialmgmt.accounting.coa.AcctSchema;
+
+/**
+ * Discards the General Ledger Journal snapshots of an accounting schema whenever one of its fact
+ * lines is created, modified or deleted through the DAL. The fact lines written with SQL by the
+ * posting process do not raise these events, they are detected by the snapshot itself comparing
+ * the number of fact lines and their last update each time it is used
+ */
+public class ReportGeneralLedgerJournalSnapshotInvalidator extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(
+      AccountingFact.ENTITY_NAME) };
+
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  public void onSave(@Observes EntityNewEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidate(((AccountingFact) event.getTargetInstance()).getAccountingSchema());
+  }
+
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    Property schemaProperty = entities[0].getProperty(AccountingFact.PROPERTY_ACCOUNTINGSCHEMA);
+    invalidate((AcctSchema) event.getPreviousState(schemaProperty));
+    invalidate(((AccountingFact) event.getTargetInstance()).getAccountingSchema());
+  }
+
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidate(((AccountingFact) event.getTargetInstance()).getAccountingSchema());
+  }
+
+  private void invalidate(AcctSchema acctSchema) {
+    if (acctSchema != null) {
+      ReportGeneralLedgerJournalSnapshot.invalidate(acctSchema.getId());
+    }
+  }
+}